@@ -0,0 +1,98 @@
+/* --------------------------------------------------------------------------*
+*             Muscle Optimizer GUI: BenchmarkNames.java                      *
+* -------------------------------------------------------------------------- *
+*                                                                            *
+* Copyright 2015  Elena Ceseracciu, Luca Modenese                            *
+*                                                                            *
+* Licensed under the Apache License, Version 2.0 (the "License");            *
+* you may not use this file except in compliance with the License.           *
+* You may obtain a copy of the License at                                    *
+*                                                                            *
+*     http://www.apache.org/licenses/LICENSE-2.0                             *
+*                                                                            *
+* Unless required by applicable law or agreed to in writing, software        *
+* distributed under the License is distributed on an "AS IS" BASIS,          *
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+* See the License for the specific language governing permissions and        *
+* limitations under the License.                                             *
+* ---------------------------------------------------------------------------*/
+
+package org.opensim.muscleoptimizer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Name lists used by the benchmarks. A name set is either "synthetic-N"
+ * (N generated muscle or coordinate names, with the same shape as those of
+ * the example models) or "example1"/"example2" (the target models of the
+ * test examples, read from the directory given by the
+ * muscleoptimizer.examples.dir system property, ../test by default).
+ */
+final class BenchmarkNames {
+
+    private static final String[] muscleStems = { "glut_med", "glut_min", "glut_max", "add_long", "add_brev", "add_mag", "semimem", "semiten",
+        "bifemlh", "bifemsh", "sar", "tfl", "grac", "rect_fem", "vas_med", "vas_int", "vas_lat", "med_gas", "lat_gas", "soleus", "tib_post",
+        "flex_dig", "flex_hal", "tib_ant", "per_brev", "per_long", "per_tert", "ext_dig", "ext_hal", "ercspn", "intobl", "extobl" };
+    private static final String[] coordinateStems = { "hip_flexion", "hip_adduction", "hip_rotation", "knee_angle", "ankle_angle",
+        "subtalar_angle", "mtp_angle", "lumbar_extension", "lumbar_bending", "lumbar_rotation", "arm_flex", "arm_add", "arm_rot",
+        "elbow_flex", "pro_sup", "wrist_flex", "wrist_dev" };
+
+    private BenchmarkNames() {}
+
+    static String[] muscleNames(String nameSet) throws Exception {
+        if (nameSet.startsWith("synthetic-"))
+            return synthesize(muscleStems, Integer.parseInt(nameSet.substring("synthetic-".length())));
+        return readNames(exampleModelFile(nameSet), "ForceSet", "Muscle");
+    }
+
+    static String[] coordinateNames(String nameSet) throws Exception {
+        if (nameSet.startsWith("synthetic-"))
+            return synthesize(coordinateStems, Integer.parseInt(nameSet.substring("synthetic-".length())));
+        return readNames(exampleModelFile(nameSet), "CoordinateSet", "Coordinate");
+    }
+
+    static File exampleModelFile(String nameSet) {
+        File examplesDir = new File(System.getProperty("muscleoptimizer.examples.dir", "../test"));
+        if (nameSet.equals("example1"))
+            return new File(examplesDir, "Example1/MSK_Models/Target_Hamner_scaled_L.osim");
+        if (nameSet.equals("example2"))
+            return new File(examplesDir, "Example2/MSK_Models/Target_LHDL_Schutte_R.osim");
+        throw new IllegalArgumentException("Unknown name set " + nameSet);
+    }
+
+    // stem, then index when the stems are exhausted, then side: glut_med1_r, glut_med1_l, ...
+    private static String[] synthesize(String[] stems, int count) {
+        String[] names = new String[count];
+        for (int i = 0; i < count; ++i) {
+            int stem = (i / 2) % stems.length;
+            int index = (i / 2) / stems.length + 1;
+            names[i] = stems[stem] + index + ((i % 2 == 0) ? "_r" : "_l");
+        }
+        return names;
+    }
+
+    // names of the objects of the given set whose type name contains typeName, e.g. Schutte1993Muscle_Deprecated (the defaults section is skipped)
+    private static String[] readNames(File modelFile, String setName, String typeName) throws Exception {
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(modelFile);
+        List<String> names = new ArrayList<String>();
+        NodeList sets = document.getElementsByTagName(setName);
+        for (int s = 0; s < sets.getLength(); ++s) {
+            for (Node objects = sets.item(s).getFirstChild(); objects != null; objects = objects.getNextSibling()) {
+                if (!objects.getNodeName().equals("objects"))
+                    continue;
+                for (Node object = objects.getFirstChild(); object != null; object = object.getNextSibling()) {
+                    if (object instanceof Element && object.getNodeName().contains(typeName))
+                        names.add(((Element) object).getAttribute("name"));
+                }
+            }
+        }
+        return names.toArray(new String[names.size()]);
+    }
+}
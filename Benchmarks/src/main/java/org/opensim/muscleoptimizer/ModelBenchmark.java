@@ -0,0 +1,131 @@
+/* --------------------------------------------------------------------------*
+*             Muscle Optimizer GUI: ModelBenchmark.java                      *
+* -------------------------------------------------------------------------- *
+*                                                                            *
+* Copyright 2015  Elena Ceseracciu, Luca Modenese                            *
+*                                                                            *
+* Licensed under the Apache License, Version 2.0 (the "License");            *
+* you may not use this file except in compliance with the License.           *
+* You may obtain a copy of the License at                                    *
+*                                                                            *
+*     http://www.apache.org/licenses/LICENSE-2.0                             *
+*                                                                            *
+* Unless required by applicable law or agreed to in writing, software        *
+* distributed under the License is distributed on an "AS IS" BASIS,          *
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+* See the License for the specific language governing permissions and        *
+* limitations under the License.                                             *
+* ---------------------------------------------------------------------------*/
+
+package org.opensim.muscleoptimizer;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensim.modeling.ArrayStr;
+import org.opensim.modeling.Model;
+import org.opensim.modeling.Thelen2003Muscle;
+import org.opensim.modeling.Vec3;
+
+/**
+ * Operations of the GUI that cross the JNI boundary: reading muscle and
+ * coordinate names one by one and with the bulk accessors of MuscleOptimizer
+ * (as the filter panels do), and copying the model as OptimizeToolWorker does
+ * before each run. Needs the OpenSim and muscle optimizer Java bindings (and
+ * their native libraries) on the library path. Synthetic models have
+ * the requested number of muscles and no coordinates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class ModelBenchmark {
+
+    static {
+        System.loadLibrary("muscleOptimizerJ");
+    }
+
+    @Param({ "synthetic-100", "synthetic-500", "synthetic-1000", "synthetic-5000", "example1", "example2" })
+    public String nameSet;
+
+    private Model model;
+
+    @Setup(Level.Trial)
+    public void loadModel() throws Exception {
+        if (!nameSet.startsWith("synthetic-")) {
+            model = new Model(BenchmarkNames.exampleModelFile(nameSet).getPath());
+            return;
+        }
+        model = new Model();
+        model.setName(nameSet);
+        for (String muscleName : BenchmarkNames.muscleNames(nameSet)) {
+            Thelen2003Muscle muscle = new Thelen2003Muscle(muscleName, 1000.0, 0.1, 0.2, 0.0);
+            muscle.addNewPathPoint(muscleName + "-P1", model.getGroundBody(), new Vec3(0.0, 0.0, 0.0));
+            muscle.addNewPathPoint(muscleName + "-P2", model.getGroundBody(), new Vec3(0.0, 0.1, 0.0));
+            model.addForce(muscle);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void releaseModel() {
+        model.delete();
+    }
+
+    // one JNI call for the list, then one per name
+    @Benchmark
+    public String[] muscleNames() {
+        ArrayStr muscleNames = new ArrayStr("");
+        model.getMuscles().getNames(muscleNames);
+        String[] names = new String[muscleNames.getSize()];
+        for (int i = 0; i < names.length; ++i)
+            names[i] = muscleNames.get(i);
+        muscleNames.delete();
+        return names;
+    }
+
+    @Benchmark
+    public String[] coordinateNames() {
+        ArrayStr coordinateNames = new ArrayStr("");
+        model.getCoordinateSet().getNames(coordinateNames);
+        String[] names = new String[coordinateNames.getSize()];
+        for (int i = 0; i < names.length; ++i)
+            names[i] = coordinateNames.get(i);
+        coordinateNames.delete();
+        return names;
+    }
+
+    // as in the filter panels: the whole list in one JNI call
+    @Benchmark
+    public String[] muscleNamesBulk() {
+        return MuscleOptimizer.getMuscleNames(model);
+    }
+
+    @Benchmark
+    public String[] coordinateNamesBulk() {
+        return MuscleOptimizer.getCoordinateNames(model);
+    }
+
+    // as in OptimizeToolWorker, the copy is released right away so that native memory does not pile up
+    @Benchmark
+    public String copyModel() {
+        Model processedModel = new Model(model);
+        processedModel.setName(nameSet + "-optimized");
+        processedModel.setInputFileName("");
+        String name = processedModel.getName();
+        processedModel.delete();
+        return name;
+    }
+}
@@ -0,0 +1,122 @@
+/* --------------------------------------------------------------------------*
+*             Muscle Optimizer GUI: NameFilterBenchmark.java                 *
+* -------------------------------------------------------------------------- *
+*                                                                            *
+* Copyright 2015  Elena Ceseracciu, Luca Modenese                            *
+*                                                                            *
+* Licensed under the Apache License, Version 2.0 (the "License");            *
+* you may not use this file except in compliance with the License.           *
+* You may obtain a copy of the License at                                    *
+*                                                                            *
+*     http://www.apache.org/licenses/LICENSE-2.0                             *
+*                                                                            *
+* Unless required by applicable law or agreed to in writing, software        *
+* distributed under the License is distributed on an "AS IS" BASIS,          *
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+* See the License for the specific language governing permissions and        *
+* limitations under the License.                                             *
+* ---------------------------------------------------------------------------*/
+
+package org.opensim.muscleoptimizer;
+
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Filtering and selection in QuantityNameFilterTableModel, as driven by the
+ * filter text fields and the select/deselect buttons of the filter panels.
+ * Pure Java: no native library is needed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class NameFilterBenchmark {
+
+    @Param({ "synthetic-100", "synthetic-500", "synthetic-1000", "synthetic-5000", "example1", "example2" })
+    public String nameSet;
+
+    @Param({ "muscles", "coordinates" })
+    public String quantity;
+
+    private static final String[] columnNames = { "Name", "Selected" };
+
+    // restricting to the pattern already shown returns at once: benchmarks that restrict by side alternate between
+    // both sides, so that every invocation scans all the names
+    private static final String[] sidePatterns = { ".*_r", ".*_l" };
+
+    private String[] names;
+    private QuantityNameFilterTableModel tableModel;
+    private int numSideRestrictions;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        names = quantity.equals("muscles") ? BenchmarkNames.muscleNames(nameSet) : BenchmarkNames.coordinateNames(nameSet);
+        tableModel = new QuantityNameFilterTableModel(names, columnNames);
+    }
+
+    @Benchmark
+    public QuantityNameFilterTableModel createTableModel() {
+        return new QuantityNameFilterTableModel(names, columnNames);
+    }
+
+    // successive keystrokes in the filter field: the first one scans all the names, the next ones narrow the shown rows
+    @Benchmark
+    public int typeFilter() {
+        String typed = "";
+        for (char c : (quantity.equals("muscles") ? "glut_med" : "hip_flex").toCharArray()) {
+            typed += c;
+            tableModel.restrictNamesBy(".*" + typed + ".*");
+        }
+        return tableModel.getRowCount();
+    }
+
+    @Benchmark
+    public int restrictBySide() {
+        tableModel.restrictNamesBy(nextSidePattern());
+        return tableModel.getRowCount();
+    }
+
+    @Benchmark
+    public int selectAndCount() {
+        tableModel.restrictNamesBy(nextSidePattern());
+        tableModel.selectShown(true);
+        return tableModel.getNumSelected() + tableModel.getNumShownAndSelected();
+    }
+
+    // selection restored from the tool settings, as on AllDataChanged
+    @Benchmark
+    public int markSelectedNames() {
+        Vector<String> selectedNames = new Vector<String>(names.length / 2);
+        for (int i = 0; i < names.length; i += 2)
+            selectedNames.add(names[i]);
+        tableModel.markSelectedNames(selectedNames);
+        return tableModel.getNumSelected();
+    }
+
+    @Benchmark
+    public void selectedAsString(Blackhole blackhole) {
+        tableModel.selectShown(true);
+        blackhole.consume(tableModel.getSelectedAsString());
+        blackhole.consume(tableModel.getSelected());
+    }
+
+    private String nextSidePattern() {
+        return sidePatterns[numSideRestrictions++ & 1];
+    }
+}
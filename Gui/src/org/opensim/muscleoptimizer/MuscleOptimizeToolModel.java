@@ -21,16 +21,26 @@
 
 package org.opensim.muscleoptimizer;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
+import java.util.Set;
+import javax.swing.SwingUtilities;
 import org.netbeans.api.progress.ProgressHandle;
 import org.netbeans.api.progress.ProgressHandleFactory;
 import org.openide.DialogDisplayer;
 import org.openide.NotifyDescriptor;
 import org.openide.util.Cancellable;
-import org.opensim.modeling.ArrayStr;
 import org.opensim.modeling.Model;
+import org.opensim.modeling.Muscle;
 import org.opensim.modeling.OpenSimContext;
 import org.opensim.swingui.SwingWorker;
 import org.opensim.utils.ErrorDialog;
@@ -54,6 +64,22 @@ class OptionalFile {
 }
 
 
+//==================================================================
+// MuscleResult (helper class)
+//==================================================================
+// Parameters computed for one muscle, and the key of the inputs they were computed with
+class MuscleResult {
+   public final double optimalFiberLength;
+   public final double tendonSlackLength;
+   public final String inputsKey;
+   public MuscleResult(double optimalFiberLength, double tendonSlackLength, String inputsKey) {
+      this.optimalFiberLength = optimalFiberLength;
+      this.tendonSlackLength = tendonSlackLength;
+      this.inputsKey = inputsKey;
+   }
+}
+
+
 //==================================================================
 // OptimizeToolModel
 //==================================================================
@@ -78,14 +104,42 @@ public class MuscleOptimizeToolModel extends Observable implements Observer {
       private Model processedModel = null; //TODO why need this?
       OpenSimContext processedModelContext=null;
 
+      // Called back by the native optimizer, possibly from its worker threads
+      private class ProgressCallback extends MuscleOptimizerCallback {
+         private volatile boolean cancelled = false;
+         private boolean determinate = false;
+
+         @Override
+         public void muscleProcessed(int nProcessedMuscles, int nMuscles, String muscleName) {
+            if(!determinate) {
+               progressHandle.switchToDeterminate(nMuscles);
+               determinate = true;
+            }
+            progressHandle.progress(muscleName, nProcessedMuscles);
+         }
+
+         @Override
+         public boolean isCancelled() {
+            return cancelled;
+         }
+      }
+      private final ProgressCallback progressCallback = new ProgressCallback();
+      // Results of previous runs are reused for the muscles whose inputs did not change
+      private final String inputsKey;
+      private final Map<String, MuscleResult> previousResults;
+      private final Map<String, MuscleResult> newResults = new HashMap<String, MuscleResult>();
+
       OptimizeToolWorker() throws Exception {
          updateOptimizeTool();
+         inputsKey = computeInputsKey();
+         previousResults = new HashMap<String, MuscleResult>(muscleResults);
 
+         // the native optimizer polls the callback and stops at the next muscle or batch of poses;
+         // finished() is then called as usual once construct() returns
          progressHandle = ProgressHandleFactory.createHandle("Executing muscle scaling...",
                               new Cancellable() {
                                  public boolean cancel() {
-                                    result = false;
-                                    finished();
+                                    interrupt();
                                     return true;
                                  }
                               });
@@ -99,8 +153,8 @@ public class MuscleOptimizeToolModel extends Observable implements Observer {
          setExecuting(true);
       }
 
-      // TODO: we can't actually interrupt model optimizer
       public void interrupt() {
+         progressCallback.cancelled = true;
       }
 
       public Object construct() {
@@ -110,22 +164,76 @@ public class MuscleOptimizeToolModel extends Observable implements Observer {
             System.out.println("ModelOptimizer...");
             processedModelContext = OpenSimDB.getInstance().createContext(processedModel);
 
-            if(referenceModel!=null)
-                //TODO: check if I should use the pathToSubject or not, to save output files
-             if (!optimizeTool.getMuscleOptimizer().processModel(processedModel, referenceModel, optimizeTool.get_pathToSubject())){
-               result = false;
-               return this;
+            if(referenceModel!=null) {
+               // reused results are applied first, so that the output model file written by processModel includes them
+               List<String> musclesToOptimize = new ArrayList<String>();
+               for (String muscleName : getEnabledMuscleNames(processedModel)) {
+                  MuscleResult previousResult = previousResults.get(muscleName);
+                  if (previousResult != null && previousResult.inputsKey.equals(inputsKey)) {
+                     Muscle muscle = processedModel.getMuscles().get(muscleName);
+                     muscle.setOptimalFiberLength(previousResult.optimalFiberLength);
+                     muscle.setTendonSlackLength(previousResult.tendonSlackLength);
+                     newResults.put(muscleName, previousResult);
+                  }
+                  else
+                     musclesToOptimize.add(muscleName);
+               }
+               System.out.println("Reusing previous results for " + newResults.size() + " muscles, optimizing " + musclesToOptimize.size() + " muscles");
+
+               if (musclesToOptimize.isEmpty())
+                  printOutputModel();
+               else
+                  result = optimizeMuscles(musclesToOptimize);
             }
          }
 
          return this;
       }
 
+      private boolean optimizeMuscles(List<String> musclesToOptimize) {
+         MuscleOptimizer optimizer = optimizeTool.getMuscleOptimizer();
+         optimizer.setCallback(progressCallback);
+         boolean success;
+         try {
+            // the subset is passed as is: the muscles property (part of the settings) is left untouched
+            //TODO: check if I should use the pathToSubject or not, to save output files
+            success = optimizer.processModel(processedModel, referenceModel, musclesToOptimize.toArray(new String[musclesToOptimize.size()]), optimizeTool.get_pathToSubject());
+         } finally {
+            optimizer.setCallback(null);
+         }
+         if (!success || progressCallback.isCancelled())
+            return false;
+
+         // only muscles the report marks as optimized are reused, the others are tried again in the next run;
+         // report ordinals follow the order of the muscles in the model, not the order of musclesToOptimize
+         MuscleOptimizerReport report = optimizer.getReport();
+         for (int muscleOrdinal = 0; muscleOrdinal < report.getNumMuscles(); ++muscleOrdinal) {
+            if (!report.isMuscleOptimized(muscleOrdinal))
+               continue;
+            String muscleName = report.getMuscleName(muscleOrdinal);
+            Muscle optimizedMuscle = processedModel.getMuscles().get(muscleName);
+            newResults.put(muscleName, new MuscleResult(optimizedMuscle.getOptimalFiberLength(), optimizedMuscle.getTendonSlackLength(), inputsKey));
+         }
+         return true;
+      }
+
+      private void printOutputModel() {
+         MuscleOptimizer optimizer = optimizeTool.getMuscleOptimizer();
+         String outputModelFile = optimizer.get_output_model_file();
+         if (FileUtils.effectivelyNull(outputModelFile))
+            return;
+         if (!new File(outputModelFile).isAbsolute())
+            outputModelFile = optimizeTool.get_pathToSubject() + outputModelFile;
+         processedModel.print(outputModelFile);
+      }
+
       @Override
       public void finished() {
          progressHandle.finish();
+         progressCallback.delete();
 
          if(result) {
+            muscleResults.putAll(newResults);
             OpenSimDB.getInstance().replaceModel(optimizedModel, processedModel, processedModelContext);
             optimizedModel = processedModel;
             if(ViewDB.getInstance().getModelGuiElements(optimizedModel)!=null)
@@ -154,8 +262,12 @@ public class MuscleOptimizeToolModel extends Observable implements Observer {
    private Model unoptimizedModel = null;  //Working copy to optimize inplace
    private Model optimizedModel = null;
    private Model referenceModel = null;
+   private final Map<String, MuscleResult> muscleResults = new HashMap<String, MuscleResult>();
 
    private boolean modifiedSinceLastExecute = true;
+   // Operations not notified to observers yet: changes made while handling one EDT event
+   // (e.g. a selection loaded from file, or select all) are notified once, by notifyPendingOperations
+   private final Set<Operation> pendingOperations = EnumSet.noneOf(Operation.class);
 
    private boolean executing = false;
    private boolean cleanupAfterExecuting = false;  // Keep track if cleaning up needs to be done on execution finish vs. dialog close
@@ -180,6 +292,7 @@ public class MuscleOptimizeToolModel extends Observable implements Observer {
    public void updateReferenceModel(String refModelFilename){
         optimizeTool.set_reference_model(refModelFilename);
         referenceModel = optimizeTool.loadReferenceModel();
+        muscleResults.clear(); // the file might have changed on disk
    }
 
    //------------------------------------------------------------------------
@@ -203,6 +316,36 @@ public class MuscleOptimizeToolModel extends Observable implements Observer {
       }
    }
 
+   // Everything, besides the muscle selection, that the result of a muscle depends on
+   private String computeInputsKey() {
+      MuscleOptimizer optimizer = optimizeTool.getMuscleOptimizer();
+      StringBuilder key = new StringBuilder();
+      key.append(optimizeTool.get_reference_model()).append('|')
+         .append(optimizer.get_n_evaluation_points()).append('|')
+         .append(optimizer.get_min_degrees_increment()).append('|')
+         .append(optimizer.get_sampling_strategy()).append('|')
+         .append(optimizer.get_max_poses_per_muscle()).append('|')
+         .append(optimizer.get_template_mode()).append('|')
+         .append(optimizer.get_mtu_length_surrogate()).append('|')
+         .append(optimizer.get_mtu_length_surrogate_tolerance()).append('|');
+      for (String coordinateName : optimizer.getSelectedCoordinates())
+         key.append(coordinateName).append(',');
+      return key.toString();
+   }
+
+   // Muscles of the model selected by the muscles property (same rules as the native optimizer)
+   private List<String> getEnabledMuscleNames(Model model) {
+      String[] selection = optimizeTool.getMuscleOptimizer().getSelectedMuscles();
+      boolean allMuscles = selection.length == 0 || selection[0].equals("ALL") || selection[0].equals("");
+      Set<String> selectedNames = new HashSet<String>(Arrays.asList(selection));
+      List<String> enabledNames = new ArrayList<String>();
+      for (String muscleName : MuscleOptimizer.getMuscleNames(model)) {
+         if (allMuscles || selectedNames.contains(muscleName))
+            enabledNames.add(muscleName);
+      }
+      return enabledNames;
+   }
+
    public void interrupt(boolean promptToKeepPartialResult) {
       if(worker!=null) worker.interrupt();
    }
@@ -221,8 +364,7 @@ public class MuscleOptimizeToolModel extends Observable implements Observer {
    private void setExecuting(boolean executing) {
       if(this.executing != executing) {
          this.executing = executing;
-         setChanged();
-         notifyObservers(Operation.ExecutionStateChanged);
+         scheduleNotification(Operation.ExecutionStateChanged);
       }
    }
    public boolean isExecuting() {
@@ -235,8 +377,35 @@ public class MuscleOptimizeToolModel extends Observable implements Observer {
 
    private void setModified(Operation change) {
       modifiedSinceLastExecute = true;
-      setChanged(); // need to call this before calling notifyObservers
-      notifyObservers(change);
+      scheduleNotification(change);
+   }
+
+   //------------------------------------------------------------------------
+   // Observer notifications (on the EDT)
+   //------------------------------------------------------------------------
+
+   private void scheduleNotification(Operation change) {
+      boolean scheduled = !pendingOperations.isEmpty();
+      pendingOperations.add(change);
+      if (!scheduled) {
+         SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+               notifyPendingOperations();
+            }
+         });
+      }
+   }
+
+   private void notifyPendingOperations() {
+      // observers reload everything on AllDataChanged, so it covers the other data operations
+      if (pendingOperations.contains(Operation.AllDataChanged))
+         pendingOperations.retainAll(EnumSet.of(Operation.AllDataChanged, Operation.ExecutionStateChanged));
+      Operation[] operations = pendingOperations.toArray(new Operation[pendingOperations.size()]);
+      pendingOperations.clear();
+      for (Operation operation : operations) {
+         setChanged(); // need to call this before calling notifyObservers
+         notifyObservers(operation);
+      }
    }
    private void resetModified() {
       modifiedSinceLastExecute = false;
@@ -320,26 +489,42 @@ public class MuscleOptimizeToolModel extends Observable implements Observer {
        return optimizeTool.getMuscleOptimizer().get_min_degrees_increment();
    }
 
-   public void setCoordinates(ArrayStr coords)
+   public void setCoordinates(String[] coords)
    {
        optimizeTool.getMuscleOptimizer().setCoordinates(coords);
        setModified(Operation.CoordinatesChanged);
    }
 
-   public ArrayStr getCoordinates()
+   /** Selection changes of the coordinates table: the tool is updated once per change, and only if the selection differs */
+   void setCoordinates(QuantityNameSelectionEvent change)
    {
-       return optimizeTool.getMuscleOptimizer().getCoordinates();
+       if (Arrays.equals(change.getSelected(), getCoordinates()))
+           return;
+       setCoordinates(change.getSelected());
    }
 
-   public void setMuscles(ArrayStr muscles)
+   public String[] getCoordinates()
+   {
+       return optimizeTool.getMuscleOptimizer().getSelectedCoordinates();
+   }
+
+   public void setMuscles(String[] muscles)
    {
        optimizeTool.getMuscleOptimizer().setMuscles(muscles);
        setModified(Operation.MusclesChanged);
    }
 
-   public ArrayStr getMuscles()
+   /** Selection changes of the muscles table: the tool is updated once per change, and only if the selection differs */
+   void setMuscles(QuantityNameSelectionEvent change)
+   {
+       if (Arrays.equals(change.getSelected(), getMuscles()))
+           return;
+       setMuscles(change.getSelected());
+   }
+
+   public String[] getMuscles()
    {
-       return optimizeTool.get_MuscleOptimizer().getMuscles();
+       return optimizeTool.get_MuscleOptimizer().getSelectedMuscles();
    }
 
    //------------------------------------------------------------------------
@@ -385,6 +570,7 @@ public class MuscleOptimizeToolModel extends Observable implements Observer {
       }
       else{
 //         ikCommonModel.deleteObservers();
+         pendingOperations.clear(); // the tool is gone, observers must not read it
          optimizeTool = null;
          System.gc();
       }
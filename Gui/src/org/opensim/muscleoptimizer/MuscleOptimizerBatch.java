@@ -0,0 +1,259 @@
+/* --------------------------------------------------------------------------*
+*             Muscle Optimizer GUI: MuscleOptimizerBatch.java                *
+* -------------------------------------------------------------------------- *
+*                                                                            *
+* Copyright 2015  Elena Ceseracciu, Luca Modenese                            *
+*                                                                            *
+* Licensed under the Apache License, Version 2.0 (the "License");            *
+* you may not use this file except in compliance with the License.           *
+* You may obtain a copy of the License at                                    *
+*                                                                            *
+*     http://www.apache.org/licenses/LICENSE-2.0                             *
+*                                                                            *
+* Unless required by applicable law or agreed to in writing, software        *
+* distributed under the License is distributed on an "AS IS" BASIS,          *
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+* See the License for the specific language governing permissions and        *
+* limitations under the License.                                             *
+* ---------------------------------------------------------------------------*/
+
+package org.opensim.muscleoptimizer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.opensim.modeling.Model;
+
+//==================================================================
+// MuscleOptimizerBatch
+//==================================================================
+/**
+ * Headless entry point to the muscle optimizer: runs a list of jobs on a
+ * fixed pool of worker threads, without any dependency on the NetBeans
+ * platform or on the OpenSim GUI databases.
+ *
+ * Native objects are confined to the worker thread that creates them: each
+ * job builds its own MuscleOptimizeTool and target model, and each worker
+ * keeps the reference models it has loaded, so that jobs sharing a reference
+ * model read it from disk once per worker. Cached reference models are
+ * released when the batch is shut down. Setup files and models are parsed
+ * one at a time (see parseLock), optimizations run concurrently.
+ */
+public class MuscleOptimizerBatch {
+
+    static {
+        System.loadLibrary("muscleOptimizerJ");
+        MuscleOptimizeTool.registerTypes();
+    }
+
+    //========================================================================
+    // Job
+    //========================================================================
+    /**
+     * One optimization: target model, reference model and settings. Settings
+     * are read from a MuscleOptimizeTool setup file; when no setup file is
+     * given, all the muscles and coordinates are optimized with the default
+     * settings. Model file names given here override those of the setup file.
+     */
+    public static class Job {
+        private final String targetModelFile;
+        private final String referenceModelFile;
+        private final String settingsFile;
+        private final String outputModelFile;
+
+        public Job(String targetModelFile, String referenceModelFile, String settingsFile, String outputModelFile) {
+            this.targetModelFile = targetModelFile;
+            this.referenceModelFile = referenceModelFile;
+            this.settingsFile = settingsFile;
+            this.outputModelFile = outputModelFile;
+        }
+
+        public String getTargetModelFile() { return targetModelFile; }
+        public String getReferenceModelFile() { return referenceModelFile; }
+        public String getSettingsFile() { return settingsFile; }
+        public String getOutputModelFile() { return outputModelFile; }
+    }
+
+    //========================================================================
+    // Result
+    //========================================================================
+    public static class Result {
+        private final Job job;
+        private final boolean success;
+        private final String errorMessage;
+        private final int numberOfOptimizedMuscles;
+        private final int numberOfFallbacks;
+        private final long elapsedMillis;
+
+        Result(Job job, boolean success, String errorMessage, int numberOfOptimizedMuscles, int numberOfFallbacks, long elapsedMillis) {
+            this.job = job;
+            this.success = success;
+            this.errorMessage = errorMessage;
+            this.numberOfOptimizedMuscles = numberOfOptimizedMuscles;
+            this.numberOfFallbacks = numberOfFallbacks;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public Job getJob() { return job; }
+        public boolean isSuccess() { return success; }
+        public String getErrorMessage() { return errorMessage; }
+        public int getNumberOfOptimizedMuscles() { return numberOfOptimizedMuscles; }
+        public int getNumberOfFallbacks() { return numberOfFallbacks; }
+        public long getElapsedMillis() { return elapsedMillis; }
+    }
+
+    /** Notified on the worker thread as soon as a job is over, whatever its outcome */
+    public interface CompletionListener {
+        void jobCompleted(Result result);
+    }
+
+    //========================================================================
+    // WorkerThread: owns the native reference models it has loaded
+    //========================================================================
+    private static class WorkerThread extends Thread {
+        private final Runnable target;
+        private final Map<String, Model> referenceModels = new HashMap<String, Model>();
+
+        WorkerThread(Runnable target, String name) {
+            super(name);
+            setDaemon(true);
+            this.target = target;
+        }
+
+        @Override
+        public void run() {
+            try {
+                target.run();
+            } finally {
+                for (Model model : referenceModels.values())
+                    model.delete();
+                referenceModels.clear();
+            }
+        }
+
+        Model getReferenceModel(String fileName) throws Exception {
+            Model model = referenceModels.get(fileName);
+            if (model == null) {
+                model = new Model(fileName);
+                referenceModels.put(fileName, model);
+            }
+            return model;
+        }
+    }
+
+    private static final AtomicInteger batchCount = new AtomicInteger();
+
+    // the XML parsing and object registration behind the OpenSim file constructors are not thread safe:
+    // shared by all the batches, since they all parse through the same native library
+    private static final Object parseLock = new Object();
+
+    private final ExecutorService executor;
+
+    /** Batch running up to nWorkers jobs concurrently (<= 0 -> number of available cores) */
+    public MuscleOptimizerBatch(int nWorkers) {
+        if (nWorkers <= 0)
+            nWorkers = Runtime.getRuntime().availableProcessors();
+        final int batchId = batchCount.incrementAndGet();
+        executor = Executors.newFixedThreadPool(nWorkers, new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+            public Thread newThread(Runnable target) {
+                return new WorkerThread(target, "muscle-optimizer-" + batchId + "-" + threadCount.incrementAndGet());
+            }
+        });
+    }
+
+    //------------------------------------------------------------------------
+    // Submission
+    //------------------------------------------------------------------------
+
+    public Future<Result> submit(Job job) {
+        return submit(job, null);
+    }
+
+    /** Queue a job; the listener (if any) is called on the worker thread before the future completes */
+    public Future<Result> submit(final Job job, final CompletionListener listener) {
+        FutureTask<Result> task = new FutureTask<Result>(new Callable<Result>() {
+            public Result call() {
+                Result result = runJob(job);
+                if (listener != null)
+                    listener.jobCompleted(result);
+                return result;
+            }
+        });
+        executor.execute(task);
+        return task;
+    }
+
+    public List<Future<Result>> submitAll(List<Job> jobs, CompletionListener listener) {
+        List<Future<Result>> futures = new ArrayList<Future<Result>>(jobs.size());
+        for (Job job : jobs)
+            futures.add(submit(job, listener));
+        return futures;
+    }
+
+    /** Stop accepting jobs; queued jobs are still run, and native objects are released when the workers terminate */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    //------------------------------------------------------------------------
+    // Execution (on a worker thread)
+    //------------------------------------------------------------------------
+
+    private static Result runJob(Job job) {
+        long start = System.currentTimeMillis();
+        MuscleOptimizeTool optimizeTool = null;
+        Model targetModel = null;
+        try {
+            if (job.getSettingsFile() != null && !job.getSettingsFile().equals("")) {
+                synchronized (parseLock) {
+                    optimizeTool = new MuscleOptimizeTool(job.getSettingsFile());
+                }
+            } else {
+                optimizeTool = new MuscleOptimizeTool();
+                optimizeTool.getMuscleOptimizer().set_apply(true);
+            }
+            MuscleOptimizer optimizer = optimizeTool.getMuscleOptimizer();
+            if (!optimizer.get_apply())
+                return new Result(job, false, "apply is false, model not optimized", 0, 0, System.currentTimeMillis() - start);
+
+            String targetModelFile = job.getTargetModelFile() != null ? job.getTargetModelFile() : optimizeTool.get_model();
+            String referenceModelFile = job.getReferenceModelFile() != null ? job.getReferenceModelFile() : optimizeTool.get_reference_model();
+            if (job.getOutputModelFile() != null) {
+                optimizer.set_output_model_file(new File(job.getOutputModelFile()).getAbsolutePath());
+                optimizeTool.setPrintResultFiles(true);
+            }
+
+            Model referenceModel;
+            synchronized (parseLock) {
+                targetModel = new Model(targetModelFile);
+                referenceModel = ((WorkerThread) Thread.currentThread()).getReferenceModel(referenceModelFile);
+            }
+
+            boolean success = optimizer.processModel(targetModel, referenceModel, optimizeTool.getPathToSubject());
+            return new Result(job, success, success ? "" : "optimization failed",
+                    optimizer.getNumberOfOptimizedMuscles(), optimizer.getNumberOfFallbacks(), System.currentTimeMillis() - start);
+        } catch (Exception ex) {
+            return new Result(job, false, ex.getMessage(), 0, 0, System.currentTimeMillis() - start);
+        } finally {
+            if (targetModel != null)
+                targetModel.delete();
+            if (optimizeTool != null)
+                optimizeTool.delete();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/* --------------------------------------------------------------------------*
+*             Muscle Optimizer GUI: MuscleSampleDumpReader.java              *
+* -------------------------------------------------------------------------- *
+*                                                                            *
+* Copyright 2015  Elena Ceseracciu, Luca Modenese                            *
+*                                                                            *
+* Licensed under the Apache License, Version 2.0 (the "License");            *
+* you may not use this file except in compliance with the License.           *
+* You may obtain a copy of the License at                                    *
+*                                                                            *
+*     http://www.apache.org/licenses/LICENSE-2.0                             *
+*                                                                            *
+* Unless required by applicable law or agreed to in writing, software        *
+* distributed under the License is distributed on an "AS IS" BASIS,          *
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+* See the License for the specific language governing permissions and        *
+* limitations under the License.                                             *
+* ---------------------------------------------------------------------------*/
+
+package org.opensim.muscleoptimizer;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+//==================================================================
+// MuscleSampleDumpReader
+//==================================================================
+/**
+ * Reader of the sample dump files written by the muscle optimizer (see the
+ * sample_dump_file property and MuscleSampleDump.h for the layout). Only the
+ * index is read when the file is opened; the block of a muscle is memory-mapped
+ * when it is requested, and its columns are views on the mapped file.
+ */
+public class MuscleSampleDumpReader {
+
+    private static final byte[] magic = { 'M', 'O', 'S', 'M', 'P', 'D', '0', '1' };
+    private static final int headerLength = 32;
+
+    //========================================================================
+    // MuscleSamples: columns of one muscle
+    //========================================================================
+    public static class MuscleSamples {
+        private final String muscleName;
+        private final List<String> coordinateNames;
+        private final int nRows;
+        private final ByteBuffer block;
+
+        MuscleSamples(String muscleName, List<String> coordinateNames, int nRows, ByteBuffer block) {
+            this.muscleName = muscleName;
+            this.coordinateNames = coordinateNames;
+            this.nRows = nRows;
+            this.block = block;
+        }
+
+        public String getMuscleName() { return muscleName; }
+        public List<String> getCoordinateNames() { return coordinateNames; }
+        public int getNumRows() { return nRows; }
+
+        public LongBuffer getPoseIndices() { return column(0).asLongBuffer(); }
+        public DoubleBuffer getCoordinateValues(int coordinateIndex) { return column(1 + coordinateIndex).asDoubleBuffer(); }
+        public DoubleBuffer getNormalizedFiberLengths() { return quantityColumn(0); }
+        public DoubleBuffer getNormalizedTendonLengths() { return quantityColumn(1); }
+        public DoubleBuffer getPennationAngles() { return quantityColumn(2); }
+        public DoubleBuffer getTemplateMTULengths() { return quantityColumn(3); }
+        public DoubleBuffer getTargetMTULengths() { return quantityColumn(4); }
+
+        private DoubleBuffer quantityColumn(int quantityIndex) {
+            return column(1 + coordinateNames.size() + quantityIndex).asDoubleBuffer();
+        }
+        private ByteBuffer column(int columnIndex) {
+            ByteBuffer column = block.duplicate();
+            column.position(columnIndex * nRows * 8);
+            column.limit((columnIndex + 1) * nRows * 8);
+            return column.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    private static class IndexEntry {
+        long dataOffset;
+        long nRows;
+        List<String> coordinateNames;
+    }
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final Map<String, IndexEntry> index = new LinkedHashMap<String, IndexEntry>();
+
+    public MuscleSampleDumpReader(String fileName) throws IOException {
+        file = new RandomAccessFile(fileName, "r");
+        channel = file.getChannel();
+        try {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, headerLength).order(ByteOrder.LITTLE_ENDIAN);
+            byte[] fileMagic = new byte[magic.length];
+            header.get(fileMagic);
+            if (!Arrays.equals(fileMagic, magic))
+                throw new IOException(fileName + " is not a muscle sample dump file");
+            int nMuscles = header.getInt();
+            header.getInt();
+            long indexOffset = header.getLong();
+            long indexLength = header.getLong();
+
+            ByteBuffer indexBuffer = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, indexLength).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < nMuscles; ++i) {
+                IndexEntry entry = new IndexEntry();
+                entry.dataOffset = indexBuffer.getLong();
+                entry.nRows = indexBuffer.getLong();
+                int nCoordinates = (int) indexBuffer.getLong();
+                String muscleName = readString(indexBuffer);
+                String[] coordinateNames = new String[nCoordinates];
+                for (int c = 0; c < nCoordinates; ++c)
+                    coordinateNames[c] = readString(indexBuffer);
+                entry.coordinateNames = Collections.unmodifiableList(Arrays.asList(coordinateNames));
+                index.put(muscleName, entry);
+            }
+        } catch (IOException ex) {
+            file.close();
+            throw ex;
+        }
+    }
+
+    public List<String> getMuscleNames() {
+        return Collections.unmodifiableList(Arrays.asList(index.keySet().toArray(new String[index.size()])));
+    }
+
+    /** Samples of a muscle, or null if the muscle is not in the file */
+    public MuscleSamples getSamples(String muscleName) throws IOException {
+        IndexEntry entry = index.get(muscleName);
+        if (entry == null)
+            return null;
+        long blockLength = entry.nRows * 8 * (entry.coordinateNames.size() + 6);
+        ByteBuffer block = channel.map(FileChannel.MapMode.READ_ONLY, entry.dataOffset, blockLength);
+        return new MuscleSamples(muscleName, entry.coordinateNames, (int) entry.nRows, block);
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        int length = (int) buffer.getLong();
+        byte[] characters = new byte[length];
+        buffer.get(characters);
+        buffer.position(buffer.position() + (8 - length % 8) % 8);
+        return new String(characters, "UTF-8");
+    }
+}
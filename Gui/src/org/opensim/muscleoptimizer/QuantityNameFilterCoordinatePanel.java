@@ -38,7 +38,6 @@ import javax.swing.event.TableModelListener;
 import org.openide.DialogDisplayer;
 import org.openide.NotifyDescriptor;
 import org.opensim.modeling.ArrayObjPtr;
-import org.opensim.modeling.ArrayStr;
 import org.opensim.modeling.ForceSet;
 import org.opensim.modeling.Model;
 import org.opensim.modeling.ObjectGroup;
@@ -46,12 +45,15 @@ import org.opensim.view.pub.OpenSimDB;
 import org.opensim.view.pub.ViewDB;
 
 public class QuantityNameFilterCoordinatePanel extends javax.swing.JPanel implements Observer, TableModelListener,
-                                                       DocumentListener
+                                                       QuantityNameSelectionListener, DocumentListener
 {
    private MuscleOptimizeToolModel optimizeToolModel;
    private QuantityNameFilterTableModel tableModel;
+   private QuantityNameFilterUpdater filterUpdater;
    private String pattern="";
    private Model currentModel=null;
+   // names of the coordinates of the original model, which does not change during the life of the tool
+   private final String[] allAvailableCoords;
    ArrayList<String> metaCharacters=new ArrayList<String>();
 
    public QuantityNameFilterCoordinatePanel(MuscleOptimizeToolModel optimizeToolModel) {
@@ -63,38 +65,19 @@ public class QuantityNameFilterCoordinatePanel extends javax.swing.JPanel implem
       FilterTextField.setText(getPattern());
       this.optimizeToolModel=optimizeToolModel;
 
-      ArrayStr coordNames= new ArrayStr("");
-      optimizeToolModel.getOriginalModel().getCoordinateSet().getNames(coordNames);
-      String[] allAvailableCoords= new String[coordNames.size()];
-      for(int i=0;i<coordNames.size(); i++){
-          allAvailableCoords[i]= coordNames.get(i);
-      }
-      String selectedString="";
-      ArrayStr currentSelectedCoords=optimizeToolModel.getCoordinates();
-      if (currentSelectedCoords.size() > 0 && (currentSelectedCoords.get(0) == "ALL" || currentSelectedCoords.get(0) == ""))
-          currentSelectedCoords=coordNames;
-      boolean first=true;
-      for(int i=0;i<currentSelectedCoords.size(); i++){
-        if (first){
-            selectedString += currentSelectedCoords.get(i);
-            first=false;
-        }
-        else
-            selectedString += ", "+currentSelectedCoords.get(i);
-      }
-
-       String[] preSelectedList = selectedString.split(",|\\+");
-       Vector<String> selectedVec = new Vector<String>();
-       for(int i=0; i<preSelectedList.length; i++){
-           String trimmed=preSelectedList[i].trim();
-           selectedVec.add(trimmed);
-       }
+      allAvailableCoords = MuscleOptimizer.getCoordinateNames(optimizeToolModel.getOriginalModel());
+      String[] currentSelectedCoords=optimizeToolModel.getCoordinates();
+      if (currentSelectedCoords.length > 0 && (currentSelectedCoords[0].equals("ALL") || currentSelectedCoords[0].equals("")))
+          currentSelectedCoords=allAvailableCoords;
+       Vector<String> selectedVec = splitSelectedNames(currentSelectedCoords);
        jTable1.putClientProperty("terminateEditOnFocusLost", Boolean.TRUE);
        tableModel = new QuantityNameFilterTableModel(allAvailableCoords, new String[]{"Coordinate Name", "Selected"});
+       filterUpdater = new QuantityNameFilterUpdater(tableModel);
        jTable1.setModel(tableModel);
        jTable1.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
-       tableModel.addTableModelListener(this);
        tableModel.markSelectedNames(selectedVec);
+       tableModel.addTableModelListener(this);
+       tableModel.addSelectionListener(this);
        optimizeToolModel.addObserver(this);
        updateSelected();
    }
@@ -108,28 +91,22 @@ public class QuantityNameFilterCoordinatePanel extends javax.swing.JPanel implem
 
    public void coordinatesChanged()
    {
-      ArrayStr coordNames= new ArrayStr("");
-      optimizeToolModel.getOriginalModel().getCoordinateSet().getNames(coordNames);
-      String selectedString="";
-      ArrayStr currentSelectedCoords=optimizeToolModel.getCoordinates();
-      if (currentSelectedCoords.size() ==  0 || (currentSelectedCoords.size() > 0 && (currentSelectedCoords.get(0) == "ALL" || currentSelectedCoords.get(0) == "")))
-          currentSelectedCoords=coordNames;
-      boolean first=true;
-      for(int i=0;i<currentSelectedCoords.size(); i++){
-        if (first){
-            selectedString += currentSelectedCoords.get(i);
-            first=false;
-        }
-        else
-            selectedString += ", "+currentSelectedCoords.get(i);
-      }
-      String[] preSelectedList = selectedString.split(",|\\+");
-       Vector<String> selectedVec = new Vector<String>();
-       for(int i=0; i<preSelectedList.length; i++){
-           String trimmed=preSelectedList[i].trim();
-           selectedVec.add(trimmed);
+      String[] currentSelectedCoords=optimizeToolModel.getCoordinates();
+      if (currentSelectedCoords.length ==  0 || (currentSelectedCoords.length > 0 && (currentSelectedCoords[0].equals("ALL") || currentSelectedCoords[0].equals(""))))
+          currentSelectedCoords=allAvailableCoords;
+       tableModel.markSelectedNames(splitSelectedNames(currentSelectedCoords));
+   }
+
+   // Entries of the coordinates property may hold several names separated by ',' or '+'
+   private static Vector<String> splitSelectedNames(String[] selectedCoords)
+   {
+       Vector<String> selectedVec = new Vector<String>(selectedCoords.length);
+       for(int i=0; i<selectedCoords.length; i++){
+           String[] preSelectedList = selectedCoords[i].split(",|\\+");
+           for(int j=0; j<preSelectedList.length; j++)
+               selectedVec.add(preSelectedList[j].trim());
        }
-       tableModel.markSelectedNames(selectedVec);
+       return selectedVec;
    }
 
    /** This method is called from within the constructor to
@@ -297,6 +274,7 @@ public class QuantityNameFilterCoordinatePanel extends javax.swing.JPanel implem
 
     private void jShowAllButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_jShowAllButtonActionPerformed
         pattern = ".*";
+        filterUpdater.cancel();
         tableModel.restrictNamesBy(getPattern());
         // TODO add your handling code here:
     }//GEN-LAST:event_jShowAllButtonActionPerformed
@@ -339,17 +317,12 @@ public class QuantityNameFilterCoordinatePanel extends javax.swing.JPanel implem
     }
 
     public void tableChanged(TableModelEvent e) {
-        int type=e.getType();
         updateSelected();
+    }
 
-       String selectedCoords=getSelectedAsString();
-       String[] selectedCoordsList = selectedCoords.split(",|\\+");
-       ArrayStr selectedCoordVec = new ArrayStr();
-       for(int i=0; i<selectedCoordsList.length; i++){
-           String trimmed=selectedCoordsList[i].trim();
-           selectedCoordVec.append(trimmed);
-       }
-       optimizeToolModel.setCoordinates(selectedCoordVec);
+    // The selection of the tool follows the one of the table, one change per gesture
+    public void selectionChanged(QuantityNameSelectionEvent e) {
+        optimizeToolModel.setCoordinates(e);
     }
 
 
@@ -417,7 +390,8 @@ public class QuantityNameFilterCoordinatePanel extends javax.swing.JPanel implem
     }
     /**
      * Handle changes to the text in the FilterTextField
-     * a leading and a trailing .* are pre/appended for matching any substring
+     * a leading and a trailing .* are pre/appended for matching any substring;
+     * the table is updated by filterUpdater, off the EDT, once typing pauses
      */
     private void handlePatternChange()
     {
@@ -449,7 +423,7 @@ public class QuantityNameFilterCoordinatePanel extends javax.swing.JPanel implem
           rawPattern=newPattern;
       }
 
-       tableModel.restrictNamesBy(".*"+rawPattern+".*");
+       filterUpdater.schedule(".*"+rawPattern+".*");
     }
 
     public void addSelectionChangeListener(TableModelListener l)
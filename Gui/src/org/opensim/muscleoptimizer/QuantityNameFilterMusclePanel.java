@@ -40,7 +40,6 @@ import org.openide.DialogDisplayer;
 import org.openide.NotifyDescriptor;
 import org.opensim.modeling.ForceSet;
 import org.opensim.modeling.ArrayObjPtr;
-import org.opensim.modeling.ArrayStr;
 import org.opensim.modeling.Model;
 import org.opensim.modeling.ObjectGroup;
 import org.opensim.view.pub.OpenSimDB;
@@ -48,14 +47,17 @@ import org.opensim.view.pub.ViewDB;
 
 public class QuantityNameFilterMusclePanel extends javax.swing.JPanel
                                             implements Observer, TableModelListener,
-                                                       DocumentListener
+                                                       QuantityNameSelectionListener, DocumentListener
 {
    private MuscleOptimizeToolModel optimizeToolModel;
    private QuantityNameFilterTableModel tableModel;
+   private QuantityNameFilterUpdater filterUpdater;
    public enum FilterBy {RegularExpression, ModelGroup};
    private static FilterBy currentFilter = FilterBy.RegularExpression;
    private String   pattern="";
    private Model currentModel=null;
+   // names of the muscles of the original model, which does not change during the life of the tool
+   private final String[] allAvailableMuscles;
    ArrayList<String> metaCharacters=new ArrayList<String>();
 
    public QuantityNameFilterMusclePanel(MuscleOptimizeToolModel optimizeToolModel) {
@@ -67,32 +69,8 @@ public class QuantityNameFilterMusclePanel extends javax.swing.JPanel
        FilterTextField.setText(getPattern());
        this.optimizeToolModel=optimizeToolModel;
 
-       ArrayStr muscleNames= new ArrayStr("");
-       optimizeToolModel.getOriginalModel().getMuscles().getNames(muscleNames);
-       String[] allAvailableMuscles= new String[muscleNames.size()];
-       for(int i=0;i<muscleNames.size(); i++){
-          allAvailableMuscles[i]= muscleNames.get(i);
-       }
-
-      String selectedStringMuscles="";
-      boolean first=true;
-      ArrayStr currentSelectedMuscles=optimizeToolModel.getMuscles();
-      if (currentSelectedMuscles.size() > 0 && (currentSelectedMuscles.get(0) == "ALL" || currentSelectedMuscles.get(0) == ""))
-          currentSelectedMuscles=muscleNames;
-      for(int i=0;i<currentSelectedMuscles.size(); i++){
-        if (first){
-            selectedStringMuscles += currentSelectedMuscles.get(i);
-            first=false;
-        }
-        else
-            selectedStringMuscles += ", "+currentSelectedMuscles.get(i);
-      }
-       String[] preSelectedList = selectedStringMuscles.split(",|\\+");
-       Vector<String> selectedVec = new Vector<String>();
-       for(int i=0; i<preSelectedList.length; i++){
-           String trimmed=preSelectedList[i].trim();
-           selectedVec.add(trimmed);
-       }
+       allAvailableMuscles = MuscleOptimizer.getMuscleNames(optimizeToolModel.getOriginalModel());
+       Vector<String> selectedVec = getSelectedMuscleNames();
         if (currentFilter.equals(FilterBy.RegularExpression)){
            jPatternRadioButton.setSelected(true);
         }
@@ -104,10 +82,12 @@ public class QuantityNameFilterMusclePanel extends javax.swing.JPanel
 
        jTable1.putClientProperty("terminateEditOnFocusLost", Boolean.TRUE);
        tableModel = new QuantityNameFilterTableModel(allAvailableMuscles, new String[]{"Muscle Name", "Selected"});
+       filterUpdater = new QuantityNameFilterUpdater(tableModel);
        jTable1.setModel(tableModel);
        jTable1.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
-       tableModel.addTableModelListener(this);
        tableModel.markSelectedNames(selectedVec);
+       tableModel.addTableModelListener(this);
+       tableModel.addSelectionListener(this);
        optimizeToolModel.addObserver(this);
        updateSelected();
    }
@@ -121,33 +101,22 @@ public class QuantityNameFilterMusclePanel extends javax.swing.JPanel
 
    public void musclesChanged()
    {
-       ArrayStr muscleNames= new ArrayStr("");
-       optimizeToolModel.getOriginalModel().getMuscles().getNames(muscleNames);
-       String[] allAvailableMuscles= new String[muscleNames.size()];
-       for(int i=0;i<muscleNames.size(); i++){
-          allAvailableMuscles[i]= muscleNames.get(i);
-       }
+       tableModel.markSelectedNames(getSelectedMuscleNames());
+   }
 
-      String selectedStringMuscles="";
-      boolean first=true;
-      ArrayStr currentSelectedMuscles=optimizeToolModel.getMuscles();
-      if (currentSelectedMuscles.size() > 0 && (currentSelectedMuscles.get(0) == "ALL" || currentSelectedMuscles.get(0) == ""))
-          currentSelectedMuscles=muscleNames;
-      for(int i=0;i<currentSelectedMuscles.size(); i++){
-        if (first){
-            selectedStringMuscles += currentSelectedMuscles.get(i);
-            first=false;
-        }
-        else
-            selectedStringMuscles += ", "+currentSelectedMuscles.get(i);
-      }
-       String[] preSelectedList = selectedStringMuscles.split(",|\\+");
-       Vector<String> selectedVec = new Vector<String>();
-       for(int i=0; i<preSelectedList.length; i++){
-           String trimmed=preSelectedList[i].trim();
-           selectedVec.add(trimmed);
+   // Muscles selected in the tool (all of them for ALL); entries may hold several names separated by ',' or '+'
+   private Vector<String> getSelectedMuscleNames()
+   {
+      String[] currentSelectedMuscles=optimizeToolModel.getMuscles();
+      if (currentSelectedMuscles.length > 0 && (currentSelectedMuscles[0].equals("ALL") || currentSelectedMuscles[0].equals("")))
+          currentSelectedMuscles=allAvailableMuscles;
+       Vector<String> selectedVec = new Vector<String>(currentSelectedMuscles.length);
+       for(int i=0; i<currentSelectedMuscles.length; i++){
+           String[] preSelectedList = currentSelectedMuscles[i].split(",|\\+");
+           for(int j=0; j<preSelectedList.length; j++)
+               selectedVec.add(preSelectedList[j].trim());
        }
-       tableModel.markSelectedNames(selectedVec);
+       return selectedVec;
    }
 
    /** This method is called from within the constructor to
@@ -369,6 +338,7 @@ public class QuantityNameFilterMusclePanel extends javax.swing.JPanel
              tempPattern += "|";
       }
       // Filter visible items by musclesInGroup
+      filterUpdater.cancel();
       tableModel.restrictNamesBy(tempPattern);
    }
 
@@ -389,6 +359,7 @@ public class QuantityNameFilterMusclePanel extends javax.swing.JPanel
 
     private void jShowAllButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_jShowAllButtonActionPerformed
         pattern = ".*";
+        filterUpdater.cancel();
         tableModel.restrictNamesBy(getPattern());
 // TODO add your handling code here:
     }//GEN-LAST:event_jShowAllButtonActionPerformed
@@ -462,17 +433,12 @@ public class QuantityNameFilterMusclePanel extends javax.swing.JPanel
     }
 
     public void tableChanged(TableModelEvent e) {
-        int type=e.getType();
         updateSelected();
+    }
 
-       String selectedMuscles=getSelectedAsString();
-       String[] selectedMusclesList = selectedMuscles.split(",|\\+");
-       ArrayStr selectedMuscleVec = new ArrayStr();
-       for(int i=0; i<selectedMusclesList.length; i++){
-           String trimmed=selectedMusclesList[i].trim();
-           selectedMuscleVec.append(trimmed);
-       }
-       optimizeToolModel.setMuscles(selectedMuscleVec);
+    // The selection of the tool follows the one of the table, one change per gesture
+    public void selectionChanged(QuantityNameSelectionEvent e) {
+        optimizeToolModel.setMuscles(e);
     }
 
 
@@ -544,7 +510,8 @@ public class QuantityNameFilterMusclePanel extends javax.swing.JPanel
     }
     /**
      * Handle changes to the text in the FilterTextField
-     * a leading and a trailing .* are pre/appended for matching any substring
+     * a leading and a trailing .* are pre/appended for matching any substring;
+     * the table is updated by filterUpdater, off the EDT, once typing pauses
      */
     private void handlePatternChange()
     {
@@ -576,7 +543,7 @@ public class QuantityNameFilterMusclePanel extends javax.swing.JPanel
           rawPattern=newPattern;
       }
 
-       tableModel.restrictNamesBy(".*"+rawPattern+".*");
+       filterUpdater.schedule(".*"+rawPattern+".*");
     }
 
     private void setFilter(QuantityNameFilterMusclePanel.FilterBy currentFilter) {
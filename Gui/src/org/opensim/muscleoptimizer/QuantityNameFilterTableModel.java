@@ -22,7 +22,11 @@
 
 package org.opensim.muscleoptimizer;
 
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Vector;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.swing.table.AbstractTableModel;
 import org.opensim.plotter.PlotterSourceInterface;
@@ -36,8 +40,42 @@ public class QuantityNameFilterTableModel extends AbstractTableModel {
    PlotterSourceInterface source;
    String[] tableColumnNames= new String[2];
    String[] availableQuantities;
-   Vector<Integer> shownQuantities=new Vector<Integer>(50);
    boolean[] selected;
+   private View view;
+   private Map<String, Integer> quantityIndices;
+
+   //========================================================================
+   // View: rows shown for a pattern
+   //========================================================================
+   /**
+    * Immutable, so that views can be computed off the EDT (see computeView)
+    * and handed over to the table model with setView.
+    */
+   static final class View {
+      final String pattern;
+      // text that every shown name contains, when the rows were filtered by a plain ".*text.*" pattern (null otherwise):
+      // a pattern whose text extends it can only remove rows, so only the shown rows need to be matched again
+      final String literal;
+      // indices (in availableQuantities) of the shown rows: only the first numRows entries are valid
+      final int[] rows;
+      final int numRows;
+
+      View(String pattern, String literal, int[] rows, int numRows) {
+         this.pattern = pattern;
+         this.literal = literal;
+         this.rows = rows;
+         this.numRows = numRows;
+      }
+   }
+
+   // Compiled patterns, least recently used first: typing and deleting characters keeps going back to the same patterns
+   private static final int patternCacheSize = 32;
+   private final Map<String, Pattern> patternCache = new LinkedHashMap<String, Pattern>(patternCacheSize, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+         return size() > patternCacheSize;
+      }
+   };
 
    public QuantityNameFilterTableModel(PlotterSourceInterface source, String[] columnNames) {
       System.arraycopy(columnNames, 0, tableColumnNames, 0, 2);
@@ -59,9 +97,10 @@ public class QuantityNameFilterTableModel extends AbstractTableModel {
       select(".*", false);
    }
     private void showAll() {
-        shownQuantities.clear();
+        int[] rows = new int[availableQuantities.length];
         for(int i=0;i<availableQuantities.length;i++)
-            shownQuantities.add(i);
+            rows[i] = i;
+        view = new View(null, "", rows, rows.length);
     }
 
    public int getColumnCount() {
@@ -69,7 +108,7 @@ public class QuantityNameFilterTableModel extends AbstractTableModel {
    }
 
    public int getRowCount() {
-      return shownQuantities.size();
+      return view.numRows;
    }
 
    public String getColumnName(int col) {
@@ -78,9 +117,9 @@ public class QuantityNameFilterTableModel extends AbstractTableModel {
 
    public Object getValueAt(int row, int col) {
       if (col==0)
-         return availableQuantities[shownQuantities.get(row)];
+         return availableQuantities[view.rows[row]];
       else
-         return selected[shownQuantities.get(row)];
+         return selected[view.rows[row]];
    }
   /*
    * JTable uses this method to determine the default renderer/
@@ -89,16 +128,20 @@ public class QuantityNameFilterTableModel extends AbstractTableModel {
    * rather than a check box.
    */
   public Class getColumnClass(int c) {
-      return getValueAt(0, c).getClass();
+      return c==0 ? String.class : Boolean.class;
   }
 
    void applyFilter(String regex) {
+      boolean[] previous = selected.clone();
       selected = source.filterByRegularExprssion(regex);
+      fireSelectionChanged(previous);
    }
 
     public void setValueAt(Object aValue, int row, int col) {
-        selected[shownQuantities.get(row)] = (Boolean)aValue;
+        boolean[] previous = selected.clone();
+        selected[view.rows[row]] = (Boolean)aValue;
         fireTableCellUpdated(row, col);
+        fireSelectionChanged(previous);
     }
 
     public boolean isCellEditable(int rowIndex, int columnIndex) {
@@ -113,70 +156,141 @@ public class QuantityNameFilterTableModel extends AbstractTableModel {
     }
     int getNumShownAndSelected() {
         int numShownAndSelected=0;
-        for(int i=0;i<shownQuantities.size(); i++)
-            numShownAndSelected += (selected[shownQuantities.get(i)]?1:0);
+        for(int i=0;i<view.numRows; i++)
+            numShownAndSelected += (selected[view.rows[i]]?1:0);
         return numShownAndSelected;
     }
 
     String getSelectedAsString() {
-        String selectedString="";
-        boolean first=true;
+        StringBuilder selectedString = new StringBuilder();
         for(int i=0;i<selected.length; i++){
             if (selected[i]){
-                if (first){
-                    selectedString += availableQuantities[i];
-                    first=false;
-                }
-                else
-                    selectedString += ", "+availableQuantities[i];;
+                if (selectedString.length() > 0)
+                    selectedString.append(", ");
+                selectedString.append(availableQuantities[i]);
             }
         }
-        return selectedString;
+        return selectedString.toString();
     }
 
     void markSelectedNames(Vector<String> names) {
+        boolean[] previous = selected.clone();
+        if (quantityIndices == null) {
+            // names are unique within the model sets they come from
+            quantityIndices = new HashMap<String, Integer>(2*availableQuantities.length);
+            for(int i=0; i<availableQuantities.length; i++)
+                quantityIndices.put(availableQuantities[i], i);
+        }
         for(int n=0; n<selected.length;n++){
             selected[n]=false;
         }
         for(int n=0; n<names.size();n++){
-            String name = names.get(n);
-            boolean found=false;
-            for(int i=0; i<availableQuantities.length && !found; i++){
-                if (availableQuantities[i].compareTo(name)==0)
-                    selected[i]=true;
-            }
+            Integer index = quantityIndices.get(names.get(n));
+            if (index != null)
+                selected[index]=true;
         }
         //fireTableCellUpdated(0, 0);
         fireTableDataChanged();
-
+        fireSelectionChanged(previous);
     }
 
     void restrictNamesBy(String pattern){
-      Pattern p = Pattern.compile(pattern, Pattern.CASE_INSENSITIVE);
-      shownQuantities.clear();
-      for(int i=0; i<availableQuantities.length ;i++){
-        //System.out.println("Match ["+availableQuantities[i]+"] against pattern "+pattern+" returns "+p.matcher(availableQuantities[i]).matches());
-        if (p.matcher(availableQuantities[i]).matches())
-            shownQuantities.add(i);
-      }
-      fireTableDataChanged();
+      if (pattern.equals(view.pattern))
+          return;
+      setView(computeView(pattern, view));
+    }
+
+    View getView() {
+        return view;
+    }
+
+    void setView(View newView) {
+        view = newView;
+        fireTableDataChanged();
+    }
 
+    /**
+     * Rows matching pattern, starting from the base view when the pattern narrows it.
+     * Safe to call from any thread: names never change after construction, and
+     * neither do views. Returns null if the calling thread is interrupted.
+     */
+    View computeView(String pattern, View base) {
+      Matcher matcher = getPattern(pattern).matcher("");
+      String literal = getLiteralText(pattern);
+      boolean narrowing = base.literal != null && literal != null && literal.contains(base.literal);
+      int numCandidates = narrowing ? base.numRows : availableQuantities.length;
+      int[] rows = new int[numCandidates];
+      int numRows = 0;
+      for(int i=0; i<numCandidates; i++){
+          if ((i & 255) == 255 && Thread.currentThread().isInterrupted())
+              return null;
+          int index = narrowing ? base.rows[i] : i;
+          if (matcher.reset(availableQuantities[index]).matches())
+              rows[numRows++] = index;
+      }
+      return new View(pattern, literal, rows, numRows);
     }
 
     void select(String pattern, boolean b) {
-      Pattern p = Pattern.compile(pattern, Pattern.CASE_INSENSITIVE);
-      for(int i=0; i<shownQuantities.size() ;i++){
-        if (p.matcher(availableQuantities[i]).matches())
-            selected[i]=b;
+      boolean[] previous = selected.clone();
+      Matcher matcher = getPattern(pattern).matcher("");
+      for(int i=0; i<view.numRows ;i++){
+        int index = view.rows[i];
+        if (matcher.reset(availableQuantities[index]).matches())
+            selected[index]=b;
       }
       fireTableDataChanged();
+      fireSelectionChanged(previous);
     }
 
     void selectShown(boolean b) {
-      for(int i=0; i<shownQuantities.size() ;i++){
-            selected[shownQuantities.get(i)]=b;
+      boolean[] previous = selected.clone();
+      for(int i=0; i<view.numRows ;i++){
+            selected[view.rows[i]]=b;
       }
       fireTableDataChanged();
+      fireSelectionChanged(previous);
+    }
+
+    //------------------------------------------------------------------------
+    // Selection events: one per change of the selection, whatever the number of names involved
+    //------------------------------------------------------------------------
+
+    void addSelectionListener(QuantityNameSelectionListener listener) {
+        listenerList.add(QuantityNameSelectionListener.class, listener);
+    }
+
+    void removeSelectionListener(QuantityNameSelectionListener listener) {
+        listenerList.remove(QuantityNameSelectionListener.class, listener);
+    }
+
+    private void fireSelectionChanged(boolean[] previous) {
+        if (listenerList.getListenerCount(QuantityNameSelectionListener.class) == 0)
+            return;
+        int numAdded=0, numRemoved=0;
+        for(int i=0;i<selected.length; i++){
+            if (selected[i] != previous[i]){
+                if (selected[i]) numAdded++; else numRemoved++;
+            }
+        }
+        if (numAdded+numRemoved == 0)
+            return;
+        String[] added = new String[numAdded];
+        String[] removed = new String[numRemoved];
+        numAdded=0;
+        numRemoved=0;
+        for(int i=0;i<selected.length; i++){
+            if (selected[i] != previous[i]){
+                if (selected[i]) added[numAdded++]=availableQuantities[i];
+                else removed[numRemoved++]=availableQuantities[i];
+            }
+        }
+        QuantityNameSelectionEvent event = new QuantityNameSelectionEvent(this, added, removed, getSelected());
+        Object[] listeners = listenerList.getListenerList();
+        for(int i=listeners.length-2; i>=0; i-=2){
+            if (listeners[i]==QuantityNameSelectionListener.class)
+                ((QuantityNameSelectionListener)listeners[i+1]).selectionChanged(event);
+        }
     }
 
     String[] getSelected()
@@ -191,4 +305,28 @@ public class QuantityNameFilterTableModel extends AbstractTableModel {
         }
         return sel;
     }
+
+    // the cache is shared by the EDT and the thread computing views
+    private Pattern getPattern(String pattern) {
+        synchronized (patternCache) {
+            Pattern p = patternCache.get(pattern);
+            if (p == null) {
+                p = Pattern.compile(pattern, Pattern.CASE_INSENSITIVE);
+                patternCache.put(pattern, p);
+            }
+            return p;
+        }
+    }
+
+    // text of a ".*text.*" pattern, or null if text has any regular expression syntax
+    private static String getLiteralText(String pattern) {
+        if (pattern.length() < 4 || !pattern.startsWith(".*") || !pattern.endsWith(".*"))
+            return null;
+        String text = pattern.substring(2, pattern.length()-2);
+        for(int i=0; i<text.length(); i++){
+            if ("\\^$.|?*+()[]{}".indexOf(text.charAt(i)) >= 0)
+                return null;
+        }
+        return text;
+    }
 }
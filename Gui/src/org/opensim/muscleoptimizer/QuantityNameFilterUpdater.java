@@ -0,0 +1,121 @@
+/* --------------------------------------------------------------------------*
+*          Muscle Optimizer GUI: QuantityNameFilterUpdater.java              *
+* -------------------------------------------------------------------------- *
+*                                                                            *
+* Copyright 2015  Elena Ceseracciu, Luca Modenese                            *
+*                                                                            *
+* Licensed under the Apache License, Version 2.0 (the "License");            *
+* you may not use this file except in compliance with the License.           *
+* You may obtain a copy of the License at                                    *
+*                                                                            *
+*     http://www.apache.org/licenses/LICENSE-2.0                             *
+*                                                                            *
+* Unless required by applicable law or agreed to in writing, software        *
+* distributed under the License is distributed on an "AS IS" BASIS,          *
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+* See the License for the specific language governing permissions and        *
+* limitations under the License.                                             *
+* ---------------------------------------------------------------------------*/
+
+package org.opensim.muscleoptimizer;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.PatternSyntaxException;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+//==================================================================
+// QuantityNameFilterUpdater
+//==================================================================
+/**
+ * Applies the patterns typed in a filter panel to its table model without
+ * blocking the EDT. Patterns are debounced, so that a burst of keystrokes
+ * is evaluated once; the rows matching the pattern are computed on a
+ * background thread, and the view is handed over to the table model on the
+ * EDT only if no newer pattern was scheduled (or view set) in the meantime.
+ *
+ * All methods must be called on the EDT.
+ */
+class QuantityNameFilterUpdater {
+
+    static final int debounceMillis = 150;
+
+    // one thread is enough for all the panels: evaluations are short, and stale ones are cancelled
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable target) {
+            Thread thread = new Thread(target, "muscle-optimizer-name-filter");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final QuantityNameFilterTableModel tableModel;
+    private final Timer debounceTimer;
+    private String pendingPattern;
+    private Future<?> evaluation;
+    // incremented whenever a pattern is scheduled or cancelled, so that stale evaluations are not published
+    private int generation;
+
+    QuantityNameFilterUpdater(QuantityNameFilterTableModel tableModel) {
+        this.tableModel = tableModel;
+        debounceTimer = new Timer(debounceMillis, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                evaluate();
+            }
+        });
+        debounceTimer.setRepeats(false);
+    }
+
+    /** Show the rows matching pattern once typing pauses for debounceMillis */
+    void schedule(String pattern) {
+        cancel();
+        pendingPattern = pattern;
+        debounceTimer.restart();
+    }
+
+    /** Drop the pending pattern, if any: used before the view is changed directly (e.g. Show All) */
+    void cancel() {
+        generation++;
+        debounceTimer.stop();
+        pendingPattern = null;
+        if (evaluation != null) {
+            evaluation.cancel(true);
+            evaluation = null;
+        }
+    }
+
+    private void evaluate() {
+        final String pattern = pendingPattern;
+        pendingPattern = null;
+        final QuantityNameFilterTableModel.View base = tableModel.getView();
+        if (pattern == null || pattern.equals(base.pattern))
+            return;
+        final int evaluationGeneration = ++generation;
+        evaluation = executor.submit(new Runnable() {
+            public void run() {
+                final QuantityNameFilterTableModel.View view;
+                try {
+                    view = tableModel.computeView(pattern, base);
+                } catch (PatternSyntaxException ex) {
+                    // incomplete pattern: keep the current rows until the next keystroke
+                    return;
+                }
+                if (view == null)
+                    return;
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        if (evaluationGeneration == generation && tableModel.getView() == base) {
+                            evaluation = null;
+                            tableModel.setView(view);
+                        }
+                    }
+                });
+            }
+        });
+    }
+}
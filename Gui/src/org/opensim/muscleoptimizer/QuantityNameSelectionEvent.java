@@ -0,0 +1,49 @@
+/* --------------------------------------------------------------------------*
+*           Muscle Optimizer GUI: QuantityNameSelectionEvent.java            *
+* -------------------------------------------------------------------------- *
+*                                                                            *
+* Copyright 2015  Elena Ceseracciu, Luca Modenese                            *
+*                                                                            *
+* Licensed under the Apache License, Version 2.0 (the "License");            *
+* you may not use this file except in compliance with the License.           *
+* You may obtain a copy of the License at                                    *
+*                                                                            *
+*     http://www.apache.org/licenses/LICENSE-2.0                             *
+*                                                                            *
+* Unless required by applicable law or agreed to in writing, software        *
+* distributed under the License is distributed on an "AS IS" BASIS,          *
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+* See the License for the specific language governing permissions and        *
+* limitations under the License.                                             *
+* ---------------------------------------------------------------------------*/
+
+package org.opensim.muscleoptimizer;
+
+import java.util.EventObject;
+
+//==================================================================
+// QuantityNameSelectionEvent
+//==================================================================
+/**
+ * Change of the names selected in a QuantityNameFilterTableModel, fired once
+ * per user gesture (a checkbox toggle, select/deselect all, a pattern or a
+ * selection loaded from the tool). Holds the names whose selection changed,
+ * and the whole selection after the change, in model order.
+ */
+class QuantityNameSelectionEvent extends EventObject {
+
+    private final String[] added;
+    private final String[] removed;
+    private final String[] selected;
+
+    QuantityNameSelectionEvent(QuantityNameFilterTableModel source, String[] added, String[] removed, String[] selected) {
+        super(source);
+        this.added = added;
+        this.removed = removed;
+        this.selected = selected;
+    }
+
+    String[] getAdded() { return added; }
+    String[] getRemoved() { return removed; }
+    String[] getSelected() { return selected; }
+}
@@ -0,0 +1,27 @@
+/* --------------------------------------------------------------------------*
+*          Muscle Optimizer GUI: QuantityNameSelectionListener.java          *
+* -------------------------------------------------------------------------- *
+*                                                                            *
+* Copyright 2015  Elena Ceseracciu, Luca Modenese                            *
+*                                                                            *
+* Licensed under the Apache License, Version 2.0 (the "License");            *
+* you may not use this file except in compliance with the License.           *
+* You may obtain a copy of the License at                                    *
+*                                                                            *
+*     http://www.apache.org/licenses/LICENSE-2.0                             *
+*                                                                            *
+* Unless required by applicable law or agreed to in writing, software        *
+* distributed under the License is distributed on an "AS IS" BASIS,          *
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+* See the License for the specific language governing permissions and        *
+* limitations under the License.                                             *
+* ---------------------------------------------------------------------------*/
+
+package org.opensim.muscleoptimizer;
+
+import java.util.EventListener;
+
+/** Notified on the EDT when the selection of a QuantityNameFilterTableModel changes */
+interface QuantityNameSelectionListener extends EventListener {
+    void selectionChanged(QuantityNameSelectionEvent e);
+}
@@ -19,6 +19,22 @@
 // Author: Elena Ceseracciu elena.ceseracciu@gmail.com
 
 #include <string>
+#include <vector>
+#include <map>
+#include <memory>
+#include <thread>
+#include <mutex>
+#include <atomic>
+#include <chrono>
+#include <fstream>
+#include <iomanip>
+#include <algorithm>
+#include <sys/stat.h>
+#ifdef _WIN32
+#include <windows.h>
+#else
+#include <dirent.h>
+#endif
 #include <OpenSim/OpenSim.h>
 #include <OpenSim/Common/Storage.h>
 #include <OpenSim/Common/IO.h>
@@ -37,6 +53,7 @@ using namespace std;
 using namespace OpenSim;
 
 static void PrintUsage(const char *aProgName, ostream &aOStream);
+static int RunBatch(const string& batchName, int nWorkers, const string& summaryFileName);
 
 int main(int argc, char **argv)
 {
@@ -50,6 +67,9 @@ int main(int argc, char **argv)
     // PARSE COMMAND LINE
     string inName;
     string option = "";
+    bool precomputeTemplates = false;
+    string batchName, summaryFileName;
+    int nWorkers = 1;
     if (argc < 2) {
         PrintUsage(argv[0], cout);
         exit(-1);
@@ -77,6 +97,42 @@ int main(int argc, char **argv)
                 inName = argv[i + 1];
                 break;
 
+                // Sample the reference model and write the template cache file
+            }
+            else if ((option == "-PrecomputeTemplates") || (option == "-PT")) {
+                if (argv[i + 1] == 0){
+                    PrintUsage(argv[0], cout);
+                    return(0);
+                }
+                inName = argv[i + 1];
+                precomputeTemplates = true;
+                break;
+
+                // Optimize all the subjects listed in a manifest file or found in a directory
+            }
+            else if ((option == "-Batch") || (option == "-B")) {
+                if (argv[i + 1] == 0){
+                    PrintUsage(argv[0], cout);
+                    return(0);
+                }
+                batchName = argv[++i];
+
+            }
+            else if ((option == "-Workers") || (option == "-W")) {
+                if (argv[i + 1] == 0){
+                    PrintUsage(argv[0], cout);
+                    return(0);
+                }
+                nWorkers = atoi(argv[++i]);
+
+            }
+            else if ((option == "-Summary") || (option == "-SU")) {
+                if (argv[i + 1] == 0){
+                    PrintUsage(argv[0], cout);
+                    return(0);
+                }
+                summaryFileName = argv[++i];
+
                 // Print a default setup file
             }
             else if ((option == "-PrintSetup") || (option == "-PS")) {
@@ -118,20 +174,30 @@ int main(int argc, char **argv)
     }
 
 
+    if (batchName != "")
+        return RunBatch(batchName, nWorkers, summaryFileName);
+
     try {
         // Construct models and read parameters file
         MuscleOptimizeTool* subject = new MuscleOptimizeTool(inName);
 
+        if (precomputeTemplates)
+        {
+            Model* referencemodel = subject->loadReferenceModel();
+            if (!referencemodel) throw Exception("muscleoptimizer: ERROR- No reference model specified.", __FILE__, __LINE__);
+
+            bool templatesWritten = subject->upd_MuscleOptimizer().precomputeTemplates(referencemodel, subject->getPathToSubject());
+            delete referencemodel;
+            delete subject;
+            return templatesWritten ? 0 : -1;
+        }
+
         Model* inputmodel = subject->loadInputModel();
         if (!inputmodel) throw Exception("muscleoptimizer: ERROR- No model specified.", __FILE__, __LINE__);
 
         Model* referencemodel = subject->loadReferenceModel();
         if (!referencemodel) throw Exception("muscleoptimizer: ERROR- No reference model specified.", __FILE__, __LINE__);
 
-        // Realize the topology and initialize state
-
-        SimTK::State& s = inputmodel->initSystem();
-
         if (!subject->isDefaultMuscleOptimizer() && subject->getMuscleOptimizer().get_apply())
         {
             MuscleOptimizer& optimizer = subject->upd_MuscleOptimizer();
@@ -167,6 +233,251 @@ void PrintUsage(const char *aProgName, ostream &aOStream)
     aOStream << "-Help, -H                           Print the command-line options for " << progName << ".\n";
     aOStream << "-PrintSetup, -PS                    Generates a template Setup file to customize optimizing\n";
     aOStream << "-Setup, -S        SetupFileName     Specify an xml setup file for optimizing a generic model.\n";
+    aOStream << "-PrecomputeTemplates, -PT  SetupFileName  Sample the reference model of the setup file and write its template_cache_file.\n";
+    aOStream << "-Batch, -B        Manifest/Directory  Optimize all the setup files listed in a manifest (one per line) or found (*.xml) in a directory.\n";
+    aOStream << "-Workers, -W      NumberOfWorkers   Number of subjects optimized concurrently in batch mode (default: 1, <= 0 -> number of available cores).\n";
+    aOStream << "-Summary, -SU     SummaryFileName   Write the batch summary table to a file, besides printing it.\n";
     aOStream << "-PropertyInfo, -PI                  Print help information for properties in setup files.\n";
 
 }
+
+//=============================================================================
+// BATCH MODE
+//=============================================================================
+namespace {
+
+    struct BatchSubjectResult
+    {
+        enum Outcome { Optimized, Skipped, Failed };
+        string subject;
+        Outcome outcome;
+        string notes;
+        double wallTime;
+        int nOptimizedMuscles;
+        int nFallbacks;
+    };
+
+    /* Reference models are read from disk once, and copied for each worker that needs them.
+       They are parsed under the same mutex as setup and input model files */
+    class ReferenceModelStore
+    {
+    public:
+        explicit ReferenceModelStore(std::mutex& loadMutex) : _loadMutex(loadMutex) {}
+
+        Model* createCopy(const string& fileName)
+        {
+            std::lock_guard<std::mutex> lock(_loadMutex);
+            std::map<string, std::unique_ptr<Model> >::iterator modelIt = _models.find(fileName);
+            if (modelIt == _models.end())
+            {
+                cout << "Loading reference model " << fileName << endl;
+                modelIt = _models.insert(std::make_pair(fileName, std::unique_ptr<Model>(new Model(fileName)))).first;
+            }
+            return new Model(*modelIt->second);
+        }
+        size_t getSize() const { return _models.size(); }
+
+    private:
+        std::mutex& _loadMutex;
+        std::map<string, std::unique_ptr<Model> > _models;
+    };
+
+    bool isDirectory(const string& path)
+    {
+        struct stat info;
+        return stat(path.c_str(), &info) == 0 && (info.st_mode & S_IFDIR) != 0;
+    }
+
+    bool hasXmlExtension(const string& fileName)
+    {
+        if (fileName.size() < 4)
+            return false;
+        string extension = fileName.substr(fileName.size() - 4);
+        std::transform(extension.begin(), extension.end(), extension.begin(), ::tolower);
+        return extension == ".xml";
+    }
+
+    /* Setup files of a batch: *.xml files of a directory, or lines of a manifest file (# starts a comment).
+       Relative paths in a manifest are relative to the manifest itself. */
+    bool listSetupFiles(const string& batchName, std::vector<string>& setupFiles)
+    {
+        if (isDirectory(batchName))
+        {
+            string directory = batchName;
+            if (directory[directory.size() - 1] != '/' && directory[directory.size() - 1] != '\\')
+                directory += "/";
+#ifdef _WIN32
+            WIN32_FIND_DATAA findData;
+            HANDLE findHandle = FindFirstFileA((directory + "*.xml").c_str(), &findData);
+            if (findHandle == INVALID_HANDLE_VALUE)
+                return true;
+            do {
+                if (!(findData.dwFileAttributes & FILE_ATTRIBUTE_DIRECTORY))
+                    setupFiles.push_back(directory + findData.cFileName);
+            } while (FindNextFileA(findHandle, &findData));
+            FindClose(findHandle);
+#else
+            DIR* dir = opendir(directory.c_str());
+            if (dir == NULL)
+                return false;
+            while (struct dirent* entry = readdir(dir))
+            {
+                string fileName = entry->d_name;
+                if (hasXmlExtension(fileName) && !isDirectory(directory + fileName))
+                    setupFiles.push_back(directory + fileName);
+            }
+            closedir(dir);
+#endif
+            std::sort(setupFiles.begin(), setupFiles.end());
+            return true;
+        }
+
+        std::ifstream manifest(batchName.c_str());
+        if (!manifest)
+            return false;
+        string manifestDirectory = IO::getParentDirectory(batchName);
+        string line;
+        while (std::getline(manifest, line))
+        {
+            size_t commentStart = line.find('#');
+            if (commentStart != string::npos)
+                line.erase(commentStart);
+            size_t first = line.find_first_not_of(" \t\r");
+            if (first == string::npos)
+                continue;
+            size_t last = line.find_last_not_of(" \t\r");
+            string setupFile = line.substr(first, last - first + 1);
+            bool absolute = setupFile[0] == '/' || setupFile[0] == '\\' || (setupFile.size() > 1 && setupFile[1] == ':');
+            setupFiles.push_back(absolute ? setupFile : manifestDirectory + setupFile);
+        }
+        return true;
+    }
+
+    void printSummary(const std::vector<BatchSubjectResult>& results, ostream& out)
+    {
+        size_t subjectWidth = 7;
+        for (auto& result : results)
+            subjectWidth = std::max(subjectWidth, result.subject.size());
+        out << std::left << std::setw(subjectWidth + 2) << "subject" << std::setw(10) << "status" << std::right << std::setw(14) << "wall time [s]"
+            << std::setw(20) << "muscles optimized" << std::setw(12) << "fallbacks" << "   notes" << endl;
+        static const char* outcomeNames[] = { "OK", "SKIPPED", "FAILED" };
+        for (auto& result : results)
+        {
+            out << std::left << std::setw(subjectWidth + 2) << result.subject << std::setw(10) << outcomeNames[result.outcome] << std::right
+                << std::setw(14) << std::fixed << std::setprecision(2) << result.wallTime
+                << std::setw(20) << result.nOptimizedMuscles << std::setw(12) << result.nFallbacks << "   " << result.notes << endl;
+        }
+    }
+
+    /* Optimize one subject; any failure is reported in the result instead of being propagated */
+    void runBatchSubject(const string& setupFile, ReferenceModelStore& referenceModels, std::map<string, std::unique_ptr<Model> >& workerReferenceModels,
+        std::mutex& loadMutex, BatchSubjectResult& result)
+    {
+        std::chrono::steady_clock::time_point start = std::chrono::steady_clock::now();
+        result.subject = IO::GetFileNameFromURI(setupFile);
+        result.outcome = BatchSubjectResult::Optimized;
+        result.nOptimizedMuscles = 0;
+        result.nFallbacks = 0;
+        try
+        {
+            std::unique_ptr<MuscleOptimizeTool> subject;
+            std::unique_ptr<Model> inputModel;
+            {
+                // setup and model files are parsed one at a time (reference models too, see ReferenceModelStore)
+                std::lock_guard<std::mutex> lock(loadMutex);
+                subject.reset(new MuscleOptimizeTool(setupFile));
+                if (subject->isDefaultMuscleOptimizer() || !subject->getMuscleOptimizer().get_apply())
+                {
+                    result.outcome = BatchSubjectResult::Skipped;
+                    result.notes = "apply is false or not set, model not optimized";
+                }
+                else
+                    inputModel.reset(subject->loadInputModel());
+            }
+            if (result.outcome == BatchSubjectResult::Optimized)
+            {
+                if (!inputModel)
+                    throw Exception("no model loaded", __FILE__, __LINE__);
+
+                const string& referenceModelFile = subject->get_reference_model();
+                std::unique_ptr<Model>& referenceModel = workerReferenceModels[referenceModelFile];
+                if (!referenceModel)
+                    referenceModel.reset(referenceModels.createCopy(referenceModelFile));
+
+                MuscleOptimizer& optimizer = subject->upd_MuscleOptimizer();
+                if (!optimizer.processModel(inputModel.get(), referenceModel.get(), subject->getPathToSubject()))
+                {
+                    result.outcome = BatchSubjectResult::Failed;
+                    result.notes = "optimization failed";
+                }
+                result.nOptimizedMuscles = optimizer.getNumberOfOptimizedMuscles();
+                result.nFallbacks = optimizer.getNumberOfFallbacks();
+            }
+        }
+        catch (const Exception& x)
+        {
+            result.outcome = BatchSubjectResult::Failed;
+            result.notes = x.getMessage();
+        }
+        catch (const std::exception& x)
+        {
+            result.outcome = BatchSubjectResult::Failed;
+            result.notes = x.what();
+        }
+        result.wallTime = std::chrono::duration<double>(std::chrono::steady_clock::now() - start).count();
+    }
+
+}
+
+int RunBatch(const string& batchName, int nWorkers, const string& summaryFileName)
+{
+    std::vector<string> setupFiles;
+    if (!listSetupFiles(batchName, setupFiles))
+    {
+        cout << "muscleoptimizer: ERROR- Could not read batch manifest or directory " << batchName << endl;
+        return -1;
+    }
+    if (nWorkers <= 0)
+        nWorkers = static_cast<int>(std::thread::hardware_concurrency());
+    nWorkers = std::max(1, std::min(nWorkers, static_cast<int>(setupFiles.size())));
+    cout << "Optimizing " << setupFiles.size() << " subjects using " << nWorkers << " workers" << endl;
+
+    // Subjects are processed concurrently; output of concurrent subjects is interleaved, the summary table collects the outcome of each.
+    // All XML files (setup, input and reference models) are parsed under loadMutex
+    std::mutex loadMutex;
+    ReferenceModelStore referenceModels(loadMutex);
+    std::vector<BatchSubjectResult> results(setupFiles.size());
+    std::atomic<size_t> nextSubject(0);
+    auto worker = [&]()
+    {
+        std::map<string, std::unique_ptr<Model> > workerReferenceModels;
+        for (size_t iSubject = nextSubject++; iSubject < setupFiles.size(); iSubject = nextSubject++)
+            runBatchSubject(setupFiles[iSubject], referenceModels, workerReferenceModels, loadMutex, results[iSubject]);
+    };
+    std::vector<std::thread> workers;
+    for (int iWorker = 0; iWorker < nWorkers; ++iWorker)
+        workers.push_back(std::thread(worker));
+    for (auto& w : workers)
+        w.join();
+
+    int nFailed = 0, nSkipped = 0;
+    for (auto& result : results)
+    {
+        if (result.outcome == BatchSubjectResult::Failed)
+            ++nFailed;
+        else if (result.outcome == BatchSubjectResult::Skipped)
+            ++nSkipped;
+    }
+    cout << endl << "Batch summary (" << referenceModels.getSize() << " reference models loaded, " << nFailed << " subjects failed, " << nSkipped << " skipped):" << endl;
+    printSummary(results, cout);
+    if (summaryFileName != "")
+    {
+        std::ofstream summaryFile(summaryFileName.c_str());
+        printSummary(results, summaryFile);
+        if (summaryFile)
+            cout << "Wrote batch summary " << summaryFileName << endl;
+        else
+            cout << "WARNING: could not write batch summary " << summaryFileName << endl;
+    }
+    return nFailed == 0 ? 0 : -1;
+}
@@ -0,0 +1,146 @@
+/* --------------------------------------------------------------------------*
+*                  Muscle Optimizer: CoordinateGrid.h                        *
+* -------------------------------------------------------------------------- *
+*                                                                            *
+* Copyright 2015  Elena Ceseracciu, Luca Modenese                            *
+*                                                                            *
+* Licensed under the Apache License, Version 2.0 (the "License");            *
+* you may not use this file except in compliance with the License.           *
+* You may obtain a copy of the License at                                    *
+*                                                                            *
+*     http://www.apache.org/licenses/LICENSE-2.0                             *
+*                                                                            *
+* Unless required by applicable law or agreed to in writing, software        *
+* distributed under the License is distributed on an "AS IS" BASIS,          *
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+* See the License for the specific language governing permissions and        *
+* limitations under the License.                                             *
+* ---------------------------------------------------------------------------*/
+
+#ifndef COORDINATE_GRID_FOR_OPENSIM_H_
+#define COORDINATE_GRID_FOR_OPENSIM_H_
+
+// INCLUDE
+#include <string>
+#include <vector>
+#include "osimToolsDLL.h"
+
+namespace OpenSim {
+
+    //=============================================================================
+    //=============================================================================
+    /**
+     *  Joint-space grid spanned by a muscle. In a Cartesian grid the samples of
+     *  each coordinate are stored once, and the poses (all the combinations of
+     *  samples) are never materialized: poses are numbered in odometer order,
+     *  i.e. the last coordinate varies fastest. In a scattered grid the samples
+     *  of each coordinate are the values it takes in each pose, as generated by
+     *  the quasi-random designs (Sobol sequence, Latin hypercube).
+     */
+    class OSIMTOOLS_API CoordinateGrid {
+    public:
+        enum Layout { Cartesian, Scattered };
+
+        explicit CoordinateGrid(Layout layout = Cartesian) : _layout(layout) {}
+
+        void addCoordinate(const std::string& coordinateName, const std::vector<double>& samples)
+        {
+            _coordinateNames.push_back(coordinateName);
+            _samples.push_back(samples);
+        }
+
+        /* Build a scattered grid of nPoses points, scaled to the [rangeMin, rangeMax] interval of each coordinate */
+        static CoordinateGrid createSobol(const std::vector<std::string>& coordinateNames, const std::vector<double>& rangeMin, const std::vector<double>& rangeMax, size_t nPoses);
+        static CoordinateGrid createLatinHypercube(const std::vector<std::string>& coordinateNames, const std::vector<double>& rangeMin, const std::vector<double>& rangeMax, size_t nPoses);
+        /* Highest number of coordinates supported by createSobol */
+        static size_t getMaxSobolDimensions();
+
+        Layout getLayout() const { return _layout; }
+        bool empty() const { return _coordinateNames.empty(); }
+        size_t getNumCoordinates() const { return _coordinateNames.size(); }
+        const std::vector<std::string>& getCoordinateNames() const { return _coordinateNames; }
+        const std::string& getCoordinateName(size_t coordinateIndex) const { return _coordinateNames[coordinateIndex]; }
+        const std::vector<double>& getSamples(size_t coordinateIndex) const { return _samples[coordinateIndex]; }
+
+        /* Values of all coordinates at the pose with the given canonical index */
+        void getPose(size_t poseIndex, std::vector<double>& values) const
+        {
+            values.resize(_samples.size());
+            for (size_t coordinateIndex = _samples.size(); coordinateIndex-- > 0;)
+            {
+                if (_layout == Scattered)
+                    values[coordinateIndex] = _samples[coordinateIndex][poseIndex];
+                else
+                {
+                    values[coordinateIndex] = _samples[coordinateIndex][poseIndex % _samples[coordinateIndex].size()];
+                    poseIndex /= _samples[coordinateIndex].size();
+                }
+            }
+        }
+
+        size_t getNumPoses() const
+        {
+            if (empty())
+                return 0;
+            if (_layout == Scattered)
+                return _samples.front().size();
+            size_t numPoses = 1;
+            for (size_t coordinateIndex = 0; coordinateIndex < _samples.size(); ++coordinateIndex)
+                numPoses *= _samples[coordinateIndex].size();
+            return numPoses;
+        }
+
+    private:
+        Layout _layout;
+        std::vector<std::string> _coordinateNames;
+        std::vector<std::vector<double> > _samples;
+    };
+
+    //=============================================================================
+    /**
+     *  Streaming iterator over the poses of a CoordinateGrid, implemented as a
+     *  mixed-radix counter with one digit per coordinate (Cartesian grids), or
+     *  as a plain counter over the stored poses (scattered grids).
+     */
+    class PoseIterator {
+    public:
+        explicit PoseIterator(const CoordinateGrid& grid) :
+            _grid(grid),
+            _digits(grid.getNumCoordinates(), 0),
+            _poseIndex(0),
+            _numPoses(grid.getNumPoses())
+        {
+        }
+
+        bool isValid() const { return _poseIndex < _numPoses; }
+        size_t getPoseIndex() const { return _poseIndex; }
+        double getValue(size_t coordinateIndex) const
+        {
+            if (_grid.getLayout() == CoordinateGrid::Scattered)
+                return _grid.getSamples(coordinateIndex)[_poseIndex];
+            return _grid.getSamples(coordinateIndex)[_digits[coordinateIndex]];
+        }
+
+        void next()
+        {
+            ++_poseIndex;
+            if (_grid.getLayout() == CoordinateGrid::Scattered)
+                return;
+            for (size_t coordinateIndex = _digits.size(); coordinateIndex-- > 0;)
+            {
+                if (++_digits[coordinateIndex] < _grid.getSamples(coordinateIndex).size())
+                    return;
+                _digits[coordinateIndex] = 0;
+            }
+        }
+
+    private:
+        const CoordinateGrid& _grid;
+        std::vector<size_t> _digits;
+        size_t _poseIndex;
+        size_t _numPoses;
+    };
+
+} // end of namespace OpenSim
+
+#endif // COORDINATE_GRID_FOR_OPENSIM_H_
@@ -0,0 +1,90 @@
+/* --------------------------------------------------------------------------*
+*                  Muscle Optimizer: ModelTopology.h                         *
+* -------------------------------------------------------------------------- *
+*                                                                            *
+* Copyright 2015  Elena Ceseracciu, Luca Modenese                            *
+*                                                                            *
+* Licensed under the Apache License, Version 2.0 (the "License");            *
+* you may not use this file except in compliance with the License.           *
+* You may obtain a copy of the License at                                    *
+*                                                                            *
+*     http://www.apache.org/licenses/LICENSE-2.0                             *
+*                                                                            *
+* Unless required by applicable law or agreed to in writing, software        *
+* distributed under the License is distributed on an "AS IS" BASIS,          *
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+* See the License for the specific language governing permissions and        *
+* limitations under the License.                                             *
+* ---------------------------------------------------------------------------*/
+
+#ifndef MODEL_TOPOLOGY_FOR_OPENSIM_H_
+#define MODEL_TOPOLOGY_FOR_OPENSIM_H_
+
+// INCLUDE
+#include <string>
+#include <vector>
+#include <map>
+#include "osimToolsDLL.h"
+
+namespace OpenSim {
+
+    class Model;
+
+    //=============================================================================
+    //=============================================================================
+    /**
+     *  Index of the kinematic tree of a model, built once per model: parent joint
+     *  and parent body of each body, and an Euler tour of the tree with a sparse
+     *  table answering lowest common ancestor queries in constant time. The
+     *  independent coordinates driving each coordinate constrained by a
+     *  CoordinateCouplerConstraint are resolved at the same time.
+     *  Bodies and joints are identified by their index in the model's BodySet and
+     *  JointSet. Bodies that cannot be reached from a root (e.g. because joints
+     *  form a loop) are flagged as unreachable instead of being walked forever.
+     */
+    class OSIMTOOLS_API ModelTopology {
+    public:
+        explicit ModelTopology(const Model& model);
+
+        /* Index of a body in the BodySet, -1 if not found */
+        int getBodyIndex(const std::string& bodyName) const;
+        /* Joint connecting a body to its parent, -1 for roots (ground) and unreachable bodies */
+        int getParentJoint(int bodyIndex) const { return _parentJoint[bodyIndex]; }
+        int getParentBody(int bodyIndex) const { return _parentBody[bodyIndex]; }
+        int getDepth(int bodyIndex) const { return _depth[bodyIndex]; }
+        bool isReachable(int bodyIndex) const { return _treeId[bodyIndex] >= 0; }
+        bool jointHasCoordinates(int jointIndex) const { return _jointHasCoordinates[jointIndex]; }
+
+        /* Lowest common ancestor of two bodies, -1 if they do not belong to the same tree */
+        int getLowestCommonAncestor(int firstBodyIndex, int secondBodyIndex) const;
+        /* Joints with at least one coordinate on the path between two bodies. Joints from the
+           second body up to the common ancestor come first, then joints from the first body.
+           Returns false if the bodies are not connected. */
+        bool getJointsBetweenBodies(int firstBodyIndex, int secondBodyIndex, std::vector<int>& jointIndices) const;
+
+        /* Independent coordinates a coupled coordinate depends on (following chains of couplers),
+           empty if the coordinate is not the dependent coordinate of a CoordinateCouplerConstraint */
+        const std::vector<std::string>& getIndependentCoordinates(const std::string& dependentCoordinateName) const;
+
+    private:
+        std::map<std::string, int> _bodyIndices;
+        std::vector<int> _parentJoint;
+        std::vector<int> _parentBody;
+        std::vector<int> _depth;
+        std::vector<int> _treeId;
+        std::vector<bool> _jointHasCoordinates;
+        std::map<std::string, std::vector<std::string> > _independentCoordinates;
+
+        // Euler tour of the tree(s), first occurrence of each body in the tour,
+        // and sparse table of the shallowest body in each range of 2^k tour entries
+        std::vector<int> _eulerTour;
+        std::vector<int> _firstOccurrence;
+        std::vector<std::vector<int> > _sparseTable;
+        //=============================================================================
+    };	// END of class ModelTopology
+    //=============================================================================
+    //=============================================================================
+
+} // end of namespace OpenSim
+
+#endif // MODEL_TOPOLOGY_FOR_OPENSIM_H_
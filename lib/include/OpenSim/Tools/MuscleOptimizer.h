@@ -25,9 +25,15 @@
 
 // INCLUDE
 #include <iostream>
+#include <functional>
 #include <string>
+#include <unordered_map>
+#include <unordered_set>
 #include <math.h>
 #include "osimToolsDLL.h"
+#include "MuscleTemplateCache.h"
+#include "MuscleOptimizerReport.h"
+#include "CoordinateGrid.h"
 #include <OpenSim/Common/PropertyDbl.h>
 #include <OpenSim/Common/PropertyDblArray.h>
 #include <OpenSim/Common/PropertyObj.h>
@@ -40,6 +46,26 @@
 namespace OpenSim {
 
     class Model;
+    class Muscle;
+    class Coordinate;
+    class ModelTopology;
+    class MuscleSampleDump;
+    class MuscleParameterFit;
+
+    //=============================================================================
+    /**
+     *  Progress and cancellation hooks of MuscleOptimizer::processModel. Calls are
+     *  serialized, but when muscles are optimized in parallel they may come from
+     *  any of the worker threads. In Java, derive from the generated director class.
+     */
+    class OSIMTOOLS_API MuscleOptimizerCallback {
+    public:
+        virtual ~MuscleOptimizerCallback() {}
+        /* Called each time a muscle has been processed (optimized or skipped) */
+        virtual void muscleProcessed(int nProcessedMuscles, int nMuscles, const std::string& muscleName) {}
+        /* Polled between muscles and between batches of poses; returning true stops processModel, which then returns false */
+        virtual bool isCancelled() { return false; }
+    };
 
     //=============================================================================
     //=============================================================================
@@ -57,10 +83,28 @@ namespace OpenSim {
             "Specifies the muscles to consider (default: ALL)");
         OpenSim_DECLARE_PROPERTY(n_evaluation_points, int,
             "Number of evaluation points for each degree of freedom");
+        OpenSim_DECLARE_PROPERTY(n_threads, int,
+            "Number of threads used to optimize muscles concurrently (1 -> serial, <= 0 -> number of available cores). Default value: 1");
         OpenSim_DECLARE_PROPERTY(min_degrees_increment, double,
             "Minimum degree interval when sampling a degree of freedom(<= 0->no limit check).Default value : 2.5 (degrees)");
+        OpenSim_DECLARE_PROPERTY(sampling_strategy, std::string,
+            "Strategy used to sample the joint space spanned by each muscle: grid, sobol or latin_hypercube. Default value: grid");
+        OpenSim_DECLARE_PROPERTY(max_poses_per_muscle, int,
+            "Maximum number of poses sampled for each muscle by the sobol and latin_hypercube strategies (<= 0 -> n_evaluation_points^(no. of coordinates)). Default value: 0");
+        OpenSim_DECLARE_PROPERTY(template_mode, std::string,
+            "How reference muscle quantities are computed: equilibrium (muscle equilibrium at full activation) or kinematic (rigid tendon estimate, faster). Default value: equilibrium");
+        OpenSim_DECLARE_PROPERTY(mtu_length_surrogate, bool,
+            "Whether to approximate MTU lengths of the optimized model with a polynomial fitted on a subset of the poses. Default value: false");
+        OpenSim_DECLARE_PROPERTY(mtu_length_surrogate_tolerance, double,
+            "Maximum error of the MTU length surrogate on held-out poses, above which poses are sampled exactly. Default value: 0.0001 (m)");
         OpenSim_DECLARE_PROPERTY(output_model_file, std::string,
             "Name of OpenSim model file (.osim) to write when done optimizing.");
+        OpenSim_DECLARE_PROPERTY(template_cache_file, std::string,
+            "Name of the file caching the reference model template quantities between runs (empty -> no cache).");
+        OpenSim_DECLARE_PROPERTY(sample_dump_file, std::string,
+            "Name of the binary file where the poses, template quantities and target MTU lengths used to fit each muscle are written (empty -> no file).");
+        OpenSim_DECLARE_PROPERTY(report_file, std::string,
+            "Name of the JSON file where phase timings and counters of each run are written, for the whole run and for each muscle (empty -> no file).");
 
         // Whether or not to write write to the designated output files (GUI will set this to false)
         bool _printResultFiles;
@@ -82,10 +126,20 @@ namespace OpenSim {
         // INTERFACE
         //--------------------------------------------------------------------------
         virtual bool processModel(Model* inputModel, Model* referenceModel, const std::string& aPathToSubject = ""); // TODO check if I really need pathToSubject
+        /* Optimize only the given muscles, in place of those selected by the muscles property (which is left untouched, and keeps the template cache valid) */
+        bool processModel(Model* inputModel, Model* referenceModel, const std::vector<std::string>& muscleNames, const std::string& aPathToSubject = "");
+        /* Sample the reference model on its own coordinate ranges and write the template cache file */
+        bool precomputeTemplates(Model* referenceModel, const std::string& aPathToSubject = "");
         //
         void setPrintResultFiles(bool aToWrite) { _printResultFiles = aToWrite; }
-        typedef std::vector< std::pair< std::string, std::vector<double> > > CoordinateCombinations;
-        CoordinateCombinations sampleROMsForMuscle(Model& model, SimTK::State& si, const std::string& muscleName, unsigned int nEval);
+        /* Outcome of the last call to processModel */
+        int getNumberOfOptimizedMuscles() const { return _nOptimizedMuscles; }
+        int getNumberOfFallbacks() const { return _nFallbacks; }
+        /* Phase timings and counters of the last call to processModel */
+        const MuscleOptimizerReport& getReport() const { return _report; }
+        /* Callback used by processModel; not owned, it must outlive the calls to processModel (NULL -> no callback) */
+        void setCallback(MuscleOptimizerCallback* callback) { _callback = callback; }
+        CoordinateGrid sampleROMsForMuscle(Model& model, SimTK::State& si, const std::string& muscleName, unsigned int nEval);
 
         // TEMPORARY WORKAROUNDS FOR GETTING/SETTING LIST PROPERTIES
         Array<std::string> getCoordinates();
@@ -94,22 +148,104 @@ namespace OpenSim {
         Array<std::string> getMuscles();
         void setMuscles(const Array<std::string>& newMuscles);
 
+        // BULK NAME LISTS (wrapped as String[], so that a whole list crosses JNI in one call)
+        /* Names of all the muscles and coordinates of a model, in the order of the model sets */
+        static std::vector<std::string> getMuscleNames(const Model& model);
+        static std::vector<std::string> getCoordinateNames(const Model& model);
+        /* Values of the coordinates and muscles properties */
+        std::vector<std::string> getSelectedCoordinates() const;
+        void setCoordinates(const std::vector<std::string>& newCoords);
+        std::vector<std::string> getSelectedMuscles() const;
+        void setMuscles(const std::vector<std::string>& newMuscles);
+
     private:
-        struct TemplateMuscleInfo
+        // times the private sampling and fitting kernels one by one (test/muscleOptimizerBenchmark)
+        friend class MuscleOptimizerBenchmark;
+
+        struct MuscleOptimizationResult
+        {
+            bool optimized;
+            bool fallback;
+            double optimalFiberLength;
+            double tendonSlackLength;
+        };
+        // Enabled muscles spanning the same coordinates share the same joint-space grid
+        struct MuscleGroup
         {
-            double normalizedFiberLength;
-            double normalizedTendonLength;
-            double pennationAngle;
+            std::vector<int> muscleOrdinals;
+            CoordinateGrid coordinateGrid;
         };
+        // Outcome of the MTU length surrogate for one muscle
+        struct SurrogateReport
+        {
+            SurrogateReport() : attempted(false), used(false), maxError(SimTK::NaN) {}
+            bool attempted;
+            bool used;
+            double maxError;
+        };
+        // Realize time of one sampling pass of a muscle group, and equilibrate time and counters of each of its muscles
+        struct SamplingStats
+        {
+            void reset(size_t nMuscles)
+            {
+                realizeSeconds = 0.0;
+                muscles.assign(nMuscles, MuscleOptimizerReport::MuscleEntry());
+            }
+            double realizeSeconds;
+            std::vector<MuscleOptimizerReport::MuscleEntry> muscles;
+        };
+        // Indices of the enabled muscles (by ordinal) and of all coordinates in one model, resolved once per run
+        struct ModelHandles
+        {
+            std::vector<int> muscleIndices;
+            std::unordered_map<std::string, int> coordinateIndices;
+        };
+        // Target MTU lengths of the group muscles at one pose, in the order the grid is walked
+        typedef std::function<void(size_t poseIndex, const std::vector<double>& poseValues, const std::vector<double>& mtuLengths)> MTULengthConsumer;
+
+        // Enabled selections, resolved from the muscles and coordinates properties by resolveSelections()
+        std::unordered_set<std::string> _enabledMuscleNames;
+        std::unordered_set<std::string> _enabledCoordinateNames;
+        bool _allMusclesEnabled;
+        bool _allCoordinatesEnabled;
+        int _nOptimizedMuscles;
+        int _nFallbacks;
+        // Progress of the current processModel call, NULL outside of it
+        struct ProgressMonitor;
+        MuscleOptimizerCallback* _callback;
+        ProgressMonitor* _progressMonitor;
+        MuscleOptimizerReport _report;
+
         void constructProperties();
-        bool isEnabledMuscle(std::string muscleName);
-        bool isEnabledCoordinate(std::string coordinateName);
-        Array<std::string> getJointSpannedByMuscle(Model& model, const std::string& muscleName);
-        std::string getIndependentCoordinate(Model& model, const std::string& coordinateName);
-        std::vector<double> generateAngleSamples(double anglesStart, double anglesEnd, unsigned int noEval, unsigned int multeplicity, unsigned int totalSamples);
-
-        SimTK::Vector sampleMTULength(Model& model, SimTK::State& si, const std::string& muscleName, const MuscleOptimizer::CoordinateCombinations& coordinateCombinations);
-        std::vector<TemplateMuscleInfo> sampleTemplateQuantities(Model& model, SimTK::State& si, const std::string& muscleName, MuscleOptimizer::CoordinateCombinations& coordinateCombinations);
+        bool processSelectedMuscles(Model* inputModel, Model* referenceModel, const std::unordered_set<std::string>* muscleNames, const std::string& aPathToSubject);
+        bool isCancelled();
+        void reportMuscleProcessed(const std::string& muscleName);
+        int getNumberOfThreads(int nWorkItems);
+        bool checkSamplingSettings();
+        size_t getNumberOfScatteredPoses(size_t nCoordinates, unsigned int nEval);
+        CoordinateGrid sampleROMsForMuscle(Model& model, const ModelTopology& topology, SimTK::State& si, const std::string& muscleName, unsigned int nEval);
+        std::vector<MuscleGroup> groupMusclesByCoordinates(Model& model, const SimTK::State& defaultState, const std::vector<std::string>& muscleNames);
+        void optimizeMuscleGroup(Model& inputModel, const SimTK::State& inputDefaultState, const ModelHandles& inputHandles, Model& referenceModel, const SimTK::State& referenceDefaultState, const ModelHandles& referenceHandles, const std::vector<std::string>& muscleNames, const MuscleGroup& muscleGroup, MuscleTemplateCache* templateCache, MuscleSampleDump* sampleDump, std::vector<MuscleOptimizationResult>& results, std::ostream& log);
+        void fitMuscleParameters(const std::string& muscleName, const MuscleParameterFit& fit, double referenceTendonSlackLength, MuscleOptimizationResult& result, std::ostream& log);
+        void optimizeMusclesInParallel(Model& inputModel, const ModelHandles& inputHandles, Model& referenceModel, const ModelHandles& referenceHandles, const std::vector<std::string>& muscleNames, const std::vector<MuscleGroup>& muscleGroups, MuscleTemplateCache* templateCache, MuscleSampleDump* sampleDump, std::vector<MuscleOptimizationResult>& results, int nThreads);
+        std::string getTemplateCacheFileName(const std::string& aPathToSubject);
+        std::string getSampleDumpFileName(const std::string& aPathToSubject);
+        std::string getReportFileName(const std::string& aPathToSubject);
+        bool computeTemplateCacheKey(const Model& referenceModel, std::uint64_t& key);
+        std::uint64_t computeGridHash(const CoordinateGrid& coordinateGrid);
+        void resolveSelections();
+        bool isEnabledMuscle(const std::string& muscleName);
+        bool isEnabledCoordinate(const std::string& coordinateName);
+        ModelHandles resolveModelHandles(const Model& model, const std::vector<std::string>& muscleNames);
+        void getGroupHandles(const ModelHandles& handles, const MuscleGroup& muscleGroup, std::vector<int>& muscleIndices, std::vector<int>& coordinateIndices);
+        bool resolveHandles(Model& model, const std::vector<int>& muscleIndices, const std::vector<int>& coordinateIndices, const CoordinateGrid& coordinateGrid, std::vector<Muscle*>& muscles, std::vector<Coordinate*>& coordinates);
+        std::vector<int> getJointSpannedByMuscle(Model& model, const ModelTopology& topology, const std::string& muscleName);
+        std::vector<double> generateAngleSamples(double anglesStart, double anglesEnd, unsigned int noEval);
+
+        bool sampleMTULength(Model& model, SimTK::State& si, const std::vector<int>& muscleIndices, const std::vector<int>& coordinateIndices, const CoordinateGrid& coordinateGrid, std::vector<SurrogateReport>& surrogateReports, SamplingStats& stats, std::ostream& log, const MTULengthConsumer& consumer);
+        bool estimateKinematicTemplate(const Muscle& muscle, const SimTK::State& si, TemplateMuscleInfo& muscleInfo);
+        bool sampleTemplateQuantities(Model& model, SimTK::State& si, const std::vector<int>& muscleIndices, const std::vector<int>& coordinateIndices, const CoordinateGrid& coordinateGrid, std::vector<std::vector<TemplateMuscleInfo> >& templateQuantities, std::vector<std::vector<size_t> >& validCombinations, SamplingStats& stats);
+        void sampleTemplatePose(Model& model, SimTK::State& si, const std::vector<Muscle*>& muscles, const std::vector<Coordinate*>& coordinates, const std::vector<double>& poseValues, bool kinematicTemplates, std::vector<TemplateMuscleInfo>& muscleInfos, std::vector<bool>& valid, SamplingStats& stats);
 
         //=============================================================================
     };	// END of class MuscleOptimizer
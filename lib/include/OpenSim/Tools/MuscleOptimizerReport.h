@@ -0,0 +1,106 @@
+/* --------------------------------------------------------------------------*
+*                  Muscle Optimizer: MuscleOptimizerReport.h                 *
+* -------------------------------------------------------------------------- *
+*                                                                            *
+* Copyright 2015  Elena Ceseracciu, Luca Modenese                            *
+*                                                                            *
+* Licensed under the Apache License, Version 2.0 (the "License");            *
+* you may not use this file except in compliance with the License.           *
+* You may obtain a copy of the License at                                    *
+*                                                                            *
+*     http://www.apache.org/licenses/LICENSE-2.0                             *
+*                                                                            *
+* Unless required by applicable law or agreed to in writing, software        *
+* distributed under the License is distributed on an "AS IS" BASIS,          *
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+* See the License for the specific language governing permissions and        *
+* limitations under the License.                                             *
+* ---------------------------------------------------------------------------*/
+
+#ifndef MUSCLE_OPTIMIZER_REPORT_FOR_OPENSIM_H_
+#define MUSCLE_OPTIMIZER_REPORT_FOR_OPENSIM_H_
+
+// INCLUDE
+#include <string>
+#include <vector>
+#include "osimToolsDLL.h"
+
+namespace OpenSim {
+
+    //=============================================================================
+    //=============================================================================
+    /**
+     *  Phase timings and counters of the last MuscleOptimizer::processModel run,
+     *  for the whole run and for each enabled muscle. Times are in seconds.
+     *
+     *  Realize and Equilibrate are also counted in the sampling phase that
+     *  contains them. Phases shared by a coordinate group (pose sampling and
+     *  realize) are split evenly among the muscles of the group, so that muscle
+     *  times add up to the run ones. When muscles are optimized in parallel,
+     *  run phase times are summed over the worker threads, and may therefore
+     *  exceed the total (wall clock) time.
+     */
+    class OSIMTOOLS_API MuscleOptimizerReport {
+    public:
+        enum Phase { InitSystem, MuscleGrouping, TemplateSampling, Equilibrate, MTULengthSampling, Realize, Fitting, ModelPrint, NumPhases };
+        enum Counter { PosesEvaluated, PosesPruned, MTULengthsEvaluated, Fallbacks, ExceptionsSwallowed, NumCounters };
+
+        MuscleOptimizerReport();
+
+        /* Name used for the phase or counter in the JSON report */
+        static const char* getPhaseName(int phase);
+        static const char* getCounterName(int counter);
+
+        /* Forget the previous run, and allocate entries for the given muscles */
+        void reset(const std::vector<std::string>& muscleNames, int nThreads);
+
+        // Whole run
+        double getTotalSeconds() const { return _totalSeconds; }
+        int getNumberOfThreads() const { return _nThreads; }
+        bool isCancelled() const { return _cancelled; }
+        double getPhaseSeconds(int phase) const;
+        long long getCounter(int counter) const;
+
+        // Per muscle (in the order of the enabled muscles of the model)
+        int getNumMuscles() const { return static_cast<int>(_muscles.size()); }
+        const std::string& getMuscleName(int muscleOrdinal) const { return _muscles[muscleOrdinal].name; }
+        bool isMuscleOptimized(int muscleOrdinal) const { return _muscles[muscleOrdinal].optimized; }
+        /* Whether template quantities were read from the template cache instead of being sampled */
+        bool isMuscleTemplateCached(int muscleOrdinal) const { return _muscles[muscleOrdinal].templateCached; }
+        double getMusclePhaseSeconds(int muscleOrdinal, int phase) const { return _muscles[muscleOrdinal].phaseSeconds[phase]; }
+        long long getMuscleCounter(int muscleOrdinal, int counter) const { return _muscles[muscleOrdinal].counters[counter]; }
+
+        std::string toJSON() const;
+        bool write(const std::string& fileName) const;
+
+    private:
+        friend class MuscleOptimizer;
+
+        struct MuscleEntry
+        {
+            MuscleEntry();
+            std::string name;
+            bool optimized;
+            bool templateCached;
+            double phaseSeconds[NumPhases];
+            long long counters[NumCounters];
+        };
+
+        // Entries are written by the thread optimizing the muscle group they belong to, so they are never shared
+        MuscleEntry& updMuscle(int muscleOrdinal) { return _muscles[muscleOrdinal]; }
+        void addRunPhaseSeconds(int phase, double seconds) { _runPhaseSeconds[phase] += seconds; }
+
+        std::vector<MuscleEntry> _muscles;
+        // phases that do not belong to any muscle
+        double _runPhaseSeconds[NumPhases];
+        double _totalSeconds;
+        int _nThreads;
+        bool _cancelled;
+        //=============================================================================
+    };	// END of class MuscleOptimizerReport
+    //=============================================================================
+    //=============================================================================
+
+} // end of namespace OpenSim
+
+#endif // MUSCLE_OPTIMIZER_REPORT_FOR_OPENSIM_H_
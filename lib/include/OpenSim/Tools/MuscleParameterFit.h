@@ -0,0 +1,68 @@
+/* --------------------------------------------------------------------------*
+*                  Muscle Optimizer: MuscleParameterFit.h                    *
+* -------------------------------------------------------------------------- *
+*                                                                            *
+* Copyright 2015  Elena Ceseracciu, Luca Modenese                            *
+*                                                                            *
+* Licensed under the Apache License, Version 2.0 (the "License");            *
+* you may not use this file except in compliance with the License.           *
+* You may obtain a copy of the License at                                    *
+*                                                                            *
+*     http://www.apache.org/licenses/LICENSE-2.0                             *
+*                                                                            *
+* Unless required by applicable law or agreed to in writing, software        *
+* distributed under the License is distributed on an "AS IS" BASIS,          *
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+* See the License for the specific language governing permissions and        *
+* limitations under the License.                                             *
+* ---------------------------------------------------------------------------*/
+
+#ifndef MUSCLE_PARAMETER_FIT_FOR_OPENSIM_H_
+#define MUSCLE_PARAMETER_FIT_FOR_OPENSIM_H_
+
+// INCLUDE
+#include <cstddef>
+#include "osimToolsDLL.h"
+
+namespace OpenSim {
+
+    //=============================================================================
+    //=============================================================================
+    /**
+     *  Streaming least-squares fit of optimal fiber length and tendon slack length.
+     *  Each pose contributes one equation
+     *      a0*optimalFiberLength + a1*tendonSlackLength = targetMTULength
+     *  where a0 is the template normalized fiber length projected along the tendon
+     *  and a1 the template normalized tendon length. Only the sums of the normal
+     *  equations are kept, so memory does not depend on the number of poses.
+     */
+    class OSIMTOOLS_API MuscleParameterFit {
+    public:
+        MuscleParameterFit();
+
+        void addPose(double normalizedFiberLengthAlongTendon, double normalizedTendonLength, double referenceMTULength, double targetMTULength);
+
+        size_t getNumPoses() const { return _nPoses; }
+        /* Difference between the largest and smallest normalized tendon length */
+        double getTendonLengthRange() const;
+
+        /* Solve the 2x2 normal equations (minimum-norm solution if they are singular) */
+        void solve(double& optimalFiberLength, double& tendonSlackLength) const;
+        /* Fallback: estimate the optimal fiber length assuming the same proportion between fiber and
+           tendon as in the reference muscle, then the tendon slack length from the remaining MTU length */
+        void solveFallback(double referenceTendonSlackLength, double& optimalFiberLength, double& tendonSlackLength) const;
+
+    private:
+        size_t _nPoses;
+        double _s00, _s01, _s11;    // A'A
+        double _s0b, _s1b;          // A'b
+        double _s01bOverMTU;        // sum of a0*a1*b/referenceMTULength, for the fallback
+        double _minA1, _maxA1;
+        //=============================================================================
+    };	// END of class MuscleParameterFit
+    //=============================================================================
+    //=============================================================================
+
+} // end of namespace OpenSim
+
+#endif // MUSCLE_PARAMETER_FIT_FOR_OPENSIM_H_
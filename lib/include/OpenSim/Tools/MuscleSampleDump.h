@@ -0,0 +1,139 @@
+/* --------------------------------------------------------------------------*
+*                  Muscle Optimizer: MuscleSampleDump.h                      *
+* -------------------------------------------------------------------------- *
+*                                                                            *
+* Copyright 2015  Elena Ceseracciu, Luca Modenese                            *
+*                                                                            *
+* Licensed under the Apache License, Version 2.0 (the "License");            *
+* you may not use this file except in compliance with the License.           *
+* You may obtain a copy of the License at                                    *
+*                                                                            *
+*     http://www.apache.org/licenses/LICENSE-2.0                             *
+*                                                                            *
+* Unless required by applicable law or agreed to in writing, software        *
+* distributed under the License is distributed on an "AS IS" BASIS,          *
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+* See the License for the specific language governing permissions and        *
+* limitations under the License.                                             *
+* ---------------------------------------------------------------------------*/
+
+#ifndef MUSCLE_SAMPLE_DUMP_FOR_OPENSIM_H_
+#define MUSCLE_SAMPLE_DUMP_FOR_OPENSIM_H_
+
+// INCLUDE
+#include <string>
+#include <vector>
+#include <fstream>
+#include <mutex>
+#include <cstdint>
+#include "osimToolsDLL.h"
+#include "MuscleTemplateCache.h"
+
+namespace OpenSim {
+
+    //=============================================================================
+    //=============================================================================
+    /**
+     *  Columnar binary file holding, for each muscle, the samples that were fed
+     *  to the least-squares fit. Blocks are appended as muscles are processed,
+     *  and the index is written when the file is closed. All values are stored
+     *  in little endian byte order whatever the host, and every array starts at
+     *  a multiple of 8 bytes, so that the file can be memory-mapped and read in
+     *  place (see MuscleSampleDumpReader, or MuscleSampleDumpReader.java):
+     *
+     *  header (32 bytes):  char[8] "MOSMPD01" | uint32 nMuscles | uint32 0 |
+     *                      uint64 indexOffset | uint64 indexLength
+     *  data block:         uint64 poseIndex[nRows] | double coordinateValue[nCoordinates][nRows] |
+     *                      double normalizedFiberLength[nRows] | double normalizedTendonLength[nRows] |
+     *                      double pennationAngle[nRows] | double templateMTULength[nRows] |
+     *                      double targetMTULength[nRows]
+     *  index entry:        uint64 dataOffset | uint64 nRows | uint64 nCoordinates |
+     *                      string muscleName | string coordinateName[nCoordinates]
+     *
+     *  where strings are stored as a uint64 length followed by the characters,
+     *  zero-padded to a multiple of 8 bytes. Blocks can be written concurrently
+     *  from several threads; their order in the file is not specified.
+     */
+    class OSIMTOOLS_API MuscleSampleDump {
+    public:
+        MuscleSampleDump();
+        ~MuscleSampleDump();
+
+        bool open(const std::string& fileName);
+        /* Append the block of one muscle: poseValues holds one column (one value per row) per coordinate */
+        bool writeMuscle(const std::string& muscleName, const std::vector<std::string>& coordinateNames, const std::vector<size_t>& poseIndices,
+            const std::vector<std::vector<double> >& poseValues, const std::vector<TemplateMuscleInfo>& templateQuantities, const std::vector<double>& targetMTULengths);
+        /* Write the index and the header; the file is not valid until it is closed */
+        bool close();
+
+        bool isOpen() const { return _out.is_open(); }
+
+    private:
+        struct IndexEntry
+        {
+            std::string muscleName;
+            std::vector<std::string> coordinateNames;
+            std::uint64_t dataOffset;
+            std::uint64_t nRows;
+        };
+
+        std::ofstream _out;
+        std::uint64_t _offset;
+        std::vector<IndexEntry> _index;
+        bool _failed;
+        std::mutex _mutex;
+        //=============================================================================
+    };	// END of class MuscleSampleDump
+    //=============================================================================
+    //=============================================================================
+
+    //=============================================================================
+    //=============================================================================
+    /**
+     *  Reader of the files written by MuscleSampleDump. The index is read and
+     *  checked against the file length when the file is opened; the block of
+     *  a muscle is read when it is requested.
+     */
+    class OSIMTOOLS_API MuscleSampleDumpReader {
+    public:
+        /* Block of one muscle, with the same layout as the arguments of MuscleSampleDump::writeMuscle */
+        struct MuscleSamples
+        {
+            std::string muscleName;
+            std::vector<std::string> coordinateNames;
+            std::vector<std::uint64_t> poseIndices;
+            std::vector<std::vector<double> > poseValues;
+            std::vector<TemplateMuscleInfo> templateQuantities;
+            std::vector<double> targetMTULengths;
+        };
+
+        MuscleSampleDumpReader();
+
+        /* Read the header and the index; false if the file is missing, truncated or not a sample dump */
+        bool open(const std::string& fileName);
+        void close();
+        bool isOpen() const { return _in.is_open(); }
+
+        /* Names of the muscles in the file, in index order */
+        std::vector<std::string> getMuscleNames() const;
+        bool readMuscle(const std::string& muscleName, MuscleSamples& samples);
+
+    private:
+        struct IndexEntry
+        {
+            std::string muscleName;
+            std::vector<std::string> coordinateNames;
+            std::uint64_t dataOffset;
+            std::uint64_t nRows;
+        };
+
+        std::ifstream _in;
+        std::vector<IndexEntry> _index;
+        //=============================================================================
+    };	// END of class MuscleSampleDumpReader
+    //=============================================================================
+    //=============================================================================
+
+} // end of namespace OpenSim
+
+#endif // MUSCLE_SAMPLE_DUMP_FOR_OPENSIM_H_
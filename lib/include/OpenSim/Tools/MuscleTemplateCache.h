@@ -0,0 +1,97 @@
+/* --------------------------------------------------------------------------*
+*                  Muscle Optimizer: MuscleTemplateCache.h                   *
+* -------------------------------------------------------------------------- *
+*                                                                            *
+* Copyright 2015  Elena Ceseracciu, Luca Modenese                            *
+*                                                                            *
+* Licensed under the Apache License, Version 2.0 (the "License");            *
+* you may not use this file except in compliance with the License.           *
+* You may obtain a copy of the License at                                    *
+*                                                                            *
+*     http://www.apache.org/licenses/LICENSE-2.0                             *
+*                                                                            *
+* Unless required by applicable law or agreed to in writing, software        *
+* distributed under the License is distributed on an "AS IS" BASIS,          *
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+* See the License for the specific language governing permissions and        *
+* limitations under the License.                                             *
+* ---------------------------------------------------------------------------*/
+
+#ifndef MUSCLE_TEMPLATE_CACHE_FOR_OPENSIM_H_
+#define MUSCLE_TEMPLATE_CACHE_FOR_OPENSIM_H_
+
+// INCLUDE
+#include <string>
+#include <vector>
+#include <map>
+#include <mutex>
+#include <cstdint>
+#include "osimToolsDLL.h"
+
+namespace OpenSim {
+
+    /** Quantities of a reference (template) muscle, sampled at one pose */
+    struct TemplateMuscleInfo
+    {
+        double normalizedFiberLength;
+        double normalizedTendonLength;
+        double pennationAngle;
+        double mtuLength;
+    };
+
+    //=============================================================================
+    //=============================================================================
+    /**
+     *  On-disk cache of the template quantities sampled on a reference model.
+     *  The whole cache is identified by a key (content of the reference model and
+     *  sampling settings); each entry is identified by the hash of the joint-space
+     *  grid it was sampled on and by the muscle name, and holds the template
+     *  quantities together with the indices of the poses that were kept.
+     *  Runs on different subsets of muscles therefore share the same file.
+     *  Lookups and insertions can be made concurrently from several threads,
+     *  and caches sharing a file name read and write it one at a time.
+     */
+    class OSIMTOOLS_API MuscleTemplateCache {
+    public:
+        explicit MuscleTemplateCache(std::uint64_t key);
+
+        /* Read cache file. Returns false if the file is missing, invalid or has a different key */
+        bool read(const std::string& fileName);
+        /* Write cache file, merging the entries of the existing file if it has the same key */
+        bool write(const std::string& fileName) const;
+
+        bool find(std::uint64_t gridHash, const std::string& muscleName, std::vector<TemplateMuscleInfo>& templateQuantities, std::vector<size_t>& validCombinations) const;
+        void insert(std::uint64_t gridHash, const std::string& muscleName, const std::vector<TemplateMuscleInfo>& templateQuantities, const std::vector<size_t>& validCombinations);
+
+        std::uint64_t getKey() const { return _key; }
+        size_t getSize() const;
+        bool isModified() const;
+
+        /* 64-bit FNV-1a hashing helpers, used to build cache and grid keys */
+        static std::uint64_t hash(const void* data, size_t size, std::uint64_t seed = 14695981039346656037ULL);
+        static std::uint64_t hash(const std::string& value, std::uint64_t seed = 14695981039346656037ULL);
+        static std::uint64_t hash(double value, std::uint64_t seed = 14695981039346656037ULL);
+        static bool hashFile(const std::string& fileName, std::uint64_t& fileHash);
+
+    private:
+        struct Entry
+        {
+            std::vector<TemplateMuscleInfo> templateQuantities;
+            std::vector<size_t> validCombinations;
+        };
+        typedef std::map<std::pair<std::uint64_t, std::string>, Entry> EntryMap;
+
+        static bool readEntries(const std::string& fileName, std::uint64_t expectedKey, EntryMap& entries);
+
+        std::uint64_t _key;
+        EntryMap _entries;
+        bool _modified;
+        mutable std::mutex _mutex;
+        //=============================================================================
+    };	// END of class MuscleTemplateCache
+    //=============================================================================
+    //=============================================================================
+
+} // end of namespace OpenSim
+
+#endif // MUSCLE_TEMPLATE_CACHE_FOR_OPENSIM_H_
@@ -0,0 +1,65 @@
+/* --------------------------------------------------------------------------*
+*                  Muscle Optimizer: PolynomialSurrogate.h                   *
+* -------------------------------------------------------------------------- *
+*                                                                            *
+* Copyright 2015  Elena Ceseracciu, Luca Modenese                            *
+*                                                                            *
+* Licensed under the Apache License, Version 2.0 (the "License");            *
+* you may not use this file except in compliance with the License.           *
+* You may obtain a copy of the License at                                    *
+*                                                                            *
+*     http://www.apache.org/licenses/LICENSE-2.0                             *
+*                                                                            *
+* Unless required by applicable law or agreed to in writing, software        *
+* distributed under the License is distributed on an "AS IS" BASIS,          *
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+* See the License for the specific language governing permissions and        *
+* limitations under the License.                                             *
+* ---------------------------------------------------------------------------*/
+
+#ifndef POLYNOMIAL_SURROGATE_FOR_OPENSIM_H_
+#define POLYNOMIAL_SURROGATE_FOR_OPENSIM_H_
+
+// INCLUDE
+#include <cstddef>
+#include <vector>
+#include "osimToolsDLL.h"
+
+namespace OpenSim {
+
+    //=============================================================================
+    //=============================================================================
+    /**
+     *  Multivariate polynomial of given total degree, fitted in the least-squares
+     *  sense to samples of a smooth function of a few coordinates (e.g. the MTU
+     *  length of a muscle over the coordinates it spans). Coordinates are mapped
+     *  to [-1, 1] over the given bounds to keep the fit well conditioned.
+     */
+    class OSIMTOOLS_API PolynomialSurrogate {
+    public:
+        PolynomialSurrogate(int degree, const std::vector<double>& lowerBounds, const std::vector<double>& upperBounds);
+
+        /* Number of coefficients (monomials of total degree <= degree) */
+        size_t getNumTerms() const { return _exponents.size(); }
+
+        /* Fit the coefficients to the samples; each row of coordinates is one sample.
+           Returns false if there are fewer samples than terms, or the samples do not determine the polynomial */
+        bool fit(const std::vector<std::vector<double> >& coordinates, const std::vector<double>& values);
+        double evaluate(const std::vector<double>& coordinates) const;
+
+    private:
+        void computeTerms(const std::vector<double>& coordinates, std::vector<double>& terms) const;
+
+        int _degree;
+        std::vector<double> _center;
+        std::vector<double> _halfRange;
+        std::vector<std::vector<int> > _exponents;
+        std::vector<double> _coefficients;
+        //=============================================================================
+    };	// END of class PolynomialSurrogate
+    //=============================================================================
+    //=============================================================================
+
+} // end of namespace OpenSim
+
+#endif // POLYNOMIAL_SURROGATE_FOR_OPENSIM_H_
@@ -0,0 +1,151 @@
+/* --------------------------------------------------------------------------*
+*                  Muscle Optimizer: CoordinateGrid.cpp                      *
+* -------------------------------------------------------------------------- *
+*                                                                            *
+* Copyright 2015  Elena Ceseracciu, Luca Modenese                            *
+*                                                                            *
+* Licensed under the Apache License, Version 2.0 (the "License");            *
+* you may not use this file except in compliance with the License.           *
+* You may obtain a copy of the License at                                    *
+*                                                                            *
+*     http://www.apache.org/licenses/LICENSE-2.0                             *
+*                                                                            *
+* Unless required by applicable law or agreed to in writing, software        *
+* distributed under the License is distributed on an "AS IS" BASIS,          *
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+* See the License for the specific language governing permissions and        *
+* limitations under the License.                                             *
+* ---------------------------------------------------------------------------*/
+
+//=============================================================================
+// INCLUDES
+//=============================================================================
+#include "OpenSim/Tools/CoordinateGrid.h"
+
+#include <cstdint>
+#include <random>
+
+//=============================================================================
+// STATICS
+//=============================================================================
+using namespace std;
+using namespace OpenSim;
+
+// Direction numbers for the Sobol sequence from dimension 2 onwards (Joe and Kuo, new-joe-kuo-6.21201):
+// degree s of the primitive polynomial, its coefficients a and the initial direction numbers m_1...m_s
+struct SobolDirectionNumbers
+{
+    unsigned int s;
+    unsigned int a;
+    unsigned int m[7];
+};
+
+static const SobolDirectionNumbers sobolDirectionNumbers[] = {
+    { 1, 0, { 1 } },
+    { 2, 1, { 1, 3 } },
+    { 3, 1, { 1, 3, 1 } },
+    { 3, 2, { 1, 1, 1 } },
+    { 4, 1, { 1, 1, 3, 3 } },
+    { 4, 4, { 1, 3, 5, 13 } },
+    { 5, 2, { 1, 1, 5, 5, 17 } },
+    { 5, 4, { 1, 1, 5, 5, 5 } },
+    { 5, 7, { 1, 1, 7, 11, 19 } },
+    { 5, 11, { 1, 1, 5, 1, 1 } },
+    { 5, 13, { 1, 1, 1, 3, 11 } },
+    { 5, 14, { 1, 3, 5, 5, 31 } },
+    { 6, 1, { 1, 3, 3, 9, 7, 49 } },
+    { 6, 13, { 1, 1, 1, 15, 21, 21 } },
+    { 6, 16, { 1, 3, 1, 13, 27, 49 } },
+    { 6, 19, { 1, 1, 1, 15, 7, 5 } },
+    { 6, 22, { 1, 3, 1, 15, 13, 25 } },
+    { 6, 25, { 1, 1, 5, 5, 19, 61 } },
+    { 7, 1, { 1, 3, 7, 11, 23, 15, 103 } },
+    { 7, 4, { 1, 3, 7, 13, 13, 15, 69 } }
+};
+
+static const unsigned int sobolBits = 32;
+
+// Direction numbers V_1...V_32 of one dimension of the Sobol sequence, scaled by 2^32
+static std::vector<std::uint32_t> computeSobolDirections(size_t dimension)
+{
+    std::vector<std::uint32_t> directions(sobolBits);
+    if (dimension == 0)
+    {
+        for (unsigned int k = 0; k < sobolBits; ++k)
+            directions[k] = std::uint32_t(1) << (sobolBits - 1 - k);
+        return directions;
+    }
+
+    const SobolDirectionNumbers& numbers = sobolDirectionNumbers[dimension - 1];
+    for (unsigned int k = 0; k < sobolBits && k < numbers.s; ++k)
+        directions[k] = numbers.m[k] << (sobolBits - 1 - k);
+    for (unsigned int k = numbers.s; k < sobolBits; ++k)
+    {
+        directions[k] = directions[k - numbers.s] ^ (directions[k - numbers.s] >> numbers.s);
+        for (unsigned int l = 1; l < numbers.s; ++l)
+            if ((numbers.a >> (numbers.s - 1 - l)) & 1)
+                directions[k] ^= directions[k - l];
+    }
+    return directions;
+}
+
+//=============================================================================
+// QUASI-RANDOM DESIGNS
+//=============================================================================
+//_____________________________________________________________________________
+size_t CoordinateGrid::getMaxSobolDimensions()
+{
+    return sizeof(sobolDirectionNumbers) / sizeof(sobolDirectionNumbers[0]) + 1;
+}
+
+//_____________________________________________________________________________
+CoordinateGrid CoordinateGrid::createSobol(const std::vector<std::string>& coordinateNames, const std::vector<double>& rangeMin, const std::vector<double>& rangeMax, size_t nPoses)
+{
+    CoordinateGrid grid(Scattered);
+    for (size_t coordinateIndex = 0; coordinateIndex < coordinateNames.size() && coordinateIndex < getMaxSobolDimensions(); ++coordinateIndex)
+    {
+        std::vector<std::uint32_t> directions = computeSobolDirections(coordinateIndex);
+        std::vector<double> samples(nPoses);
+        // Gray-code construction (Antonov and Saleev): point i+1 differs from point i by the direction
+        // number of the rightmost zero bit of i. The first point (the lower corner of the ranges) is kept.
+        std::uint32_t x = 0;
+        for (size_t poseIndex = 0; poseIndex < nPoses; ++poseIndex)
+        {
+            samples[poseIndex] = rangeMin[coordinateIndex] + (rangeMax[coordinateIndex] - rangeMin[coordinateIndex]) * (x / 4294967296.0);
+            unsigned int c = 0;
+            for (size_t value = poseIndex; value & 1; value >>= 1)
+                ++c;
+            if (c < sobolBits)
+                x ^= directions[c];
+        }
+        grid.addCoordinate(coordinateNames[coordinateIndex], samples);
+    }
+    return grid;
+}
+
+//_____________________________________________________________________________
+CoordinateGrid CoordinateGrid::createLatinHypercube(const std::vector<std::string>& coordinateNames, const std::vector<double>& rangeMin, const std::vector<double>& rangeMax, size_t nPoses)
+{
+    CoordinateGrid grid(Scattered);
+    // Fixed seed, and no std distributions (whose output is implementation defined),
+    // so that the same poses are generated on every platform and in every run
+    std::mt19937 generator(5489u);
+    for (size_t coordinateIndex = 0; coordinateIndex < coordinateNames.size(); ++coordinateIndex)
+    {
+        // one sample in each of the nPoses strata of the range, strata shuffled independently for each coordinate
+        std::vector<size_t> strata(nPoses);
+        for (size_t i = 0; i < nPoses; ++i)
+            strata[i] = i;
+        for (size_t i = nPoses; i > 1; --i)
+            std::swap(strata[i - 1], strata[generator() % i]);
+
+        std::vector<double> samples(nPoses);
+        for (size_t poseIndex = 0; poseIndex < nPoses; ++poseIndex)
+        {
+            double offset = (generator() + 0.5) / 4294967296.0;
+            samples[poseIndex] = rangeMin[coordinateIndex] + (rangeMax[coordinateIndex] - rangeMin[coordinateIndex]) * ((strata[poseIndex] + offset) / nPoses);
+        }
+        grid.addCoordinate(coordinateNames[coordinateIndex], samples);
+    }
+    return grid;
+}
@@ -0,0 +1,212 @@
+/* --------------------------------------------------------------------------*
+*                  Muscle Optimizer: ModelTopology.cpp                       *
+* -------------------------------------------------------------------------- *
+*                                                                            *
+* Copyright 2015  Elena Ceseracciu, Luca Modenese                            *
+*                                                                            *
+* Licensed under the Apache License, Version 2.0 (the "License");            *
+* you may not use this file except in compliance with the License.           *
+* You may obtain a copy of the License at                                    *
+*                                                                            *
+*     http://www.apache.org/licenses/LICENSE-2.0                             *
+*                                                                            *
+* Unless required by applicable law or agreed to in writing, software        *
+* distributed under the License is distributed on an "AS IS" BASIS,          *
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+* See the License for the specific language governing permissions and        *
+* limitations under the License.                                             *
+* ---------------------------------------------------------------------------*/
+
+//=============================================================================
+// INCLUDES
+//=============================================================================
+#include "OpenSim/Tools/ModelTopology.h"
+#include <OpenSim/Simulation/Model/Model.h>
+#include <OpenSim/Simulation/SimbodyEngine/CoordinateCouplerConstraint.h>
+
+#include <algorithm>
+#include <set>
+#include <utility>
+
+//=============================================================================
+// STATICS
+//=============================================================================
+using namespace std;
+using namespace OpenSim;
+
+// Append the independent coordinates of a dependent coordinate, replacing those that are in turn coupled to others
+static void resolveIndependentCoordinates(const std::map<std::string, std::vector<std::string> >& directCouplings, const std::string& coordinateName,
+    std::set<std::string>& visited, std::vector<std::string>& independentCoordinates)
+{
+    std::map<std::string, std::vector<std::string> >::const_iterator couplingIt = directCouplings.find(coordinateName);
+    if (couplingIt == directCouplings.end())
+    {
+        if (std::find(independentCoordinates.begin(), independentCoordinates.end(), coordinateName) == independentCoordinates.end())
+            independentCoordinates.push_back(coordinateName);
+        return;
+    }
+    if (!visited.insert(coordinateName).second) // circular couplings
+        return;
+    for (size_t i = 0; i < couplingIt->second.size(); ++i)
+        resolveIndependentCoordinates(directCouplings, couplingIt->second[i], visited, independentCoordinates);
+}
+
+//=============================================================================
+// CONSTRUCTOR(S)
+//=============================================================================
+//_____________________________________________________________________________
+ModelTopology::ModelTopology(const Model& model)
+{
+    const BodySet& bodySet = model.getBodySet();
+    const JointSet& jointSet = model.getJointSet();
+    int nBodies = bodySet.getSize();
+    for (int bodyIndex = 0; bodyIndex < nBodies; ++bodyIndex)
+        _bodyIndices[bodySet.get(bodyIndex).getName()] = bodyIndex;
+
+    _parentJoint.assign(nBodies, -1);
+    _parentBody.assign(nBodies, -1);
+    _depth.assign(nBodies, 0);
+    _treeId.assign(nBodies, -1);
+    _firstOccurrence.assign(nBodies, -1);
+    _jointHasCoordinates.assign(jointSet.getSize(), false);
+
+    std::vector<std::vector<int> > children(nBodies);
+    for (int jointIndex = 0; jointIndex < jointSet.getSize(); ++jointIndex)
+    {
+        const Joint& joint = jointSet.get(jointIndex);
+        _jointHasCoordinates[jointIndex] = joint.getCoordinateSet().getSize() != 0;
+        int childIndex = getBodyIndex(joint.getBody().getName());
+        int parentIndex = getBodyIndex(joint.getParentBody().getName());
+        if (childIndex < 0 || parentIndex < 0 || _parentJoint[childIndex] >= 0)
+            continue;
+        _parentJoint[childIndex] = jointIndex;
+        _parentBody[childIndex] = parentIndex;
+        children[parentIndex].push_back(childIndex);
+    }
+
+    // Euler tour (iterative depth-first visit) starting from every body without a parent joint
+    for (int rootIndex = 0; rootIndex < nBodies; ++rootIndex)
+    {
+        if (_parentBody[rootIndex] >= 0)
+            continue;
+        std::vector<std::pair<int, size_t> > stack(1, std::make_pair(rootIndex, size_t(0)));
+        _treeId[rootIndex] = rootIndex;
+        _firstOccurrence[rootIndex] = static_cast<int>(_eulerTour.size());
+        _eulerTour.push_back(rootIndex);
+        while (!stack.empty())
+        {
+            int bodyIndex = stack.back().first;
+            size_t& nextChild = stack.back().second;
+            if (nextChild < children[bodyIndex].size())
+            {
+                int childIndex = children[bodyIndex][nextChild++];
+                _treeId[childIndex] = rootIndex;
+                _depth[childIndex] = _depth[bodyIndex] + 1;
+                _firstOccurrence[childIndex] = static_cast<int>(_eulerTour.size());
+                _eulerTour.push_back(childIndex);
+                stack.push_back(std::make_pair(childIndex, size_t(0)));
+            }
+            else
+            {
+                stack.pop_back();
+                if (!stack.empty())
+                    _eulerTour.push_back(stack.back().first);
+            }
+        }
+    }
+
+    // Bodies in a loop of joints were never visited: cut them off so that parent walks always end
+    for (int bodyIndex = 0; bodyIndex < nBodies; ++bodyIndex)
+    {
+        if (_treeId[bodyIndex] < 0)
+        {
+            _parentJoint[bodyIndex] = -1;
+            _parentBody[bodyIndex] = -1;
+        }
+    }
+
+    // Coordinate couplers: the constraint set is scanned once, and chains of couplers are resolved to their independent coordinates
+    std::map<std::string, std::vector<std::string> > directCouplings;
+    const ConstraintSet& constraintSet = model.getConstraintSet();
+    for (int n = 0; n < constraintSet.getSize(); ++n)
+    {
+        const CoordinateCouplerConstraint* constraint = dynamic_cast<const CoordinateCouplerConstraint*>(&constraintSet.get(n));
+        if (constraint == NULL) // we can only handle this type of constraint, so we just skip the others
+            continue;
+        const Array<std::string>& independentCoordinateNames = constraint->getIndependentCoordinateNames();
+        std::vector<std::string>& coupling = directCouplings[constraint->getDependentCoordinateName()];
+        for (int i = 0; i < independentCoordinateNames.getSize(); ++i)
+            coupling.push_back(independentCoordinateNames.get(i));
+    }
+    for (std::map<std::string, std::vector<std::string> >::const_iterator couplingIt = directCouplings.begin(); couplingIt != directCouplings.end(); ++couplingIt)
+    {
+        std::set<std::string> visited;
+        resolveIndependentCoordinates(directCouplings, couplingIt->first, visited, _independentCoordinates[couplingIt->first]);
+    }
+
+    _sparseTable.push_back(_eulerTour);
+    for (size_t span = 1; 2 * span <= _eulerTour.size(); span *= 2)
+    {
+        const std::vector<int>& previousLevel = _sparseTable.back();
+        std::vector<int> level(_eulerTour.size() - 2 * span + 1);
+        for (size_t i = 0; i < level.size(); ++i)
+        {
+            int left = previousLevel[i], right = previousLevel[i + span];
+            level[i] = _depth[left] <= _depth[right] ? left : right;
+        }
+        _sparseTable.push_back(level);
+    }
+}
+
+//=============================================================================
+// QUERIES
+//=============================================================================
+//_____________________________________________________________________________
+int ModelTopology::getBodyIndex(const std::string& bodyName) const
+{
+    std::map<std::string, int>::const_iterator bodyIt = _bodyIndices.find(bodyName);
+    return bodyIt == _bodyIndices.end() ? -1 : bodyIt->second;
+}
+
+//_____________________________________________________________________________
+int ModelTopology::getLowestCommonAncestor(int firstBodyIndex, int secondBodyIndex) const
+{
+    if (firstBodyIndex < 0 || secondBodyIndex < 0 || _treeId[firstBodyIndex] < 0 || _treeId[firstBodyIndex] != _treeId[secondBodyIndex])
+        return -1;
+
+    size_t begin = static_cast<size_t>(_firstOccurrence[firstBodyIndex]);
+    size_t end = static_cast<size_t>(_firstOccurrence[secondBodyIndex]);
+    if (begin > end)
+        std::swap(begin, end);
+    size_t level = 0;
+    while ((size_t(2) << level) <= end - begin + 1)
+        ++level;
+    int left = _sparseTable[level][begin];
+    int right = _sparseTable[level][end + 1 - (size_t(1) << level)];
+    return _depth[left] <= _depth[right] ? left : right;
+}
+
+//_____________________________________________________________________________
+bool ModelTopology::getJointsBetweenBodies(int firstBodyIndex, int secondBodyIndex, std::vector<int>& jointIndices) const
+{
+    jointIndices.clear();
+    int ancestorIndex = getLowestCommonAncestor(firstBodyIndex, secondBodyIndex);
+    if (ancestorIndex < 0)
+        return false;
+
+    for (int bodyIndex = secondBodyIndex; bodyIndex != ancestorIndex; bodyIndex = _parentBody[bodyIndex])
+        if (_jointHasCoordinates[_parentJoint[bodyIndex]])
+            jointIndices.push_back(_parentJoint[bodyIndex]);
+    for (int bodyIndex = firstBodyIndex; bodyIndex != ancestorIndex; bodyIndex = _parentBody[bodyIndex])
+        if (_jointHasCoordinates[_parentJoint[bodyIndex]])
+            jointIndices.push_back(_parentJoint[bodyIndex]);
+    return true;
+}
+
+//_____________________________________________________________________________
+const std::vector<std::string>& ModelTopology::getIndependentCoordinates(const std::string& dependentCoordinateName) const
+{
+    static const std::vector<std::string> noCoordinates;
+    std::map<std::string, std::vector<std::string> >::const_iterator couplingIt = _independentCoordinates.find(dependentCoordinateName);
+    return couplingIt == _independentCoordinates.end() ? noCoordinates : couplingIt->second;
+}
@@ -117,7 +117,8 @@ void MuscleOptimizeTool::registerTypes()
 //=============================================================================
 //_____________________________________________________________________________
 /**
- * Load input model
+ * Load input model. The system is not built: processModel and
+ * precomputeTemplates call initSystem once they are ready to sample.
  *
  * @return Pointer to the Model that is created.
  */
@@ -126,8 +127,6 @@ Model* MuscleOptimizeTool::loadInputModel()
     Model* model = NULL;
     try{
         model = new Model(get_model());
-        SimTK::State &state = model->initSystem();
-
         model->setName(getName());
     }
     catch (const Exception& x)
@@ -139,7 +138,7 @@ Model* MuscleOptimizeTool::loadInputModel()
     return model;
 }
 /**
- * Load reference model
+ * Load reference model (the system is not built, as for the input model)
  *
  * @return Pointer to the Model that is created.
  */
@@ -148,7 +147,6 @@ Model* MuscleOptimizeTool::loadReferenceModel()
     Model* model = NULL;
     try{
         model = new Model(get_reference_model());
-        SimTK::State &state = model->initSystem();
     }
     catch (const Exception& x)
     {
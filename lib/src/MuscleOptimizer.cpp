@@ -23,6 +23,10 @@
 //=============================================================================
 #include <OpenSim/Common/ScaleSet.h>
 #include "OpenSim/Tools/MuscleOptimizer.h"
+#include "OpenSim/Tools/MuscleParameterFit.h"
+#include "OpenSim/Tools/ModelTopology.h"
+#include "OpenSim/Tools/PolynomialSurrogate.h"
+#include "OpenSim/Tools/MuscleSampleDump.h"
 #include <OpenSim/Simulation/Model/Model.h>
 #include <OpenSim/Simulation/SimbodyEngine/SimbodyEngine.h>
 #include <OpenSim/Common/MarkerData.h>
@@ -32,20 +36,81 @@
 #include <OpenSim/Simulation/Model/MarkerSet.h>
 #include <OpenSim/Simulation/Model/Marker.h>
 #include <OpenSim/Simulation/Model/ForceSet.h>
-#include <OpenSim/Simulation/SimbodyEngine/CoordinateCouplerConstraint.h>
 #include <OpenSim/Actuators/MuscleFixedWidthPennationModel.h>
-#include <simmath/LinearAlgebra.h>
 
 #include <vector>
 #include <set>
 #include <string>
 #include <cmath>
+#include <sstream>
+#include <memory>
+#include <thread>
+#include <mutex>
+#include <atomic>
+#include <map>
+#include <unordered_map>
+#include <algorithm>
+#include <limits>
+#include <chrono>
 
 //=============================================================================
 // STATICS
 //=============================================================================
 using namespace std;
 using namespace OpenSim;
+
+// Total degree of the polynomial MTU length surrogate
+static const int mtuSurrogateDegree = 3;
+// Number of poses sampled between two polls of the cancellation callback
+static const size_t posesPerCancellationCheck = 32;
+
+typedef std::chrono::steady_clock Clock;
+
+static double secondsSince(const Clock::time_point& start)
+{
+    return std::chrono::duration<double>(Clock::now() - start).count();
+}
+
+// Callback calls of one processModel run are serialized here; once a cancellation
+// has been seen, it is remembered so that later polls do not reach the callback
+struct MuscleOptimizer::ProgressMonitor
+{
+    ProgressMonitor(MuscleOptimizerCallback* callback, int nMuscles) : callback(callback), nMuscles(nMuscles), nProcessedMuscles(0), cancelled(false) {}
+
+    MuscleOptimizerCallback* callback;
+    int nMuscles;
+    int nProcessedMuscles;
+    std::atomic<bool> cancelled;
+    std::mutex mutex;
+};
+
+static size_t greatestCommonDivisor(size_t a, size_t b)
+{
+    while (b != 0)
+    {
+        size_t r = a % b;
+        a = b;
+        b = r;
+    }
+    return a;
+}
+
+// Distinct pose indices spread over the whole grid: the canonical indices are walked with a stride
+// close to the golden ratio of the grid size (and coprime with it, so that no index is repeated)
+static std::vector<size_t> selectSpreadPoses(size_t nPoses, size_t nSelected)
+{
+    size_t stride = std::max<size_t>(static_cast<size_t>(nPoses*0.6180339887498949), 1);
+    while (greatestCommonDivisor(stride, nPoses) != 1)
+        ++stride;
+    std::vector<size_t> poses(nSelected);
+    size_t poseIndex = 0;
+    for (size_t i = 0; i < nSelected; ++i)
+    {
+        poses[i] = poseIndex;
+        poseIndex = (poseIndex + stride) % nPoses;
+    }
+    return poses;
+}
 using SimTK::Vec3;
 
 inline bool isAbsolute(const char *path) {
@@ -71,6 +136,12 @@ MuscleOptimizer::MuscleOptimizer()
 {
     constructProperties();
     _printResultFiles = true;
+    _allMusclesEnabled = true;
+    _allCoordinatesEnabled = true;
+    _nOptimizedMuscles = 0;
+    _nFallbacks = 0;
+    _callback = NULL;
+    _progressMonitor = NULL;
 }
 
 //_____________________________________________________________________________
@@ -95,8 +166,17 @@ void MuscleOptimizer::constructProperties()
     constructProperty_coordinates();
     constructProperty_muscles();
     constructProperty_n_evaluation_points(10);
+    constructProperty_n_threads(1);
     constructProperty_min_degrees_increment(2.5);
+    constructProperty_sampling_strategy("grid");
+    constructProperty_max_poses_per_muscle(0);
+    constructProperty_template_mode("equilibrium");
+    constructProperty_mtu_length_surrogate(false);
+    constructProperty_mtu_length_surrogate_tolerance(0.0001);
     constructProperty_output_model_file("");
+    constructProperty_template_cache_file("");
+    constructProperty_sample_dump_file("");
+    constructProperty_report_file("");
 }
 
 //_____________________________________________________________________________
@@ -113,118 +193,174 @@ void MuscleOptimizer::registerTypes()
 //_____________________________________________________________________________
 bool MuscleOptimizer::processModel(Model* inputModel, Model* referenceModel, const std::string& aPathToSubject)
 {
+    return processSelectedMuscles(inputModel, referenceModel, NULL, aPathToSubject);
+}
+
+bool MuscleOptimizer::processModel(Model* inputModel, Model* referenceModel, const std::vector<std::string>& muscleNames, const std::string& aPathToSubject)
+{
+    std::unordered_set<std::string> selectedMuscleNames(muscleNames.begin(), muscleNames.end());
+    return processSelectedMuscles(inputModel, referenceModel, &selectedMuscleNames, aPathToSubject);
+}
 
+// muscleNames (if not NULL) replaces the muscles property
+bool MuscleOptimizer::processSelectedMuscles(Model* inputModel, Model* referenceModel, const std::unordered_set<std::string>* muscleNames, const std::string& aPathToSubject)
+{
+    Clock::time_point runStart = Clock::now();
+    _nOptimizedMuscles = 0;
+    _nFallbacks = 0;
+    _report.reset(std::vector<std::string>(), 0);
     if (!get_apply()) return false;
+    if (!checkSamplingSettings()) return false;
 
     try
     {
-        OpenSim::Array<std::string> musclesInput, musclesReference;
-        referenceModel->getMuscles().getNames(musclesReference);
+        // Resolution pass: selections become hash sets, and muscles and coordinates are resolved
+        // to their indices in both models, so that no name is looked up while sampling
+        resolveSelections();
+        OpenSim::Array<std::string> musclesInput;
         inputModel->getMuscles().getNames(musclesInput);
 
-        int nEnabledMuscles = 0;
-        // Check that all enabled input model's muscles can be found in the reference model
+        std::vector<int> enabledMuscles;
+        std::vector<std::string> enabledMuscleNames;
         for (int im = 0; im < musclesInput.getSize(); ++im)
         {
-            if (isEnabledMuscle(musclesInput[im]))
+            if (muscleNames ? muscleNames->count(musclesInput[im]) > 0 : isEnabledMuscle(musclesInput[im]))
             {
-                ++nEnabledMuscles; // also, count the total number of enabled muscles, so that we can provide this info to the user to check progress
-                if (musclesReference.findIndex(musclesInput[im]) < 0)
-                {
-                    cout << "Muscle optimizer: ERROR- Muscle " << musclesInput[im] << " could not be found in reference model! Aborting." << std::endl;
-                    return false;
-                }
+                enabledMuscles.push_back(im); // also, count the total number of enabled muscles, so that we can provide this info to the user to check progress
+                enabledMuscleNames.push_back(musclesInput[im]);
             }
         }
-
-        int curMuscleOrdinal = 0;
-        for (int im = 0; im < musclesInput.getSize(); ++im) {
-            std::string currentMuscleName = musclesInput[im];
-            if (isEnabledMuscle(currentMuscleName))
+        int nEnabledMuscles = static_cast<int>(enabledMuscles.size());
+        _report.reset(enabledMuscleNames, 0);
+        ModelHandles inputHandles = resolveModelHandles(*inputModel, enabledMuscleNames);
+        ModelHandles referenceHandles = resolveModelHandles(*referenceModel, enabledMuscleNames);
+        // Check that all enabled input model's muscles can be found in the reference model
+        for (size_t curMuscleOrdinal = 0; curMuscleOrdinal < enabledMuscleNames.size(); ++curMuscleOrdinal)
+        {
+            if (referenceHandles.muscleIndices[curMuscleOrdinal] < 0)
             {
-                std::cout << "Optimizing muscle " << ++curMuscleOrdinal << "/" << nEnabledMuscles << ": " << currentMuscleName << ";";
-                // Reset models' poses
-                SimTK::State& referenceInitialState = referenceModel->initSystem();
-                SimTK::State& inputInitialState = inputModel->initSystem();
-
-                MuscleOptimizer::CoordinateCombinations coordCombinations = sampleROMsForMuscle(*inputModel, inputInitialState, currentMuscleName, get_n_evaluation_points());
-                if (coordCombinations.size()>0)
-                {
-                    std::cout << "using coordinates [ ";
-                    for (auto& cit : coordCombinations)
-                        std::cout << cit.first << " ";
-                    std::cout << "], total no. of combinations " << coordCombinations.at(0).second.size() << endl;
-                }
-                else
-                {
-                    std::cout << "   No coordinates for " << currentMuscleName << ", skipping optimization" << std::endl;
-                    continue;
-                }
-                if (coordCombinations.size() > 0 && coordCombinations.at(0).second.size() < get_n_evaluation_points() / 2) //just a check that the sampling did not fail
-                    std::cout << "WARNING! no. of coordinate combinations is less than half the number of eval points" << endl;
-                std::vector<TemplateMuscleInfo> templateQuantities = sampleTemplateQuantities(*referenceModel, referenceInitialState, currentMuscleName, coordCombinations);
-
-
-                SimTK::Vector targetMTUlength = sampleMTULength(*inputModel, inputInitialState, currentMuscleName, coordCombinations);
-
-                if (targetMTUlength.size() != templateQuantities.size()) {
-                    std::cout << "   Could not sample target MTU lengths on the same poses as reference model" << std::endl;
-                    std::cout << "   There might be some inconsistencies between joints/coordinates definitions in the two models" << std::endl;
-                    continue;
-                }
-
-                SimTK::Matrix A(templateQuantities.size(), 2);
-                for (size_t i = 0; i < templateQuantities.size(); ++i)
-                {
-                    A(i, 0) = templateQuantities.at(i).normalizedFiberLength*cos(templateQuantities.at(i).pennationAngle);
-                    A(i, 1) = templateQuantities.at(i).normalizedTendonLength;
-                }
-
-                SimTK::Vector x;
-                SimTK::FactorQTZ qtz(A);
-                qtz.solve(targetMTUlength, x);
+                cout << "Muscle optimizer: ERROR- Muscle " << enabledMuscleNames[curMuscleOrdinal] << " could not be found in reference model! Aborting." << std::endl;
+                return false;
+            }
+        }
 
+        // Build both systems once per run; every muscle group then starts from a copy of the default states
+        Clock::time_point phaseStart = Clock::now();
+        const SimTK::State referenceDefaultState(referenceModel->initSystem());
+        const SimTK::State inputDefaultState(inputModel->initSystem());
+        _report.addRunPhaseSeconds(MuscleOptimizerReport::InitSystem, secondsSince(phaseStart));
+
+        // Group enabled muscles spanning the same coordinates, so that each pose is visited once per group
+        phaseStart = Clock::now();
+        std::vector<MuscleGroup> muscleGroups = groupMusclesByCoordinates(*inputModel, inputDefaultState, enabledMuscleNames);
+        _report.addRunPhaseSeconds(MuscleOptimizerReport::MuscleGrouping, secondsSince(phaseStart));
+
+        // Template quantities sampled on the reference model in previous runs are loaded instead of being re-sampled
+        std::unique_ptr<MuscleTemplateCache> templateCache;
+        std::string templateCacheFileName = getTemplateCacheFileName(aPathToSubject);
+        std::uint64_t templateCacheKey;
+        if (templateCacheFileName != "" && computeTemplateCacheKey(*referenceModel, templateCacheKey))
+        {
+            templateCache.reset(new MuscleTemplateCache(templateCacheKey));
+            if (templateCache->read(templateCacheFileName))
+                cout << "Loaded " << templateCache->getSize() << " template muscles from " << templateCacheFileName << endl;
+            else
+                cout << "Template cache " << templateCacheFileName << " not found or out of date, it will be rebuilt" << endl;
+        }
 
-                if (x[0] <= 0 || x[1] <= 0)
-                {
-                    if (x[0] <= 0)
-                        std::cout << " Negative estimate for optimal fiber length of muscle " << currentMuscleName << std::endl;
+        // Samples fed to the fit are streamed to the dump file, muscle by muscle
+        std::unique_ptr<MuscleSampleDump> sampleDump;
+        std::string sampleDumpFileName = getSampleDumpFileName(aPathToSubject);
+        if (sampleDumpFileName != "")
+        {
+            sampleDump.reset(new MuscleSampleDump());
+            if (!sampleDump->open(sampleDumpFileName))
+            {
+                cout << "WARNING: could not open sample dump file " << sampleDumpFileName << endl;
+                sampleDump.reset();
+            }
+        }
 
-                    if (x[1] <= 0)
-                        std::cout << " Negative estimate for tendon slack length of muscle " << currentMuscleName << std::endl;
+        std::vector<MuscleOptimizationResult> results(enabledMuscles.size());
+        int nThreads = getNumberOfThreads(static_cast<int>(muscleGroups.size()));
+        _report._nThreads = nThreads;
+        // the callback is reachable only while muscles are being optimized
+        ProgressMonitor progressMonitor(_callback, nEnabledMuscles);
+        _progressMonitor = &progressMonitor;
+        try
+        {
+            if (nThreads > 1)
+            {
+                cout << "Optimizing " << nEnabledMuscles << " muscles (" << muscleGroups.size() << " coordinate groups) using " << nThreads << " threads" << endl;
+                optimizeMusclesInParallel(*inputModel, inputHandles, *referenceModel, referenceHandles, enabledMuscleNames, muscleGroups, templateCache.get(), sampleDump.get(), results, nThreads);
+            }
+            else
+            {
+                for (size_t iGroup = 0; iGroup < muscleGroups.size(); ++iGroup)
+                    optimizeMuscleGroup(*inputModel, inputDefaultState, inputHandles, *referenceModel, referenceDefaultState, referenceHandles, enabledMuscleNames, muscleGroups[iGroup], templateCache.get(), sampleDump.get(), results, std::cout);
+            }
+        }
+        catch (...)
+        {
+            _progressMonitor = NULL;
+            throw;
+        }
+        _progressMonitor = NULL;
 
-                    if (max(A.col(1)) - min(A.col(1)) < 0.0001)
-                        std::cout << " Tendon length not changing throughout range of motion" << std::endl;
+        if (sampleDump)
+        {
+            if (sampleDump->close())
+                cout << "Wrote sample dump file " << sampleDumpFileName << endl;
+            else
+                cout << "WARNING: could not write sample dump file " << sampleDumpFileName << endl;
+        }
 
-                    SimTK::Vector templateMTUlength = sampleMTULength(*referenceModel, referenceInitialState, currentMuscleName, coordCombinations);
+        if (templateCache && templateCache->isModified())
+        {
+            if (templateCache->write(templateCacheFileName))
+                cout << "Wrote template cache file " << templateCacheFileName << endl;
+            else
+                cout << "WARNING: could not write template cache file " << templateCacheFileName << endl;
+        }
 
-                    SimTK::Vector Lfib_targ(targetMTUlength.size());
-                    for (int i = 0; i < Lfib_targ.size(); ++i)
-                    {
-                        double Lten_fraction = A(i, 1)*referenceModel->getMuscles().get(currentMuscleName).getTendonSlackLength() / templateMTUlength(i);
-                        Lfib_targ(i) = (1 - Lten_fraction)*targetMTUlength(i);
-                    }
-                    std::cout << " Fallback: optimize optimal fiber length assuming same proportion between fiber and tendon as in reference muscle" << std::endl;
-                    // first round - estimate Lopt, assuming that the same proportion between fiber and tendon in kept as in reference muscle
-                    SimTK::Matrix A_1(A.col(0));
-                    SimTK::FactorQTZ qtz1(A_1);
-                    SimTK::Vector x1(1);
-                    qtz1.solve(Lfib_targ, x1);
-                    //second round - estimate Lts, calculating tendon length from previous results on fiber length
-                    SimTK::Matrix A_2(A.col(1));
-                    SimTK::Vector b_2 = targetMTUlength - (A_1*x1(0)).col(0);
-                    SimTK::FactorQTZ qtz2(A_2);
-                    SimTK::Vector x2(1);
-                    qtz2.solve(b_2, x2);
-                    x(0) = x1(0);
-                    x(1) = x2(0);
-                }
+        // The report is written whether or not the run is completed
+        std::string reportFileName = getReportFileName(aPathToSubject);
+        auto writeReport = [&]()
+        {
+            _report._totalSeconds = secondsSince(runStart);
+            if (reportFileName == "")
+                return;
+            if (_report.write(reportFileName))
+                cout << "Wrote report file " << reportFileName << endl;
+            else
+                cout << "WARNING: could not write report file " << reportFileName << endl;
+        };
 
-                inputModel->getMuscles()[im].setOptimalFiberLength(x(0));
-                inputModel->getMuscles()[im].setTendonSlackLength(x(1));
+        // The input model is left untouched when the run was cancelled
+        if (progressMonitor.cancelled)
+        {
+            cout << "Muscle optimization cancelled" << endl;
+            _report._cancelled = true;
+            writeReport();
+            return false;
+        }
 
+        // Muscle parameters are only written back here, on the calling thread
+        for (size_t curMuscleOrdinal = 0; curMuscleOrdinal < enabledMuscles.size(); ++curMuscleOrdinal)
+        {
+            const MuscleOptimizationResult& result = results[curMuscleOrdinal];
+            if (!result.optimized)
+                continue;
+            ++_nOptimizedMuscles;
+            MuscleOptimizerReport::MuscleEntry& muscleReport = _report.updMuscle(static_cast<int>(curMuscleOrdinal));
+            muscleReport.optimized = true;
+            if (result.fallback)
+            {
+                ++_nFallbacks;
+                muscleReport.counters[MuscleOptimizerReport::Fallbacks] = 1;
             }
-
+            inputModel->getMuscles()[enabledMuscles[curMuscleOrdinal]].setOptimalFiberLength(result.optimalFiberLength);
+            inputModel->getMuscles()[enabledMuscles[curMuscleOrdinal]].setTendonSlackLength(result.tendonSlackLength);
         }
 
         if (_printResultFiles) {
@@ -232,240 +368,848 @@ bool MuscleOptimizer::processModel(Model* inputModel, Model* referenceModel, con
             if (!getProperty_output_model_file().getValueIsDefault() && get_output_model_file() != "")
             {
                 std::string outputModelFileName = isAbsolute(get_output_model_file().c_str()) ? get_output_model_file() : aPathToSubject + get_output_model_file();
+                phaseStart = Clock::now();
                 if (inputModel->print(outputModelFileName))
                     cout << "Wrote model file " << outputModelFileName << " from model " << inputModel->getName() << endl;
+                _report.addRunPhaseSeconds(MuscleOptimizerReport::ModelPrint, secondsSince(phaseStart));
             }
         }
 
-        inputModel->initializeState(); //this is to bring coordinates back to default, for the GUI
+        // Re-derive the default state from the updated muscle properties without rebuilding the system.
+        // This brings coordinates back to default for the GUI, and re-initializes muscles that cache their
+        // parameters in the state (e.g. Schutte1993Muscle, see IMPORTANT 3 in sampleMuscleQuantities.m)
+        inputModel->initializeState();
+        writeReport();
+
+    }
+    catch (const Exception& x)
+    {
+        x.print(cout);
+        return false;
+    }
+
+    return true;
+}
 
+bool MuscleOptimizer::precomputeTemplates(Model* referenceModel, const std::string& aPathToSubject)
+{
+    std::string templateCacheFileName = getTemplateCacheFileName(aPathToSubject);
+    if (templateCacheFileName == "")
+    {
+        cout << "Muscle optimizer: ERROR- No template cache file specified." << endl;
+        return false;
+    }
+    if (!checkSamplingSettings())
+        return false;
+
+    try
+    {
+        std::uint64_t templateCacheKey;
+        if (!computeTemplateCacheKey(*referenceModel, templateCacheKey))
+            return false;
+        MuscleTemplateCache templateCache(templateCacheKey);
+
+        resolveSelections();
+        OpenSim::Array<std::string> musclesReference;
+        referenceModel->getMuscles().getNames(musclesReference);
+        std::vector<std::string> enabledMuscleNames;
+        for (int im = 0; im < musclesReference.getSize(); ++im)
+            if (isEnabledMuscle(musclesReference[im]))
+                enabledMuscleNames.push_back(musclesReference[im]);
+
+        // The reference model is sampled on its own coordinate ranges: the cache is used by processModel
+        // whenever the input model has the same ranges (as for models scaled from the reference one)
+        const SimTK::State referenceDefaultState(referenceModel->initSystem());
+        std::vector<MuscleGroup> muscleGroups = groupMusclesByCoordinates(*referenceModel, referenceDefaultState, enabledMuscleNames);
+        ModelHandles referenceHandles = resolveModelHandles(*referenceModel, enabledMuscleNames);
+        for (size_t iGroup = 0; iGroup < muscleGroups.size(); ++iGroup)
+        {
+            const MuscleGroup& muscleGroup = muscleGroups[iGroup];
+            if (muscleGroup.coordinateGrid.empty())
+                continue;
+            std::vector<std::string> groupMuscleNames;
+            for (auto& curMuscleOrdinal : muscleGroup.muscleOrdinals)
+                groupMuscleNames.push_back(enabledMuscleNames[curMuscleOrdinal]);
+            cout << "Sampling template muscles " << muscleGroup.muscleOrdinals.front() + 1 << "-" << muscleGroup.muscleOrdinals.back() + 1 << "/" << enabledMuscleNames.size()
+                << " (" << groupMuscleNames.size() << " muscles, " << muscleGroup.coordinateGrid.getNumPoses() << " combinations)" << endl;
+
+            SimTK::State referenceState(referenceDefaultState);
+            std::vector<int> muscleIndices, coordinateIndices;
+            getGroupHandles(referenceHandles, muscleGroup, muscleIndices, coordinateIndices);
+            std::vector<std::vector<TemplateMuscleInfo> > templateQuantities;
+            std::vector<std::vector<size_t> > validCombinations;
+            SamplingStats samplingStats;
+            if (!sampleTemplateQuantities(*referenceModel, referenceState, muscleIndices, coordinateIndices, muscleGroup.coordinateGrid, templateQuantities, validCombinations, samplingStats))
+                continue;
+            std::uint64_t gridHash = computeGridHash(muscleGroup.coordinateGrid);
+            for (size_t iGroupMuscle = 0; iGroupMuscle < groupMuscleNames.size(); ++iGroupMuscle)
+                templateCache.insert(gridHash, groupMuscleNames[iGroupMuscle], templateQuantities[iGroupMuscle], validCombinations[iGroupMuscle]);
+        }
+
+        if (!templateCache.write(templateCacheFileName))
+        {
+            cout << "Muscle optimizer: ERROR- Could not write template cache file " << templateCacheFileName << endl;
+            return false;
+        }
+        cout << "Wrote template cache file " << templateCacheFileName << " (" << templateCache.getSize() << " template muscles)" << endl;
     }
     catch (const Exception& x)
     {
         x.print(cout);
         return false;
     }
+    return true;
+}
+
+std::string MuscleOptimizer::getSampleDumpFileName(const std::string& aPathToSubject)
+{
+    if (getProperty_sample_dump_file().getValueIsDefault() || get_sample_dump_file() == "")
+        return "";
+    return isAbsolute(get_sample_dump_file().c_str()) ? get_sample_dump_file() : aPathToSubject + get_sample_dump_file();
+}
+
+std::string MuscleOptimizer::getReportFileName(const std::string& aPathToSubject)
+{
+    if (getProperty_report_file().getValueIsDefault() || get_report_file() == "")
+        return "";
+    return isAbsolute(get_report_file().c_str()) ? get_report_file() : aPathToSubject + get_report_file();
+}
+
+std::string MuscleOptimizer::getTemplateCacheFileName(const std::string& aPathToSubject)
+{
+    if (getProperty_template_cache_file().getValueIsDefault() || get_template_cache_file() == "")
+        return "";
+    return isAbsolute(get_template_cache_file().c_str()) ? get_template_cache_file() : aPathToSubject + get_template_cache_file();
+}
+
+bool MuscleOptimizer::computeTemplateCacheKey(const Model& referenceModel, std::uint64_t& key)
+{
+    // content of the reference model file...
+    if (!MuscleTemplateCache::hashFile(referenceModel.getInputFileName(), key))
+    {
+        cout << "WARNING: could not read reference model file " << referenceModel.getInputFileName() << ", template cache disabled" << endl;
+        return false;
+    }
+    // ...and sampling settings. Muscle and coordinate selections are left out: entries are keyed by muscle
+    // and by the grid they were sampled on, whose hash covers the sampled coordinates, so that runs
+    // on different subsets of muscles share the same cache
+    key = MuscleTemplateCache::hash(&get_n_evaluation_points(), sizeof(int), key);
+    key = MuscleTemplateCache::hash(get_min_degrees_increment(), key);
+    key = MuscleTemplateCache::hash(get_sampling_strategy(), key);
+    key = MuscleTemplateCache::hash(&get_max_poses_per_muscle(), sizeof(int), key);
+    key = MuscleTemplateCache::hash(get_template_mode(), key);
+    return true;
+}
+
+std::uint64_t MuscleOptimizer::computeGridHash(const CoordinateGrid& coordinateGrid)
+{
+    CoordinateGrid::Layout layout = coordinateGrid.getLayout();
+    std::uint64_t gridHash = MuscleTemplateCache::hash(&layout, sizeof(layout));
+    for (size_t coordinateIndex = 0; coordinateIndex < coordinateGrid.getNumCoordinates(); ++coordinateIndex)
+    {
+        const std::vector<double>& samples = coordinateGrid.getSamples(coordinateIndex);
+        gridHash = MuscleTemplateCache::hash(coordinateGrid.getCoordinateName(coordinateIndex), gridHash);
+        gridHash = MuscleTemplateCache::hash(samples.data(), samples.size()*sizeof(double), gridHash);
+    }
+    return gridHash;
+}
+
+bool MuscleOptimizer::isCancelled()
+{
+    if (_progressMonitor == NULL)
+        return false;
+    if (_progressMonitor->cancelled)
+        return true;
+    if (_progressMonitor->callback == NULL)
+        return false;
+    std::lock_guard<std::mutex> lock(_progressMonitor->mutex);
+    if (_progressMonitor->callback->isCancelled())
+        _progressMonitor->cancelled = true;
+    return _progressMonitor->cancelled;
+}
+
+void MuscleOptimizer::reportMuscleProcessed(const std::string& muscleName)
+{
+    if (_progressMonitor == NULL || _progressMonitor->callback == NULL)
+        return;
+    std::lock_guard<std::mutex> lock(_progressMonitor->mutex);
+    ++_progressMonitor->nProcessedMuscles;
+    _progressMonitor->callback->muscleProcessed(_progressMonitor->nProcessedMuscles, _progressMonitor->nMuscles, muscleName);
+}
+
+int MuscleOptimizer::getNumberOfThreads(int nWorkItems)
+{
+    int nThreads = get_n_threads();
+    if (nThreads <= 0)
+        nThreads = static_cast<int>(std::thread::hardware_concurrency());
+    if (nThreads > nWorkItems)
+        nThreads = nWorkItems;
+    return nThreads < 1 ? 1 : nThreads;
+}
 
+bool MuscleOptimizer::checkSamplingSettings()
+{
+    const std::string& samplingStrategy = get_sampling_strategy();
+    if (samplingStrategy != "grid" && samplingStrategy != "sobol" && samplingStrategy != "latin_hypercube")
+    {
+        cout << "Muscle optimizer: ERROR- Unknown sampling strategy " << samplingStrategy << " (valid values: grid, sobol, latin_hypercube)" << endl;
+        return false;
+    }
+    if (get_template_mode() != "equilibrium" && get_template_mode() != "kinematic")
+    {
+        cout << "Muscle optimizer: ERROR- Unknown template mode " << get_template_mode() << " (valid values: equilibrium, kinematic)" << endl;
+        return false;
+    }
     return true;
 }
 
-Array<std::string> MuscleOptimizer::getJointSpannedByMuscle(Model& model, const string& muscleName)
+size_t MuscleOptimizer::getNumberOfScatteredPoses(size_t nCoordinates, unsigned int nEval)
 {
-    OpenSim::Array<std::string> jointNames;
+    // the budget never exceeds the size of the full grid, so that muscles spanning few coordinates are not oversampled
+    size_t maxPoses = get_max_poses_per_muscle() > 0 ? static_cast<size_t>(get_max_poses_per_muscle()) : std::numeric_limits<size_t>::max();
+    size_t nPoses = 1;
+    for (size_t coordinateIndex = 0; coordinateIndex < nCoordinates && nPoses < maxPoses; ++coordinateIndex)
+        nPoses = nPoses > maxPoses / nEval ? maxPoses : nPoses * nEval;
+    return std::min(nPoses, maxPoses);
+}
 
-    OpenSim::BodySet bodySet(model.getBodySet());
-    OpenSim::Set<OpenSim::Muscle> muscles = model.getMuscles();
-    OpenSim::Muscle& muscle = muscles.get(muscleName);
+std::vector<MuscleOptimizer::MuscleGroup> MuscleOptimizer::groupMusclesByCoordinates(Model& model, const SimTK::State& defaultState, const std::vector<std::string>& muscleNames)
+{
+    std::vector<MuscleOptimizer::MuscleGroup> muscleGroups;
+    std::map<std::vector<std::string>, size_t> groupIndices;
+    SimTK::State si(defaultState);
+    // the kinematic tree is indexed once, and then queried for every muscle
+    ModelTopology topology(model);
 
-    OpenSim::GeometryPath musclePath(muscle.getGeometryPath());
-    OpenSim::PathPointSet musclePathPointSet(musclePath.getPathPointSet());
+    for (size_t curMuscleOrdinal = 0; curMuscleOrdinal < muscleNames.size(); ++curMuscleOrdinal)
+    {
+        CoordinateGrid coordinateGrid = sampleROMsForMuscle(model, topology, si, muscleNames[curMuscleOrdinal], get_n_evaluation_points());
+        const std::vector<std::string>& coordinateNames = coordinateGrid.getCoordinateNames();
 
-    // check if there is a simple kinematic chain between geometry path extremes
-    int firstBodyIndex = 0;
-    const OpenSim::JointSet& jointSet = model.getJointSet();
-    // try to use consider first path point as on the proximal body, and last path point on the distal body
-    OpenSim::Body& lastBody = musclePathPointSet.get(musclePathPointSet.getSize() - 1).getBody();
-    OpenSim::Body& firstBody = musclePathPointSet.get(firstBodyIndex).getBody();
-    std::string currentBodyName(lastBody.getName());
-    std::string proximalBodyName(firstBody.getName());
-    while (currentBodyName != proximalBodyName && currentBodyName !="ground") {
-        for (int i = 0; i < jointSet.getSize(); i++)
+        // muscles with no coordinates are not grouped, so that each of them is reported on its own
+        std::map<std::vector<std::string>, size_t>::const_iterator groupIt = groupIndices.find(coordinateNames);
+        if (coordinateNames.empty() || groupIt == groupIndices.end())
         {
-            if (jointSet.get(i).getBody().getName() == currentBodyName)
+            if (!coordinateNames.empty())
+                groupIndices[coordinateNames] = muscleGroups.size();
+            muscleGroups.push_back(MuscleOptimizer::MuscleGroup());
+            muscleGroups.back().coordinateGrid = coordinateGrid;
+            muscleGroups.back().muscleOrdinals.push_back(static_cast<int>(curMuscleOrdinal));
+        }
+        else
+            muscleGroups[groupIt->second].muscleOrdinals.push_back(static_cast<int>(curMuscleOrdinal));
+    }
+    return muscleGroups;
+}
+
+void MuscleOptimizer::optimizeMuscleGroup(Model& inputModel, const SimTK::State& inputDefaultState, const ModelHandles& inputHandles, Model& referenceModel, const SimTK::State& referenceDefaultState, const ModelHandles& referenceHandles, const std::vector<std::string>& muscleNames, const MuscleGroup& muscleGroup, MuscleTemplateCache* templateCache, MuscleSampleDump* sampleDump, std::vector<MuscleOptimizationResult>& results, std::ostream& log)
+{
+    const CoordinateGrid& coordinateGrid = muscleGroup.coordinateGrid;
+    std::vector<std::string> groupMuscleNames;
+    for (auto& curMuscleOrdinal : muscleGroup.muscleOrdinals)
+    {
+        groupMuscleNames.push_back(muscleNames[curMuscleOrdinal]);
+        results[curMuscleOrdinal].optimized = false;
+        results[curMuscleOrdinal].fallback = false;
+    }
+    if (isCancelled())
+        return;
+
+    if (coordinateGrid.empty())
+    {
+        for (auto& curMuscleOrdinal : muscleGroup.muscleOrdinals)
+        {
+            log << "Optimizing muscle " << curMuscleOrdinal + 1 << "/" << muscleNames.size() << ": " << muscleNames[curMuscleOrdinal] << ";";
+            log << "   No coordinates for " << muscleNames[curMuscleOrdinal] << ", skipping optimization" << std::endl;
+            reportMuscleProcessed(muscleNames[curMuscleOrdinal]);
+        }
+        return;
+    }
+
+    // Reset models' poses by restoring the default states
+    SimTK::State referenceInitialState(referenceDefaultState);
+    SimTK::State inputInitialState(inputDefaultState);
+
+    std::vector<int> inputMuscleIndices, inputCoordinateIndices, referenceMuscleIndices, referenceCoordinateIndices;
+    getGroupHandles(inputHandles, muscleGroup, inputMuscleIndices, inputCoordinateIndices);
+    getGroupHandles(referenceHandles, muscleGroup, referenceMuscleIndices, referenceCoordinateIndices);
+    for (size_t iGroupMuscle = 0; iGroupMuscle < groupMuscleNames.size(); ++iGroupMuscle)
+        _report.updMuscle(muscleGroup.muscleOrdinals[iGroupMuscle]).templateCached = templateCache != NULL;
+
+    // time spent on the poses of the group is shared evenly among the sampled muscles
+    auto reportTemplateSampling = [&](const std::vector<size_t>& sampledMuscles, const SamplingStats& stats, double seconds)
+    {
+        for (size_t i = 0; i < sampledMuscles.size(); ++i)
+        {
+            MuscleOptimizerReport::MuscleEntry& muscleReport = _report.updMuscle(muscleGroup.muscleOrdinals[sampledMuscles[i]]);
+            const MuscleOptimizerReport::MuscleEntry& muscleStats = stats.muscles[i];
+            muscleReport.templateCached = false;
+            muscleReport.phaseSeconds[MuscleOptimizerReport::TemplateSampling] += seconds / sampledMuscles.size();
+            muscleReport.phaseSeconds[MuscleOptimizerReport::Realize] += stats.realizeSeconds / sampledMuscles.size();
+            muscleReport.phaseSeconds[MuscleOptimizerReport::Equilibrate] += muscleStats.phaseSeconds[MuscleOptimizerReport::Equilibrate];
+            muscleReport.counters[MuscleOptimizerReport::PosesEvaluated] += muscleStats.counters[MuscleOptimizerReport::PosesEvaluated];
+            muscleReport.counters[MuscleOptimizerReport::PosesPruned] += muscleStats.counters[MuscleOptimizerReport::PosesPruned];
+            muscleReport.counters[MuscleOptimizerReport::ExceptionsSwallowed] += muscleStats.counters[MuscleOptimizerReport::ExceptionsSwallowed];
+        }
+    };
+
+    // With a cache, template quantities are kept for the whole grid (the cache stores them anyway): they are taken
+    // from it when available, and only the missing muscles are sampled beforehand
+    std::vector<std::vector<TemplateMuscleInfo> > templateQuantities(groupMuscleNames.size());
+    std::vector<std::vector<size_t> > validCombinations(groupMuscleNames.size());
+    bool templateSampled = true;
+    if (templateCache)
+    {
+        std::uint64_t gridHash = computeGridHash(coordinateGrid);
+        std::vector<size_t> musclesToSample;
+        std::vector<int> muscleIndicesToSample;
+        for (size_t iGroupMuscle = 0; iGroupMuscle < groupMuscleNames.size(); ++iGroupMuscle)
+        {
+            if (!templateCache->find(gridHash, groupMuscleNames[iGroupMuscle], templateQuantities[iGroupMuscle], validCombinations[iGroupMuscle]))
             {
-                currentBodyName = jointSet.get(i).getParentBody().getName();
-                continue;
+                musclesToSample.push_back(iGroupMuscle);
+                muscleIndicesToSample.push_back(referenceMuscleIndices[iGroupMuscle]);
             }
         }
-    }
-    if (currentBodyName == "ground") {
-        // reverse - consider first path point as on distal body
-        currentBodyName = firstBody.getName();
-        proximalBodyName = lastBody.getName();
-        while (currentBodyName != proximalBodyName && currentBodyName != "ground") {
-            for (int i = 0; i < jointSet.getSize(); i++)
+        if (!musclesToSample.empty())
+        {
+            std::vector<std::vector<TemplateMuscleInfo> > sampledTemplateQuantities;
+            std::vector<std::vector<size_t> > sampledValidCombinations;
+            SamplingStats templateStats;
+            Clock::time_point samplingStart = Clock::now();
+            templateSampled = sampleTemplateQuantities(referenceModel, referenceInitialState, muscleIndicesToSample, referenceCoordinateIndices, coordinateGrid, sampledTemplateQuantities, sampledValidCombinations, templateStats);
+            reportTemplateSampling(musclesToSample, templateStats, secondsSince(samplingStart));
+            if (templateSampled)
             {
-                if (jointSet.get(i).getBody().getName() == currentBodyName)
+                for (size_t i = 0; i < musclesToSample.size(); ++i)
                 {
-                    currentBodyName = jointSet.get(i).getParentBody().getName();
-                    continue;
+                    templateQuantities[musclesToSample[i]].swap(sampledTemplateQuantities[i]);
+                    validCombinations[musclesToSample[i]].swap(sampledValidCombinations[i]);
+                    templateCache->insert(gridHash, groupMuscleNames[musclesToSample[i]], templateQuantities[musclesToSample[i]], validCombinations[musclesToSample[i]]);
                 }
             }
         }
-        if (currentBodyName == "ground") {
-            std::cout << "WARNING: Geometry Path for muscle " << muscleName << " does not follow a simple open kinematic chain" << std::endl;
-            return jointNames;
-        }
-        else {
-            currentBodyName = firstBody.getName();
-        }
-
     }
-    else {
-        currentBodyName = lastBody.getName();
+    if (isCancelled())
+        return;
+
+    // Without a cache, the reference muscles are sampled at each pose as its target MTU lengths come in
+    std::vector<Muscle*> referenceMuscles;
+    std::vector<Coordinate*> referenceCoordinates;
+    SamplingStats templateStats;
+    if (!templateCache)
+    {
+        templateStats.reset(groupMuscleNames.size());
+        templateSampled = resolveHandles(referenceModel, referenceMuscleIndices, referenceCoordinateIndices, coordinateGrid, referenceMuscles, referenceCoordinates);
+        for (auto muscle : referenceMuscles)
+            muscle->setActivation(referenceInitialState, 1.0);
     }
+    bool kinematicTemplates = get_template_mode() == "kinematic";
 
-    while (currentBodyName != proximalBodyName) {
-        for (int i = 0; i < jointSet.getSize(); i++)
+    // Template and target quantities are fed to the fits pose by pose: only the normal equations of the 2 unknowns
+    // are stored, and the rows of the sample dump are kept only when one is written
+    struct DumpRows
+    {
+        std::vector<size_t> poseIndices;
+        std::vector<std::vector<double> > poseValues;
+        std::vector<TemplateMuscleInfo> templateQuantities;
+        std::vector<double> targetMTULengths;
+    };
+    std::vector<MuscleParameterFit> fits(groupMuscleNames.size());
+    std::vector<DumpRows> dumpRows(sampleDump ? groupMuscleNames.size() : 0);
+    for (auto& rows : dumpRows)
+        rows.poseValues.resize(coordinateGrid.getNumCoordinates());
+    auto addPose = [&](size_t iGroupMuscle, size_t poseIndex, const std::vector<double>& poseValues, const TemplateMuscleInfo& templateInfo, double targetMTULength)
+    {
+        fits[iGroupMuscle].addPose(templateInfo.normalizedFiberLength*cos(templateInfo.pennationAngle), templateInfo.normalizedTendonLength,
+            templateInfo.mtuLength, targetMTULength);
+        if (!sampleDump)
+            return;
+        DumpRows& rows = dumpRows[iGroupMuscle];
+        rows.poseIndices.push_back(poseIndex);
+        for (size_t coordinateIndex = 0; coordinateIndex < poseValues.size(); ++coordinateIndex)
+            rows.poseValues[coordinateIndex].push_back(poseValues[coordinateIndex]);
+        rows.templateQuantities.push_back(templateInfo);
+        rows.targetMTULengths.push_back(targetMTULength);
+    };
+
+    // only target MTU lengths on the poses that were not discarded for the reference muscle are used; both
+    // samplers walk the grid in the same order, so cached templates are matched with a cursor per muscle
+    std::vector<size_t> templateCursors(groupMuscleNames.size(), 0);
+    std::vector<TemplateMuscleInfo> poseTemplates;
+    std::vector<bool> validTemplates;
+    double templateSeconds = 0.0;
+    MTULengthConsumer consumer = [&](size_t poseIndex, const std::vector<double>& poseValues, const std::vector<double>& mtuLengths)
+    {
+        if (templateCache)
         {
-            if (jointSet.get(i).getBody().getName() == currentBodyName)
+            for (size_t iGroupMuscle = 0; iGroupMuscle < groupMuscleNames.size(); ++iGroupMuscle)
             {
-                if (jointSet.get(i).getCoordinateSet().getSize() != 0)
-                    jointNames.append(jointSet.get(i).getName());
-                currentBodyName = jointSet.get(i).getParentBody().getName();
-                continue;
+                size_t& cursor = templateCursors[iGroupMuscle];
+                if (cursor < validCombinations[iGroupMuscle].size() && validCombinations[iGroupMuscle][cursor] == poseIndex)
+                    addPose(iGroupMuscle, poseIndex, poseValues, templateQuantities[iGroupMuscle][cursor++], mtuLengths[iGroupMuscle]);
             }
+            return;
         }
+        Clock::time_point templateStart = Clock::now();
+        sampleTemplatePose(referenceModel, referenceInitialState, referenceMuscles, referenceCoordinates, poseValues, kinematicTemplates, poseTemplates, validTemplates, templateStats);
+        templateSeconds += secondsSince(templateStart);
+        for (size_t iGroupMuscle = 0; iGroupMuscle < groupMuscleNames.size(); ++iGroupMuscle)
+            if (validTemplates[iGroupMuscle])
+                addPose(iGroupMuscle, poseIndex, poseValues, poseTemplates[iGroupMuscle], mtuLengths[iGroupMuscle]);
+    };
+
+    std::vector<SurrogateReport> surrogateReports;
+    SamplingStats samplingStats;
+    samplingStats.reset(groupMuscleNames.size());
+    Clock::time_point samplingStart = Clock::now();
+    bool mtuSampled = templateSampled && sampleMTULength(inputModel, inputInitialState, inputMuscleIndices, inputCoordinateIndices, coordinateGrid, surrogateReports, samplingStats, log, consumer);
+    double samplingSeconds = (secondsSince(samplingStart) - templateSeconds) / groupMuscleNames.size();
+    if (!templateCache)
+    {
+        std::vector<size_t> sampledMuscles(groupMuscleNames.size());
+        for (size_t iGroupMuscle = 0; iGroupMuscle < sampledMuscles.size(); ++iGroupMuscle)
+            sampledMuscles[iGroupMuscle] = iGroupMuscle;
+        reportTemplateSampling(sampledMuscles, templateStats, templateSeconds);
+    }
+    for (size_t iGroupMuscle = 0; iGroupMuscle < groupMuscleNames.size(); ++iGroupMuscle)
+    {
+        MuscleOptimizerReport::MuscleEntry& muscleReport = _report.updMuscle(muscleGroup.muscleOrdinals[iGroupMuscle]);
+        const MuscleOptimizerReport::MuscleEntry& muscleStats = samplingStats.muscles[iGroupMuscle];
+        muscleReport.phaseSeconds[MuscleOptimizerReport::MTULengthSampling] += samplingSeconds;
+        muscleReport.phaseSeconds[MuscleOptimizerReport::Realize] += samplingStats.realizeSeconds / groupMuscleNames.size();
+        muscleReport.counters[MuscleOptimizerReport::MTULengthsEvaluated] += muscleStats.counters[MuscleOptimizerReport::MTULengthsEvaluated];
+        muscleReport.counters[MuscleOptimizerReport::ExceptionsSwallowed] += muscleStats.counters[MuscleOptimizerReport::ExceptionsSwallowed];
     }
-    return jointNames;
 
+    for (size_t iGroupMuscle = 0; iGroupMuscle < groupMuscleNames.size(); ++iGroupMuscle)
+    {
+        if (isCancelled())
+            return;
+        int curMuscleOrdinal = muscleGroup.muscleOrdinals[iGroupMuscle];
+        const std::string& currentMuscleName = groupMuscleNames[iGroupMuscle];
+        log << "Optimizing muscle " << curMuscleOrdinal + 1 << "/" << muscleNames.size() << ": " << currentMuscleName << ";";
+        log << "using coordinates [ ";
+        for (auto& coordinateName : coordinateGrid.getCoordinateNames())
+            log << coordinateName << " ";
+        log << "], total no. of combinations " << coordinateGrid.getNumPoses() << endl;
+        if (coordinateGrid.getNumPoses() < get_n_evaluation_points() / 2) //just a check that the sampling did not fail
+            log << "WARNING! no. of coordinate combinations is less than half the number of eval points" << endl;
+
+        if (!templateSampled || !mtuSampled) {
+            log << "   Could not sample target MTU lengths on the same poses as reference model" << std::endl;
+            log << "   There might be some inconsistencies between joints/coordinates definitions in the two models" << std::endl;
+            reportMuscleProcessed(currentMuscleName);
+            continue;
+        }
+
+        if (surrogateReports[iGroupMuscle].attempted)
+        {
+            if (SimTK::isNaN(surrogateReports[iGroupMuscle].maxError))
+                log << "   MTU length surrogate could not be fitted, exact sampling used" << std::endl;
+            else
+                log << "   MTU length surrogate: max error on held-out poses " << surrogateReports[iGroupMuscle].maxError << " m"
+                    << (surrogateReports[iGroupMuscle].used ? "" : ", above tolerance: exact sampling used") << std::endl;
+        }
+        else if (get_mtu_length_surrogate())
+            log << "   MTU length surrogate skipped (" << coordinateGrid.getNumPoses() << " poses), exact sampling used" << std::endl;
+
+        double referenceTendonSlackLength = referenceModel.getMuscles().get(referenceMuscleIndices[iGroupMuscle]).getTendonSlackLength();
+        Clock::time_point fitStart = Clock::now();
+        fitMuscleParameters(currentMuscleName, fits[iGroupMuscle], referenceTendonSlackLength, results[curMuscleOrdinal], log);
+        _report.updMuscle(curMuscleOrdinal).phaseSeconds[MuscleOptimizerReport::Fitting] += secondsSince(fitStart);
+        if (sampleDump)
+        {
+            const DumpRows& rows = dumpRows[iGroupMuscle];
+            if (!sampleDump->writeMuscle(currentMuscleName, coordinateGrid.getCoordinateNames(), rows.poseIndices, rows.poseValues, rows.templateQuantities, rows.targetMTULengths))
+                log << "   WARNING: could not write samples of " << currentMuscleName << " to the dump file" << std::endl;
+        }
+        reportMuscleProcessed(currentMuscleName);
+    }
 }
 
-string MuscleOptimizer::getIndependentCoordinate(Model& model, const std::string& dofName)
+void MuscleOptimizer::fitMuscleParameters(const std::string& currentMuscleName, const MuscleParameterFit& fit, double referenceTendonSlackLength, MuscleOptimizationResult& result, std::ostream& log)
 {
-    ConstraintSet constraintSet = model.getConstraintSet();
-    for (int n = 0; n < constraintSet.getSize(); ++n)
+    result.optimized = false;
+    result.fallback = false;
+
+    double optimalFiberLength, tendonSlackLength;
+    fit.solve(optimalFiberLength, tendonSlackLength);
+
+    if (optimalFiberLength <= 0 || tendonSlackLength <= 0)
     {
-        CoordinateCouplerConstraint* constraint = dynamic_cast<CoordinateCouplerConstraint*>(&constraintSet.get(n));
-        if (constraint != NULL) // we can only handle this type of constraint, so we just skip the others
+        if (optimalFiberLength <= 0)
+            log << " Negative estimate for optimal fiber length of muscle " << currentMuscleName << std::endl;
+
+        if (tendonSlackLength <= 0)
+            log << " Negative estimate for tendon slack length of muscle " << currentMuscleName << std::endl;
+
+        if (fit.getTendonLengthRange() < 0.0001)
+            log << " Tendon length not changing throughout range of motion" << std::endl;
+
+        log << " Fallback: optimize optimal fiber length assuming same proportion between fiber and tendon as in reference muscle" << std::endl;
+        fit.solveFallback(referenceTendonSlackLength, optimalFiberLength, tendonSlackLength);
+        result.fallback = true;
+    }
+
+    result.optimalFiberLength = optimalFiberLength;
+    result.tendonSlackLength = tendonSlackLength;
+    result.optimized = true;
+}
+
+void MuscleOptimizer::optimizeMusclesInParallel(Model& inputModel, const ModelHandles& inputHandles, Model& referenceModel, const ModelHandles& referenceHandles, const std::vector<std::string>& muscleNames, const std::vector<MuscleGroup>& muscleGroups, MuscleTemplateCache* templateCache, MuscleSampleDump* sampleDump, std::vector<MuscleOptimizationResult>& results, int nThreads)
+{
+    // Each worker gets its own copy of both models (and therefore its own SimTK::State).
+    // Copies are made here, on the calling thread, before any worker starts; copies keep
+    // muscles and coordinates in the same order, so the same handles are valid for all of them.
+    std::vector<std::unique_ptr<Model> > workerInputModels, workerReferenceModels;
+    std::vector<SimTK::State> workerInputStates, workerReferenceStates;
+    Clock::time_point copyStart = Clock::now();
+    for (int iThread = 0; iThread < nThreads; ++iThread)
+    {
+        workerInputModels.push_back(std::unique_ptr<Model>(new Model(inputModel)));
+        workerInputStates.push_back(workerInputModels.back()->initSystem());
+        workerReferenceModels.push_back(std::unique_ptr<Model>(new Model(referenceModel)));
+        workerReferenceStates.push_back(workerReferenceModels.back()->initSystem());
+    }
+    _report.addRunPhaseSeconds(MuscleOptimizerReport::InitSystem, secondsSince(copyStart));
+
+    std::atomic<size_t> nextGroup(0);
+    std::atomic<bool> failed(false);
+    std::mutex logMutex;
+    std::string failureMessage;
+
+    auto worker = [&](int iThread)
+    {
+        while (!failed && !isCancelled())
         {
-            string depCoordinateName = constraint->getDependentCoordinateName();
-            if (depCoordinateName == dofName)
+            size_t iGroup = nextGroup++;
+            if (iGroup >= muscleGroups.size())
+                break;
+            std::ostringstream log;
+            try
             {
-                const Array<std::string>& indepCoordinateNamesSet = constraint->getIndependentCoordinateNames();
-                if (indepCoordinateNamesSet.getSize() == 1)
-                {
-                    return indepCoordinateNamesSet.get(0);
-                }
-                else if (indepCoordinateNamesSet.getSize() > 1)
-                {
-                    std::cout << "CoordinateCouplerConstraint with dependent coordinate " << dofName << " has more than one indipendent coordinate and this is not managed by this software yet." << std::endl;
-                    return "";
-                }
+                optimizeMuscleGroup(*workerInputModels[iThread], workerInputStates[iThread], inputHandles, *workerReferenceModels[iThread], workerReferenceStates[iThread], referenceHandles, muscleNames, muscleGroups[iGroup], templateCache, sampleDump, results, log);
             }
-
+            catch (const Exception& x)
+            {
+                x.print(log);
+                failed = true;
+            }
+            catch (const std::exception& x)
+            {
+                log << x.what() << std::endl;
+                failed = true;
+            }
+            std::lock_guard<std::mutex> lock(logMutex);
+            std::cout << log.str();
+            if (failed && failureMessage.empty())
+                failureMessage = "Muscle optimizer: ERROR- optimization of muscle " + muscleNames[muscleGroups[iGroup].muscleOrdinals.front()] + " failed";
         }
+    };
 
+    std::vector<std::thread> workers;
+    for (int iThread = 0; iThread < nThreads; ++iThread)
+        workers.push_back(std::thread(worker, iThread));
+    for (auto& w : workers)
+        w.join();
+
+    if (failed)
+        throw Exception(failureMessage, __FILE__, __LINE__);
+}
+
+std::vector<int> MuscleOptimizer::getJointSpannedByMuscle(Model& model, const ModelTopology& topology, const string& muscleName)
+{
+    std::vector<int> jointIndices;
+
+    // first and last path points are taken as attached to the bodies at the two ends of the muscle
+    const OpenSim::PathPointSet& musclePathPointSet = model.getMuscles().get(muscleName).getGeometryPath().getPathPointSet();
+    int firstBodyIndex = topology.getBodyIndex(musclePathPointSet.get(0).getBody().getName());
+    int lastBodyIndex = topology.getBodyIndex(musclePathPointSet.get(musclePathPointSet.getSize() - 1).getBody().getName());
+
+    int ancestorIndex = topology.getLowestCommonAncestor(firstBodyIndex, lastBodyIndex);
+    if (ancestorIndex < 0)
+    {
+        std::cout << "WARNING: Geometry Path for muscle " << muscleName << " does not connect bodies of the same kinematic tree" << std::endl;
+        return jointIndices;
+    }
+    // paths that only meet at ground (including those attached to it) would span the joints connecting
+    // the model to ground, such as the free joint of the pelvis: they are skipped
+    if (topology.getParentJoint(ancestorIndex) < 0)
+    {
+        std::cout << "WARNING: Geometry Path for muscle " << muscleName << " does not follow a simple open kinematic chain" << std::endl;
+        return jointIndices;
     }
-    return "";
+
+    // joints from the distal body up to the proximal one; when the path does not follow a simple chain,
+    // joints on both branches up to their lowest common ancestor
+    topology.getJointsBetweenBodies(firstBodyIndex, lastBodyIndex, jointIndices);
+    return jointIndices;
+
 }
 
-SimTK::Vector MuscleOptimizer::sampleMTULength(Model& model, SimTK::State& si, const std::string& muscleName, const MuscleOptimizer::CoordinateCombinations& coordinateCombinations)
+bool MuscleOptimizer::sampleMTULength(Model& model, SimTK::State& si, const std::vector<int>& muscleIndices, const std::vector<int>& coordinateIndices, const CoordinateGrid& coordinateGrid, std::vector<SurrogateReport>& surrogateReports, SamplingStats& stats, std::ostream& log, const MTULengthConsumer& consumer)
 {
-    if (coordinateCombinations.size() < 1)
-        return SimTK::Vector();
+    std::vector<Muscle*> muscles;
+    std::vector<Coordinate*> coordinates;
+    surrogateReports.assign(muscleIndices.size(), SurrogateReport());
+    stats.reset(muscleIndices.size());
+    if (coordinateGrid.empty() || !resolveHandles(model, muscleIndices, coordinateIndices, coordinateGrid, muscles, coordinates))
+        return false;
 
-    //TODO: check that all columns have the same length
-    SimTK::Vector mtuLength(coordinateCombinations.at(0).second.size()); //output variable
+    size_t nPoses = coordinateGrid.getNumPoses();
 
-    model.getMuscles().get(muscleName).setActivation(si, 1.0);
+    for (auto muscle : muscles)
+        muscle->setActivation(si, 1.0);
 
-    for (size_t combinationInd = 0; combinationInd < coordinateCombinations.at(0).second.size(); ++combinationInd)
+    // the pose is realized once, and MTU lengths are read for all the muscles spanning it (or only for those in exactMuscles)
+    auto sampleExactMTULength = [&](const std::vector<double>& poseValues, size_t combinationInd, const std::vector<bool>& exactMuscles, std::vector<double>& mtuLengths)
     {
-        for (MuscleOptimizer::CoordinateCombinations::const_iterator coordIt = coordinateCombinations.begin(); coordIt < coordinateCombinations.end(); ++coordIt)
+        for (size_t coordinateIndex = 0; coordinateIndex < coordinates.size(); ++coordinateIndex)
+            coordinates[coordinateIndex]->setValue(si, poseValues[coordinateIndex]);
+        Clock::time_point realizeStart = Clock::now();
+        model.getMultibodySystem().realize(si, SimTK::Stage::Position);
+        stats.realizeSeconds += secondsSince(realizeStart);
+        for (size_t muscleInd = 0; muscleInd < muscles.size(); ++muscleInd)
         {
-            try // in case the coordinate name is not found in the input model
+            if (!exactMuscles[muscleInd])
+                continue;
+            ++stats.muscles[muscleInd].counters[MuscleOptimizerReport::MTULengthsEvaluated];
+            try
             {
-                model.updCoordinateSet().get((*coordIt).first).setValue(si, (*coordIt).second.at(combinationInd));
+                mtuLengths[muscleInd] = muscles[muscleInd]->getLength(si);
+
             }
             catch (const Exception& x)
             {
-                x.print(cout);
-                return SimTK::Vector();
+                log << "WARNING could not retrieve MTL for muscle " << muscles[muscleInd]->getName() << " for combination " << combinationInd << std::endl;
+                mtuLengths[muscleInd] = SimTK::NaN;
+                ++stats.muscles[muscleInd].counters[MuscleOptimizerReport::ExceptionsSwallowed];
             }
         }
+    };
 
-
-        model.getMultibodySystem().realize(si, SimTK::Stage::Position);
-        try
+    std::vector<bool> exactMuscles(muscles.size(), true);
+    // exact lengths of the surrogate poses, handed to the consumer only when the grid walk reaches them
+    std::map<size_t, std::vector<double> > sampledMTULengths;
+    std::vector<PolynomialSurrogate> surrogates;
+    if (get_mtu_length_surrogate())
+    {
+        // Surrogate: a polynomial is fitted on a design set of exact evaluations, and checked on held-out poses
+        std::vector<double> lowerBounds, upperBounds;
+        for (size_t coordinateIndex = 0; coordinateIndex < coordinateGrid.getNumCoordinates(); ++coordinateIndex)
+        {
+            const std::vector<double>& samples = coordinateGrid.getSamples(coordinateIndex);
+            lowerBounds.push_back(*std::min_element(samples.begin(), samples.end()));
+            upperBounds.push_back(*std::max_element(samples.begin(), samples.end()));
+        }
+        surrogates.assign(muscles.size(), PolynomialSurrogate(mtuSurrogateDegree, lowerBounds, upperBounds));
+        size_t nDesign = 2 * surrogates.front().getNumTerms();
+        size_t nHeldOut = std::max<size_t>(surrogates.front().getNumTerms() / 2, 10);
+        // only worth it if most of the grid is left to the surrogate
+        if (2 * (nDesign + nHeldOut) <= nPoses)
         {
-            mtuLength[combinationInd] = model.getMuscles().get(muscleName).getLength(si);
+            std::vector<size_t> surrogatePoses = selectSpreadPoses(nPoses, nDesign + nHeldOut);
+            std::vector<std::vector<double> > poseValues(surrogatePoses.size());
+            for (size_t i = 0; i < surrogatePoses.size(); ++i)
+            {
+                coordinateGrid.getPose(surrogatePoses[i], poseValues[i]);
+                std::vector<double>& mtuLengths = sampledMTULengths[surrogatePoses[i]];
+                mtuLengths.resize(muscles.size());
+                sampleExactMTULength(poseValues[i], surrogatePoses[i], exactMuscles, mtuLengths);
+            }
 
+            std::vector<std::vector<double> > designValues(poseValues.begin(), poseValues.begin() + nDesign);
+            for (size_t muscleInd = 0; muscleInd < muscles.size(); ++muscleInd)
+            {
+                SurrogateReport& report = surrogateReports[muscleInd];
+                report.attempted = true;
+                std::vector<double> designMTULength(nDesign);
+                for (size_t i = 0; i < nDesign; ++i)
+                    designMTULength[i] = sampledMTULengths[surrogatePoses[i]][muscleInd];
+                if (!surrogates[muscleInd].fit(designValues, designMTULength))
+                    continue;
+                report.maxError = 0.0;
+                for (size_t i = nDesign; i < surrogatePoses.size(); ++i)
+                {
+                    double error = std::abs(surrogates[muscleInd].evaluate(poseValues[i]) - sampledMTULengths[surrogatePoses[i]][muscleInd]);
+                    if (SimTK::isNaN(error))
+                    {
+                        report.maxError = SimTK::NaN;
+                        break;
+                    }
+                    if (error > report.maxError)
+                        report.maxError = error;
+                }
+                report.used = report.maxError <= get_mtu_length_surrogate_tolerance();
+                exactMuscles[muscleInd] = !report.used;
+            }
         }
-        catch (const Exception& x)
+    }
+
+    bool anyExactMuscle = std::find(exactMuscles.begin(), exactMuscles.end(), true) != exactMuscles.end();
+    std::vector<double> poseValues(coordinateGrid.getNumCoordinates());
+    std::vector<double> mtuLengths(muscles.size());
+    size_t nVisitedPoses = 0;
+    for (PoseIterator pose(coordinateGrid); pose.isValid(); pose.next())
+    {
+        if (++nVisitedPoses % posesPerCancellationCheck == 0 && isCancelled())
+            return false;
+        size_t combinationInd = pose.getPoseIndex();
+        for (size_t coordinateIndex = 0; coordinateIndex < poseValues.size(); ++coordinateIndex)
+            poseValues[coordinateIndex] = pose.getValue(coordinateIndex);
+        std::map<size_t, std::vector<double> >::const_iterator sampledPose = sampledMTULengths.find(combinationInd);
+        if (sampledPose != sampledMTULengths.end())
         {
-            cout << "WARNING could not retieve MTL for muscle " << muscleName << " for combination " << combinationInd << std::endl;
-            mtuLength[combinationInd] = SimTK::NaN;
+            consumer(combinationInd, poseValues, sampledPose->second);
+            continue;
         }
 
+        if (anyExactMuscle)
+            sampleExactMTULength(poseValues, combinationInd, exactMuscles, mtuLengths);
+        for (size_t muscleInd = 0; muscleInd < muscles.size(); ++muscleInd)
+            if (!exactMuscles[muscleInd])
+                mtuLengths[muscleInd] = surrogates[muscleInd].evaluate(poseValues);
+        consumer(combinationInd, poseValues, mtuLengths);
     }
 
-    return mtuLength;
+    return true;
 }
 
-std::vector<MuscleOptimizer::TemplateMuscleInfo> MuscleOptimizer::sampleTemplateQuantities(Model& model, SimTK::State& si, const std::string& muscleName, MuscleOptimizer::CoordinateCombinations& coordinateCombinations)
+bool MuscleOptimizer::sampleTemplateQuantities(Model& model, SimTK::State& si, const std::vector<int>& muscleIndices, const std::vector<int>& coordinateIndices, const CoordinateGrid& coordinateGrid, std::vector<std::vector<TemplateMuscleInfo> >& templateQuantities, std::vector<std::vector<size_t> >& validCombinations, SamplingStats& stats)
 {
-    if (coordinateCombinations.size() < 1)
-        return std::vector<MuscleOptimizer::TemplateMuscleInfo>();
-
-    //TODO: check that all columns have the same lenght
-    std::vector<MuscleOptimizer::TemplateMuscleInfo> templateQuantities;
-
-    model.getMuscles().get(muscleName).setActivation(si, 1.0);
-
-    MuscleFixedWidthPennationModel fibKin = MuscleFixedWidthPennationModel(model.getMuscles().get(muscleName).getOptimalFiberLength(), model.getMuscles().get(muscleName).getPennationAngleAtOptimalFiberLength(), acos(0.1));
-    double minFiberLength = fibKin.getMinimumFiberLength() / model.getMuscles().get(muscleName).getOptimalFiberLength();
+    templateQuantities.assign(muscleIndices.size(), std::vector<TemplateMuscleInfo>());
+    validCombinations.assign(muscleIndices.size(), std::vector<size_t>());
+    stats.reset(muscleIndices.size());
+    std::vector<Muscle*> muscles;
+    std::vector<Coordinate*> coordinates;
+    if (coordinateGrid.empty() || !resolveHandles(model, muscleIndices, coordinateIndices, coordinateGrid, muscles, coordinates))
+        return false;
 
+    for (auto muscle : muscles)
+        muscle->setActivation(si, 1.0);
+    bool kinematicTemplates = get_template_mode() == "kinematic";
 
-    vector<size_t> pointsToRemove;
-    for (size_t combinationInd = 0; combinationInd < coordinateCombinations.at(0).second.size(); ++combinationInd)
+    std::vector<double> poseValues(coordinates.size());
+    std::vector<TemplateMuscleInfo> poseTemplates;
+    std::vector<bool> validTemplates;
+    size_t nVisitedPoses = 0;
+    for (PoseIterator pose(coordinateGrid); pose.isValid(); pose.next())
     {
-        for (MuscleOptimizer::CoordinateCombinations::iterator coordIt = coordinateCombinations.begin(); coordIt < coordinateCombinations.end(); ++coordIt)
+        // partially sampled templates are dropped, so that they never reach the cache
+        if (++nVisitedPoses % posesPerCancellationCheck == 0 && isCancelled())
+            return false;
+        for (size_t coordinateIndex = 0; coordinateIndex < poseValues.size(); ++coordinateIndex)
+            poseValues[coordinateIndex] = pose.getValue(coordinateIndex);
+        sampleTemplatePose(model, si, muscles, coordinates, poseValues, kinematicTemplates, poseTemplates, validTemplates, stats);
+        for (size_t muscleInd = 0; muscleInd < muscles.size(); ++muscleInd)
         {
-            try // in case the coordinate name is not found in the input model
+            if (validTemplates[muscleInd])
             {
-                model.updCoordinateSet().get((*coordIt).first).setValue(si, (*coordIt).second.at(combinationInd));
-            }
-            catch (const Exception& x)
-            {
-                x.print(cout);
-                return std::vector<MuscleOptimizer::TemplateMuscleInfo>();
+                templateQuantities[muscleInd].push_back(poseTemplates[muscleInd]);
+                validCombinations[muscleInd].push_back(pose.getPoseIndex());
             }
         }
+    }
+
+    return true;
 
+}
+
+void MuscleOptimizer::sampleTemplatePose(Model& model, SimTK::State& si, const std::vector<Muscle*>& muscles, const std::vector<Coordinate*>& coordinates, const std::vector<double>& poseValues, bool kinematicTemplates, std::vector<TemplateMuscleInfo>& muscleInfos, std::vector<bool>& valid, SamplingStats& stats)
+{
+    muscleInfos.resize(muscles.size());
+    valid.assign(muscles.size(), false);
+    for (size_t coordinateIndex = 0; coordinateIndex < coordinates.size(); ++coordinateIndex)
+        coordinates[coordinateIndex]->setValue(si, poseValues[coordinateIndex]);
+
+    if (kinematicTemplates)
+    {
+        // rigid tendon: only path lengths are needed, so the pose is realized to Position once for the whole group
+        Clock::time_point realizeStart = Clock::now();
+        model.getMultibodySystem().realize(si, SimTK::Stage::Position);
+        stats.realizeSeconds += secondsSince(realizeStart);
+        for (size_t muscleInd = 0; muscleInd < muscles.size(); ++muscleInd)
+        {
+            ++stats.muscles[muscleInd].counters[MuscleOptimizerReport::PosesEvaluated];
+            valid[muscleInd] = estimateKinematicTemplate(*muscles[muscleInd], si, muscleInfos[muscleInd]);
+            if (!valid[muscleInd])
+                ++stats.muscles[muscleInd].counters[MuscleOptimizerReport::PosesPruned];
+        }
+        return;
+    }
 
+    for (size_t muscleInd = 0; muscleInd < muscles.size(); ++muscleInd)
+    {
+        // Kinematics are realized only for the first muscle of the group: equilibrating a muscle
+        // only changes its own state variables, so the following realizations restart from Dynamics
+        Clock::time_point realizeStart = Clock::now();
         model.getMultibodySystem().realize(si, SimTK::Stage::Dynamics);
-        MuscleOptimizer::TemplateMuscleInfo muscleInfo;
+        stats.realizeSeconds += secondsSince(realizeStart);
+        Muscle& muscle = *muscles[muscleInd];
+        MuscleOptimizerReport::MuscleEntry& muscleStats = stats.muscles[muscleInd];
+        ++muscleStats.counters[MuscleOptimizerReport::PosesEvaluated];
+        TemplateMuscleInfo& muscleInfo = muscleInfos[muscleInd];
+        Clock::time_point equilibrateStart = Clock::now();
         try
         {
-            model.getMuscles().get(muscleName).equilibrate(si);
-            muscleInfo.normalizedFiberLength = model.getMuscles().get(muscleName).getNormalizedFiberLength(si);
-            if (model.getMuscles().get(muscleName).getForce(si) == 0.0 || model.getMuscles().get(muscleName).getNormalizedFiberLength(si)<0.5)
+            muscle.equilibrate(si);
+            muscleStats.phaseSeconds[MuscleOptimizerReport::Equilibrate] += secondsSince(equilibrateStart);
+            muscleInfo.normalizedFiberLength = muscle.getNormalizedFiberLength(si);
+            if (!(muscle.getForce(si) == 0.0 || muscle.getNormalizedFiberLength(si)<0.5))
             {
-                pointsToRemove.push_back(combinationInd);
+                muscleInfo.normalizedTendonLength = muscle.getTendonLength(si) / muscle.getTendonSlackLength();
+                muscleInfo.pennationAngle = muscle.getPennationAngle(si);
+                muscleInfo.mtuLength = muscle.getLength(si);
+                valid[muscleInd] = true;
             }
             else
-            {
-                muscleInfo.normalizedTendonLength = model.getMuscles().get(muscleName).getTendonLength(si) / model.getMuscles().get(muscleName).getTendonSlackLength();
-                muscleInfo.pennationAngle = model.getMuscles().get(muscleName).getPennationAngle(si);
-                templateQuantities.push_back(muscleInfo);
-            }
+                ++muscleStats.counters[MuscleOptimizerReport::PosesPruned];
         }
         catch (const Exception& x)
         {
-            pointsToRemove.push_back(combinationInd);
+            // this pose is discarded for the current muscle
+            ++muscleStats.counters[MuscleOptimizerReport::ExceptionsSwallowed];
         }
     }
+}
 
-    for (vector<size_t>::reverse_iterator pointsIt = pointsToRemove.rbegin(); pointsIt != pointsToRemove.rend(); ++pointsIt)
-    for (MuscleOptimizer::CoordinateCombinations::iterator coordIt = coordinateCombinations.begin(); coordIt < coordinateCombinations.end(); ++coordIt)
-        (*coordIt).second.erase((*coordIt).second.begin() + *pointsIt);
-
-    return templateQuantities;
 
+bool MuscleOptimizer::estimateKinematicTemplate(const Muscle& muscle, const SimTK::State& si, TemplateMuscleInfo& muscleInfo)
+{
+    // The tendon is assumed rigid (at its slack length), and the fiber takes up the rest of the MTU length
+    // according to the fixed-width pennation model used by the OpenSim muscles
+    muscleInfo.mtuLength = muscle.getLength(si);
+    double fiberLengthAlongTendon = muscleInfo.mtuLength - muscle.getTendonSlackLength();
+    if (fiberLengthAlongTendon <= 0)
+        return false;
+    double parallelogramHeight = muscle.getOptimalFiberLength()*sin(muscle.getPennationAngleAtOptimalFiberLength());
+    double fiberLength = sqrt(parallelogramHeight*parallelogramHeight + fiberLengthAlongTendon*fiberLengthAlongTendon);
+    muscleInfo.normalizedFiberLength = fiberLength / muscle.getOptimalFiberLength();
+    muscleInfo.normalizedTendonLength = 1.0;
+    muscleInfo.pennationAngle = atan2(parallelogramHeight, fiberLengthAlongTendon);
+    // poses below half the optimal fiber length are discarded, as for the equilibrium templates; poses where
+    // the muscle would produce no force are not, since forces are not computed here
+    return muscleInfo.normalizedFiberLength >= 0.5;
 }
 
+CoordinateGrid MuscleOptimizer::sampleROMsForMuscle(Model& model, SimTK::State& si, const std::string& muscleName, unsigned int nEval)
+{
+    resolveSelections();
+    ModelTopology topology(model);
+    return sampleROMsForMuscle(model, topology, si, muscleName, nEval);
+}
 
-MuscleOptimizer::CoordinateCombinations MuscleOptimizer::sampleROMsForMuscle(Model& model, SimTK::State& si, const std::string& muscleName, unsigned int nEval)
+CoordinateGrid MuscleOptimizer::sampleROMsForMuscle(Model& model, const ModelTopology& topology, SimTK::State& si, const std::string& muscleName, unsigned int nEval)
 {
-    MuscleOptimizer::CoordinateCombinations result;
+    std::vector<std::string> result;
     std::vector<int> nEvalPerDof;
 
     //Get joints crossed by muscle
-    Array<std::string> crossedJoints = getJointSpannedByMuscle(model, muscleName);
+    std::vector<int> crossedJoints = getJointSpannedByMuscle(model, topology, muscleName);
 
     //Get list of coordinates involved in motion of joints spanned by the muscle, and put it in the result variable
-    for (int jointInd = 0; jointInd < crossedJoints.getSize(); ++jointInd)
+    for (size_t jointInd = 0; jointInd < crossedJoints.size(); ++jointInd)
     {
         unsigned int actualDofsPerJoint = 0;
         const OpenSim::CoordinateSet& coordinatesForCurrentJoint = model.getJointSet().get(crossedJoints[jointInd]).getCoordinateSet();
@@ -479,31 +1223,21 @@ MuscleOptimizer::CoordinateCombinations MuscleOptimizer::sampleROMsForMuscle(Mod
             {
                 if (coordinatesForCurrentJoint.get(iDof).isConstrained(si))
                 {
-                    string indepCoordName = getIndependentCoordinate(model, coordinatesForCurrentJoint.get(iDof).getName());
-                    if (indepCoordName != "")
+                    // coupled coordinates are sampled through all the independent coordinates driving them
+                    const std::vector<std::string>& indepCoordNames = topology.getIndependentCoordinates(coordinatesForCurrentJoint.get(iDof).getName());
+                    for (auto& indepCoordName : indepCoordNames)
                     {
-                        // Not very elegant to put it here, but this is just a helper function
-                        struct key_compare : public std::unary_function<std::pair<string, vector<double> >, bool>
-                        {
-                            explicit key_compare(const  std::string &baseline) : baseline(baseline) {}
-                            bool operator() (const std::pair<string, vector<double> > &arg)
-                            {
-                                return arg.first == baseline;
-                            }
-                            std::string baseline;
-                        };
-                        //
-                        CoordinateCombinations::iterator foundCoord = std::find_if(result.begin(), result.end(), key_compare(indepCoordName));
+                        std::vector<std::string>::iterator foundCoord = std::find(result.begin(), result.end(), indepCoordName);
                         if (foundCoord == result.end() && !model.getCoordinateSet().get(indepCoordName).getLocked(si))
                         {
-                            result.push_back(std::pair<string, vector<double> >(indepCoordName, vector<double>()));
+                            result.push_back(indepCoordName);
                             actualDofsPerJoint++;
                         }
                     }
                 }
                 else
                 {
-                    result.push_back(std::pair<string, vector<double> >(coordinatesForCurrentJoint.get(iDof).getName(), vector<double>()));
+                    result.push_back(coordinatesForCurrentJoint.get(iDof).getName());
                     actualDofsPerJoint++;
                 }
             }
@@ -514,64 +1248,121 @@ MuscleOptimizer::CoordinateCombinations MuscleOptimizer::sampleROMsForMuscle(Mod
     }
 
 
-    unsigned int totalSamples = 1;
-    for (std::vector<int>::const_iterator itNeval = nEvalPerDof.cbegin(); itNeval != nEvalPerDof.cend(); ++itNeval)
-        totalSamples *= *itNeval;
+    if (result.empty() || get_sampling_strategy() == "grid")
+    {
+        // Only the samples of each coordinate are stored: poses are generated on the fly by PoseIterator
+        CoordinateGrid grid;
+        for (size_t coordinateIndex = 0; coordinateIndex < result.size(); ++coordinateIndex)
+        {
+            const Coordinate& coordinate = model.getCoordinateSet().get(result[coordinateIndex]);
+            grid.addCoordinate(result[coordinateIndex], generateAngleSamples(coordinate.getRangeMin(), coordinate.getRangeMax(), nEvalPerDof[coordinateIndex]));
+        }
+        return grid;
+    }
 
-    unsigned int multeplicity = 1;
-    std::vector<int>::reverse_iterator itNeval = nEvalPerDof.rbegin();
-    for (MuscleOptimizer::CoordinateCombinations::reverse_iterator coordIt = result.rbegin(); coordIt != result.rend(); ++coordIt)
+    // Space-filling designs: a bounded number of poses covering the whole range of each coordinate
+    std::vector<double> rangeMin, rangeMax;
+    for (size_t coordinateIndex = 0; coordinateIndex < result.size(); ++coordinateIndex)
     {
-        (*coordIt).second = generateAngleSamples(model.getCoordinateSet().get((*coordIt).first).getRangeMin(), model.getCoordinateSet().get((*coordIt).first).getRangeMax(), *itNeval, multeplicity, totalSamples);
-        multeplicity *= *itNeval;
-        ++itNeval;
+        const Coordinate& coordinate = model.getCoordinateSet().get(result[coordinateIndex]);
+        rangeMin.push_back(coordinate.getRangeMin());
+        rangeMax.push_back(coordinate.getRangeMax());
     }
+    size_t nPoses = getNumberOfScatteredPoses(result.size(), nEval);
+    if (get_sampling_strategy() == "sobol")
+    {
+        if (result.size() <= CoordinateGrid::getMaxSobolDimensions())
+            return CoordinateGrid::createSobol(result, rangeMin, rangeMax, nPoses);
+        cout << "WARNING: muscle " << muscleName << " spans " << result.size() << " coordinates, more than supported by the Sobol sequence ("
+            << CoordinateGrid::getMaxSobolDimensions() << "); using a Latin hypercube instead" << endl;
+    }
+    return CoordinateGrid::createLatinHypercube(result, rangeMin, rangeMax, nPoses);
+}
 
+std::vector<double> MuscleOptimizer::generateAngleSamples(double anglesStart, double anglesEnd, unsigned int noEval)
+{
+    std::vector<double> result;
+    double degIncrement = (anglesEnd - anglesStart) / (noEval - 1);
+    OpenSim::Units degrees(OpenSim::Units::Degrees);
+    double min_radians_increment = degrees.convertTo(OpenSim::Units::Radians, get_min_degrees_increment());
+    if (get_min_degrees_increment() > 0 && degIncrement < min_radians_increment)
+        degIncrement = min_radians_increment;
+
+    for (unsigned int evalInd = 0; evalInd < noEval; ++evalInd)
+        result.push_back(anglesStart + evalInd*degIncrement);
     return result;
 }
 
-std::vector<double> MuscleOptimizer::generateAngleSamples(double anglesStart, double anglesEnd, unsigned int noEval, unsigned int multeplicity, unsigned int totalSamples)
+void MuscleOptimizer::resolveSelections()
 {
-    std::vector<double> result;
-    unsigned int sampleCounter = 0;
-    while (sampleCounter < totalSamples)
-    {
-        double degIncrement = (anglesEnd - anglesStart) / (noEval - 1);
-        OpenSim::Units degrees(OpenSim::Units::Degrees);
-        double min_radians_increment = degrees.convertTo(OpenSim::Units::Radians, get_min_degrees_increment());
-        if (get_min_degrees_increment() > 0 && degIncrement < min_radians_increment)
-            degIncrement = min_radians_increment;
+    _allMusclesEnabled = getProperty_muscles().getValueIsDefault() || getProperty_muscles().size() == 0
+        || get_muscles(0) == "ALL" || get_muscles(0) == "";
+    _enabledMuscleNames.clear();
+    for (int i = 0; i < getProperty_muscles().size(); ++i)
+        _enabledMuscleNames.insert(get_muscles(i));
+
+    _allCoordinatesEnabled = getProperty_coordinates().getValueIsDefault() || getProperty_coordinates().size() == 0
+        || get_coordinates(0) == "ALL" || get_coordinates(0) == "";
+    _enabledCoordinateNames.clear();
+    for (int i = 0; i < getProperty_coordinates().size(); ++i)
+        _enabledCoordinateNames.insert(get_coordinates(i));
+}
 
-        for (unsigned int evalInd = 0; evalInd < noEval; ++evalInd)
-        {
-            for (unsigned multInd = 0; multInd < multeplicity; ++multInd)
-                result.push_back(anglesStart + evalInd*degIncrement);
-        }
-        sampleCounter += multeplicity*noEval;
-    }
-    return result;
+bool MuscleOptimizer::isEnabledMuscle(const std::string& muscleName)
+{
+    return _allMusclesEnabled || _enabledMuscleNames.count(muscleName) > 0;
+}
+bool MuscleOptimizer::isEnabledCoordinate(const std::string& coordinateName)
+{
+    return _allCoordinatesEnabled || _enabledCoordinateNames.count(coordinateName) > 0;
 }
 
-bool MuscleOptimizer::isEnabledMuscle(std::string muscleName)
+MuscleOptimizer::ModelHandles MuscleOptimizer::resolveModelHandles(const Model& model, const std::vector<std::string>& muscleNames)
 {
-    if (getProperty_muscles().getValueIsDefault() || getProperty_muscles().findIndex(muscleName) >= 0)
-        return true;
-    if (getProperty_muscles().size() == 0)
-        return true;
-    if (getProperty_muscles().size() > 0 && (get_muscles(0) == "ALL" || get_muscles(0) == ""))
-        return true;
-    return false;
+    ModelHandles handles;
+    std::unordered_map<std::string, int> muscleIndices;
+    const Set<Muscle>& muscleSet = model.getMuscles();
+    for (int i = 0; i < muscleSet.getSize(); ++i)
+        muscleIndices[muscleSet.get(i).getName()] = i;
+    for (auto& muscleName : muscleNames)
+    {
+        std::unordered_map<std::string, int>::const_iterator muscleIt = muscleIndices.find(muscleName);
+        handles.muscleIndices.push_back(muscleIt == muscleIndices.end() ? -1 : muscleIt->second);
+    }
+
+    const CoordinateSet& coordinateSet = model.getCoordinateSet();
+    for (int i = 0; i < coordinateSet.getSize(); ++i)
+        handles.coordinateIndices[coordinateSet.get(i).getName()] = i;
+    return handles;
 }
-bool MuscleOptimizer::isEnabledCoordinate(std::string coordinateName)
+
+void MuscleOptimizer::getGroupHandles(const ModelHandles& handles, const MuscleGroup& muscleGroup, std::vector<int>& muscleIndices, std::vector<int>& coordinateIndices)
 {
-    if (getProperty_coordinates().getValueIsDefault() || getProperty_coordinates().findIndex(coordinateName) >= 0)
-        return true;
-    if (getProperty_coordinates().size() == 0)
-        return true;
-    if (getProperty_coordinates().size() > 0 && (get_coordinates(0) == "ALL" || get_coordinates(0) == ""))
-        return true;
-    return false;
+    muscleIndices.clear();
+    for (auto& curMuscleOrdinal : muscleGroup.muscleOrdinals)
+        muscleIndices.push_back(handles.muscleIndices[curMuscleOrdinal]);
+    coordinateIndices.clear();
+    for (auto& coordinateName : muscleGroup.coordinateGrid.getCoordinateNames())
+    {
+        std::unordered_map<std::string, int>::const_iterator coordinateIt = handles.coordinateIndices.find(coordinateName);
+        coordinateIndices.push_back(coordinateIt == handles.coordinateIndices.end() ? -1 : coordinateIt->second);
+    }
+}
 
+bool MuscleOptimizer::resolveHandles(Model& model, const std::vector<int>& muscleIndices, const std::vector<int>& coordinateIndices, const CoordinateGrid& coordinateGrid, std::vector<Muscle*>& muscles, std::vector<Coordinate*>& coordinates)
+{
+    for (size_t coordinateIndex = 0; coordinateIndex < coordinateIndices.size(); ++coordinateIndex)
+    {
+        if (coordinateIndices[coordinateIndex] < 0) // the coordinate name is not found in this model
+        {
+            cout << "Muscle optimizer: ERROR- Coordinate " << coordinateGrid.getCoordinateName(coordinateIndex) << " could not be found in model " << model.getName() << endl;
+            return false;
+        }
+        coordinates.push_back(&model.updCoordinateSet().get(coordinateIndices[coordinateIndex]));
+    }
+    for (auto& muscleIndex : muscleIndices)
+        muscles.push_back(&model.getMuscles().get(muscleIndex));
+    return true;
 }
 
 // TEMPORARY WORKAROUNDS FOR GETTING/SETTING LIST PROPERTIES
@@ -614,3 +1405,58 @@ void MuscleOptimizer::setMuscles(const Array<std::string>& newMuscles)
         muscProp.appendValue(newMuscles[i]);
 
 }
+
+// BULK NAME LISTS
+std::vector<std::string> MuscleOptimizer::getMuscleNames(const Model& model)
+{
+    const Set<Muscle>& muscleSet = model.getMuscles();
+    std::vector<std::string> names(muscleSet.getSize());
+    for (int i = 0; i < muscleSet.getSize(); ++i)
+        names[i] = muscleSet.get(i).getName();
+    return names;
+}
+
+std::vector<std::string> MuscleOptimizer::getCoordinateNames(const Model& model)
+{
+    const CoordinateSet& coordinateSet = model.getCoordinateSet();
+    std::vector<std::string> names(coordinateSet.getSize());
+    for (int i = 0; i < coordinateSet.getSize(); ++i)
+        names[i] = coordinateSet.get(i).getName();
+    return names;
+}
+
+std::vector<std::string> MuscleOptimizer::getSelectedCoordinates() const
+{
+    const Property<std::string>& coordProp = getProperty_coordinates();
+    std::vector<std::string> coordList(coordProp.size());
+    for (int i = 0; i < coordProp.size(); ++i)
+        coordList[i] = coordProp[i];
+    return coordList;
+}
+
+void MuscleOptimizer::setCoordinates(const std::vector<std::string>& newCoords)
+{
+    Property<std::string>& coordProp = updProperty_coordinates();
+
+    coordProp.clear();
+    for (size_t i = 0; i < newCoords.size(); ++i)
+        coordProp.appendValue(newCoords[i]);
+}
+
+std::vector<std::string> MuscleOptimizer::getSelectedMuscles() const
+{
+    const Property<std::string>& muscProp = getProperty_muscles();
+    std::vector<std::string> muscList(muscProp.size());
+    for (int i = 0; i < muscProp.size(); ++i)
+        muscList[i] = muscProp[i];
+    return muscList;
+}
+
+void MuscleOptimizer::setMuscles(const std::vector<std::string>& newMuscles)
+{
+    Property<std::string>& muscProp = updProperty_muscles();
+
+    muscProp.clear();
+    for (size_t i = 0; i < newMuscles.size(); ++i)
+        muscProp.appendValue(newMuscles[i]);
+}
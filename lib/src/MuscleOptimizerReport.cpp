@@ -0,0 +1,174 @@
+/* --------------------------------------------------------------------------*
+*                  Muscle Optimizer: MuscleOptimizerReport.cpp               *
+* -------------------------------------------------------------------------- *
+*                                                                            *
+* Copyright 2015  Elena Ceseracciu, Luca Modenese                            *
+*                                                                            *
+* Licensed under the Apache License, Version 2.0 (the "License");            *
+* you may not use this file except in compliance with the License.           *
+* You may obtain a copy of the License at                                    *
+*                                                                            *
+*     http://www.apache.org/licenses/LICENSE-2.0                             *
+*                                                                            *
+* Unless required by applicable law or agreed to in writing, software        *
+* distributed under the License is distributed on an "AS IS" BASIS,          *
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+* See the License for the specific language governing permissions and        *
+* limitations under the License.                                             *
+* ---------------------------------------------------------------------------*/
+
+//=============================================================================
+// INCLUDES
+//=============================================================================
+#include "OpenSim/Tools/MuscleOptimizerReport.h"
+
+#include <fstream>
+#include <sstream>
+
+//=============================================================================
+// STATICS
+//=============================================================================
+using namespace std;
+using namespace OpenSim;
+
+static const char* phaseNames[MuscleOptimizerReport::NumPhases] = {
+    "init_system", "muscle_grouping", "template_sampling", "equilibrate", "mtu_length_sampling", "realize", "fitting", "model_print"
+};
+static const char* counterNames[MuscleOptimizerReport::NumCounters] = {
+    "poses_evaluated", "poses_pruned", "mtu_lengths_evaluated", "fallbacks", "exceptions_swallowed"
+};
+
+static void writeJSONString(std::ostream& out, const std::string& value)
+{
+    out << '"';
+    for (size_t i = 0; i < value.size(); ++i)
+    {
+        char c = value[i];
+        if (c == '"' || c == '\\')
+            out << '\\' << c;
+        else if (static_cast<unsigned char>(c) < 0x20)
+        {
+            static const char hexDigits[] = "0123456789abcdef";
+            out << "\\u00" << hexDigits[(c >> 4) & 0xf] << hexDigits[c & 0xf];
+        }
+        else
+            out << c;
+    }
+    out << '"';
+}
+
+static void writeJSONPhasesAndCounters(std::ostream& out, const double* phaseSeconds, const long long* counters, const std::string& indent)
+{
+    out << indent << "\"phase_seconds\": {";
+    for (int phase = 0; phase < MuscleOptimizerReport::NumPhases; ++phase)
+        out << (phase == 0 ? " " : ", ") << '"' << phaseNames[phase] << "\": " << phaseSeconds[phase];
+    out << " },\n" << indent << "\"counters\": {";
+    for (int counter = 0; counter < MuscleOptimizerReport::NumCounters; ++counter)
+        out << (counter == 0 ? " " : ", ") << '"' << counterNames[counter] << "\": " << counters[counter];
+    out << " }";
+}
+
+//=============================================================================
+// CONSTRUCTOR(S)
+//=============================================================================
+//_____________________________________________________________________________
+MuscleOptimizerReport::MuscleEntry::MuscleEntry() :
+optimized(false),
+templateCached(false)
+{
+    for (int phase = 0; phase < NumPhases; ++phase)
+        phaseSeconds[phase] = 0.0;
+    for (int counter = 0; counter < NumCounters; ++counter)
+        counters[counter] = 0;
+}
+
+MuscleOptimizerReport::MuscleOptimizerReport()
+{
+    reset(std::vector<std::string>(), 0);
+}
+
+void MuscleOptimizerReport::reset(const std::vector<std::string>& muscleNames, int nThreads)
+{
+    _muscles.assign(muscleNames.size(), MuscleEntry());
+    for (size_t i = 0; i < muscleNames.size(); ++i)
+        _muscles[i].name = muscleNames[i];
+    for (int phase = 0; phase < NumPhases; ++phase)
+        _runPhaseSeconds[phase] = 0.0;
+    _totalSeconds = 0.0;
+    _nThreads = nThreads;
+    _cancelled = false;
+}
+
+//=============================================================================
+// ACCESSORS
+//=============================================================================
+//_____________________________________________________________________________
+const char* MuscleOptimizerReport::getPhaseName(int phase)
+{
+    return phase >= 0 && phase < NumPhases ? phaseNames[phase] : "";
+}
+
+const char* MuscleOptimizerReport::getCounterName(int counter)
+{
+    return counter >= 0 && counter < NumCounters ? counterNames[counter] : "";
+}
+
+double MuscleOptimizerReport::getPhaseSeconds(int phase) const
+{
+    double seconds = _runPhaseSeconds[phase];
+    for (size_t i = 0; i < _muscles.size(); ++i)
+        seconds += _muscles[i].phaseSeconds[phase];
+    return seconds;
+}
+
+long long MuscleOptimizerReport::getCounter(int counter) const
+{
+    long long count = 0;
+    for (size_t i = 0; i < _muscles.size(); ++i)
+        count += _muscles[i].counters[counter];
+    return count;
+}
+
+//=============================================================================
+// OUTPUT
+//=============================================================================
+//_____________________________________________________________________________
+std::string MuscleOptimizerReport::toJSON() const
+{
+    std::ostringstream out;
+    out.precision(9);
+    double phaseSeconds[NumPhases];
+    for (int phase = 0; phase < NumPhases; ++phase)
+        phaseSeconds[phase] = getPhaseSeconds(phase);
+    long long counters[NumCounters];
+    for (int counter = 0; counter < NumCounters; ++counter)
+        counters[counter] = getCounter(counter);
+
+    out << "{\n";
+    out << "  \"total_seconds\": " << _totalSeconds << ",\n";
+    out << "  \"n_threads\": " << _nThreads << ",\n";
+    out << "  \"cancelled\": " << (_cancelled ? "true" : "false") << ",\n";
+    writeJSONPhasesAndCounters(out, phaseSeconds, counters, "  ");
+    out << ",\n  \"muscles\": [";
+    for (size_t i = 0; i < _muscles.size(); ++i)
+    {
+        const MuscleEntry& muscle = _muscles[i];
+        out << (i == 0 ? "\n" : ",\n") << "    {\n      \"name\": ";
+        writeJSONString(out, muscle.name);
+        out << ",\n      \"optimized\": " << (muscle.optimized ? "true" : "false");
+        out << ",\n      \"template_cached\": " << (muscle.templateCached ? "true" : "false") << ",\n";
+        writeJSONPhasesAndCounters(out, muscle.phaseSeconds, muscle.counters, "      ");
+        out << "\n    }";
+    }
+    out << (_muscles.empty() ? "]\n" : "\n  ]\n") << "}\n";
+    return out.str();
+}
+
+bool MuscleOptimizerReport::write(const std::string& fileName) const
+{
+    std::ofstream out(fileName.c_str());
+    if (!out)
+        return false;
+    out << toJSON();
+    return !out.fail();
+}
@@ -0,0 +1,119 @@
+/* --------------------------------------------------------------------------*
+*                  Muscle Optimizer: MuscleParameterFit.cpp                  *
+* -------------------------------------------------------------------------- *
+*                                                                            *
+* Copyright 2015  Elena Ceseracciu, Luca Modenese                            *
+*                                                                            *
+* Licensed under the Apache License, Version 2.0 (the "License");            *
+* you may not use this file except in compliance with the License.           *
+* You may obtain a copy of the License at                                    *
+*                                                                            *
+*     http://www.apache.org/licenses/LICENSE-2.0                             *
+*                                                                            *
+* Unless required by applicable law or agreed to in writing, software        *
+* distributed under the License is distributed on an "AS IS" BASIS,          *
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+* See the License for the specific language governing permissions and        *
+* limitations under the License.                                             *
+* ---------------------------------------------------------------------------*/
+
+//=============================================================================
+// INCLUDES
+//=============================================================================
+#include "OpenSim/Tools/MuscleParameterFit.h"
+
+#include <cmath>
+#include <limits>
+
+//=============================================================================
+// STATICS
+//=============================================================================
+using namespace std;
+using namespace OpenSim;
+
+// Relative threshold on the determinant of the normal equations below which they are considered singular
+static const double singularityTolerance = 1e-12;
+
+//=============================================================================
+// CONSTRUCTOR(S)
+//=============================================================================
+//_____________________________________________________________________________
+MuscleParameterFit::MuscleParameterFit() :
+_nPoses(0),
+_s00(0), _s01(0), _s11(0),
+_s0b(0), _s1b(0),
+_s01bOverMTU(0),
+_minA1(std::numeric_limits<double>::infinity()),
+_maxA1(-std::numeric_limits<double>::infinity())
+{
+}
+
+//=============================================================================
+// ACCUMULATION
+//=============================================================================
+//_____________________________________________________________________________
+void MuscleParameterFit::addPose(double a0, double a1, double referenceMTULength, double b)
+{
+    ++_nPoses;
+    _s00 += a0*a0;
+    _s01 += a0*a1;
+    _s11 += a1*a1;
+    _s0b += a0*b;
+    _s1b += a1*b;
+    _s01bOverMTU += a0*a1*b / referenceMTULength;
+    if (a1 < _minA1)
+        _minA1 = a1;
+    if (a1 > _maxA1)
+        _maxA1 = a1;
+}
+
+double MuscleParameterFit::getTendonLengthRange() const
+{
+    return _nPoses > 0 ? _maxA1 - _minA1 : 0.0;
+}
+
+//=============================================================================
+// SOLUTION
+//=============================================================================
+//_____________________________________________________________________________
+void MuscleParameterFit::solve(double& optimalFiberLength, double& tendonSlackLength) const
+{
+    double det = _s00*_s11 - _s01*_s01;
+    if (std::abs(det) > singularityTolerance*_s00*_s11)
+    {
+        optimalFiberLength = (_s11*_s0b - _s01*_s1b) / det;
+        tendonSlackLength = (_s00*_s1b - _s01*_s0b) / det;
+        return;
+    }
+
+    // Rank-deficient system (e.g. tendon length proportional to fiber length over the whole range of motion):
+    // A'A ~= lambda*v*v', and the minimum-norm least-squares solution is v*(v'A'b)/lambda
+    double lambda = _s00 + _s11;
+    if (lambda <= 0)
+    {
+        optimalFiberLength = tendonSlackLength = 0.0;
+        return;
+    }
+    double v0 = _s00, v1 = _s01;
+    if (_s11 > _s00)
+    {
+        v0 = _s01;
+        v1 = _s11;
+    }
+    double norm = std::sqrt(v0*v0 + v1*v1);
+    v0 /= norm;
+    v1 /= norm;
+    double projection = (v0*_s0b + v1*_s1b) / lambda;
+    optimalFiberLength = v0*projection;
+    tendonSlackLength = v1*projection;
+}
+
+//_____________________________________________________________________________
+void MuscleParameterFit::solveFallback(double referenceTendonSlackLength, double& optimalFiberLength, double& tendonSlackLength) const
+{
+    // first round - least squares of a0*Lopt = (1 - a1*Lts_ref/Lmtu_ref)*b
+    double s0Lfib = _s0b - referenceTendonSlackLength*_s01bOverMTU;
+    optimalFiberLength = _s00 > 0 ? s0Lfib / _s00 : 0.0;
+    // second round - least squares of a1*Lts = b - a0*Lopt
+    tendonSlackLength = _s11 > 0 ? (_s1b - optimalFiberLength*_s01) / _s11 : 0.0;
+}
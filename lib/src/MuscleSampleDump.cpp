@@ -0,0 +1,343 @@
+/* --------------------------------------------------------------------------*
+*                  Muscle Optimizer: MuscleSampleDump.cpp                    *
+* -------------------------------------------------------------------------- *
+*                                                                            *
+* Copyright 2015  Elena Ceseracciu, Luca Modenese                            *
+*                                                                            *
+* Licensed under the Apache License, Version 2.0 (the "License");            *
+* you may not use this file except in compliance with the License.           *
+* You may obtain a copy of the License at                                    *
+*                                                                            *
+*     http://www.apache.org/licenses/LICENSE-2.0                             *
+*                                                                            *
+* Unless required by applicable law or agreed to in writing, software        *
+* distributed under the License is distributed on an "AS IS" BASIS,          *
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+* See the License for the specific language governing permissions and        *
+* limitations under the License.                                             *
+* ---------------------------------------------------------------------------*/
+
+//=============================================================================
+// INCLUDES
+//=============================================================================
+#include "OpenSim/Tools/MuscleSampleDump.h"
+#include <cstring>
+
+//=============================================================================
+// STATICS
+//=============================================================================
+using namespace std;
+using namespace OpenSim;
+
+static const char dumpMagic[8] = { 'M', 'O', 'S', 'M', 'P', 'D', '0', '1' };
+static const std::uint64_t headerLength = 32;
+
+// Values are encoded byte by byte, least significant first, so that files are little endian whatever the host
+static void encodeValue(char* bytes, std::uint64_t value)
+{
+    for (int i = 0; i < 8; ++i)
+        bytes[i] = static_cast<char>((value >> (8 * i)) & 0xff);
+}
+
+static std::uint64_t decodeValue(const char* bytes)
+{
+    std::uint64_t value = 0;
+    for (int i = 0; i < 8; ++i)
+        value |= static_cast<std::uint64_t>(static_cast<unsigned char>(bytes[i])) << (8 * i);
+    return value;
+}
+
+static std::uint64_t doubleBits(double value)
+{
+    std::uint64_t bits;
+    std::memcpy(&bits, &value, sizeof(bits));
+    return bits;
+}
+
+static double bitsDouble(std::uint64_t bits)
+{
+    double value;
+    std::memcpy(&value, &bits, sizeof(value));
+    return value;
+}
+
+static void writeValue(std::ofstream& out, std::uint64_t value)
+{
+    char bytes[8];
+    encodeValue(bytes, value);
+    out.write(bytes, sizeof(bytes));
+}
+
+static void writeColumn(std::ofstream& out, const std::vector<double>& values)
+{
+    std::vector<char> bytes(8 * values.size());
+    for (size_t i = 0; i < values.size(); ++i)
+        encodeValue(&bytes[8 * i], doubleBits(values[i]));
+    if (!bytes.empty())
+        out.write(&bytes[0], bytes.size());
+}
+
+// uint64 length, characters, zero padding up to a multiple of 8 bytes; returns the number of bytes written
+static std::uint64_t writeString(std::ofstream& out, const std::string& value)
+{
+    static const char padding[8] = { 0 };
+    std::uint64_t length = value.size();
+    writeValue(out, length);
+    out.write(value.data(), value.size());
+    std::uint64_t paddingLength = (8 - length % 8) % 8;
+    out.write(padding, paddingLength);
+    return sizeof(length) + length + paddingLength;
+}
+
+static bool readValue(std::ifstream& in, std::uint64_t& value)
+{
+    char bytes[8];
+    if (!in.read(bytes, sizeof(bytes)))
+        return false;
+    value = decodeValue(bytes);
+    return true;
+}
+
+static bool readColumn(std::ifstream& in, size_t nRows, std::vector<double>& values)
+{
+    std::vector<char> bytes(8 * nRows);
+    if (nRows > 0 && !in.read(&bytes[0], bytes.size()))
+        return false;
+    values.resize(nRows);
+    for (size_t i = 0; i < nRows; ++i)
+        values[i] = bitsDouble(decodeValue(&bytes[8 * i]));
+    return true;
+}
+
+static bool readString(std::ifstream& in, std::string& value)
+{
+    std::uint64_t length;
+    if (!readValue(in, length) || length > 65536)
+        return false;
+    std::vector<char> characters(length + (8 - length % 8) % 8);
+    if (!characters.empty() && !in.read(&characters[0], characters.size()))
+        return false;
+    value.assign(characters.begin(), characters.begin() + static_cast<size_t>(length));
+    return true;
+}
+
+//=============================================================================
+// CONSTRUCTOR(S) AND DESTRUCTOR
+//=============================================================================
+//_____________________________________________________________________________
+MuscleSampleDump::MuscleSampleDump() :
+_offset(0),
+_failed(false)
+{
+}
+
+MuscleSampleDump::~MuscleSampleDump()
+{
+    if (isOpen())
+        close();
+}
+
+//=============================================================================
+// I/O
+//=============================================================================
+//_____________________________________________________________________________
+bool MuscleSampleDump::open(const std::string& fileName)
+{
+    std::lock_guard<std::mutex> lock(_mutex);
+    _out.open(fileName.c_str(), std::ios::binary | std::ios::trunc);
+    if (!_out)
+        return false;
+    // the header is rewritten on close, when the index position is known
+    std::vector<char> header(headerLength, 0);
+    _out.write(&header[0], header.size());
+    _offset = headerLength;
+    _index.clear();
+    _failed = !_out.good();
+    return !_failed;
+}
+
+//_____________________________________________________________________________
+bool MuscleSampleDump::writeMuscle(const std::string& muscleName, const std::vector<std::string>& coordinateNames, const std::vector<size_t>& poseIndices,
+    const std::vector<std::vector<double> >& poseValues, const std::vector<TemplateMuscleInfo>& templateQuantities, const std::vector<double>& targetMTULengths)
+{
+    size_t nRows = poseIndices.size();
+    if (poseValues.size() != coordinateNames.size() || templateQuantities.size() != nRows || targetMTULengths.size() != nRows)
+        return false;
+    for (auto& column : poseValues)
+        if (column.size() != nRows)
+            return false;
+
+    std::lock_guard<std::mutex> lock(_mutex);
+    if (!_out.is_open() || _failed)
+        return false;
+
+    IndexEntry entry;
+    entry.muscleName = muscleName;
+    entry.coordinateNames = coordinateNames;
+    entry.dataOffset = _offset;
+    entry.nRows = nRows;
+
+    for (size_t i = 0; i < nRows; ++i)
+        writeValue(_out, static_cast<std::uint64_t>(poseIndices[i]));
+    for (auto& column : poseValues)
+        writeColumn(_out, column);
+    std::vector<double> column(nRows);
+    for (size_t i = 0; i < nRows; ++i)
+        column[i] = templateQuantities[i].normalizedFiberLength;
+    writeColumn(_out, column);
+    for (size_t i = 0; i < nRows; ++i)
+        column[i] = templateQuantities[i].normalizedTendonLength;
+    writeColumn(_out, column);
+    for (size_t i = 0; i < nRows; ++i)
+        column[i] = templateQuantities[i].pennationAngle;
+    writeColumn(_out, column);
+    for (size_t i = 0; i < nRows; ++i)
+        column[i] = templateQuantities[i].mtuLength;
+    writeColumn(_out, column);
+    writeColumn(_out, targetMTULengths);
+
+    _offset += nRows * sizeof(double) * (coordinateNames.size() + 6);
+    _index.push_back(entry);
+    _failed = !_out.good();
+    return !_failed;
+}
+
+//_____________________________________________________________________________
+bool MuscleSampleDump::close()
+{
+    std::lock_guard<std::mutex> lock(_mutex);
+    if (!_out.is_open())
+        return false;
+
+    std::uint64_t indexOffset = _offset;
+    std::uint64_t indexLength = 0;
+    for (auto& entry : _index)
+    {
+        writeValue(_out, entry.dataOffset);
+        writeValue(_out, entry.nRows);
+        writeValue(_out, static_cast<std::uint64_t>(entry.coordinateNames.size()));
+        indexLength += 3 * sizeof(std::uint64_t) + writeString(_out, entry.muscleName);
+        for (auto& coordinateName : entry.coordinateNames)
+            indexLength += writeString(_out, coordinateName);
+    }
+
+    _out.seekp(0);
+    _out.write(dumpMagic, sizeof(dumpMagic));
+    // uint32 nMuscles followed by uint32 0, i.e. a little endian uint64
+    writeValue(_out, static_cast<std::uint64_t>(_index.size()));
+    writeValue(_out, indexOffset);
+    writeValue(_out, indexLength);
+
+    bool success = _out.good() && !_failed;
+    _out.close();
+    _index.clear();
+    return success;
+}
+
+//=============================================================================
+// READER
+//=============================================================================
+//_____________________________________________________________________________
+MuscleSampleDumpReader::MuscleSampleDumpReader()
+{
+}
+
+bool MuscleSampleDumpReader::open(const std::string& fileName)
+{
+    close();
+    _in.open(fileName.c_str(), std::ios::binary);
+    if (!_in)
+        return false;
+    _in.seekg(0, std::ios::end);
+    std::uint64_t fileLength = static_cast<std::uint64_t>(_in.tellg());
+    _in.seekg(0);
+
+    char magic[sizeof(dumpMagic)];
+    std::uint64_t nMuscles, indexOffset, indexLength;
+    if (!_in.read(magic, sizeof(magic)) || std::memcmp(magic, dumpMagic, sizeof(dumpMagic)) != 0
+        || !readValue(_in, nMuscles) || !readValue(_in, indexOffset) || !readValue(_in, indexLength)
+        || indexOffset < headerLength || indexOffset + indexLength > fileLength)
+    {
+        close();
+        return false;
+    }
+
+    _in.seekg(indexOffset);
+    for (std::uint64_t iMuscle = 0; iMuscle < nMuscles; ++iMuscle)
+    {
+        IndexEntry entry;
+        std::uint64_t nCoordinates;
+        bool valid = readValue(_in, entry.dataOffset) && readValue(_in, entry.nRows) && readValue(_in, nCoordinates)
+            && nCoordinates < 1024 && readString(_in, entry.muscleName);
+        for (std::uint64_t c = 0; valid && c < nCoordinates; ++c)
+        {
+            entry.coordinateNames.push_back("");
+            valid = readString(_in, entry.coordinateNames.back());
+        }
+        // the block must lie between the header and the index
+        valid = valid && entry.dataOffset >= headerLength
+            && entry.nRows <= (indexOffset - entry.dataOffset) / (8 * (nCoordinates + 6));
+        if (!valid)
+        {
+            close();
+            return false;
+        }
+        _index.push_back(entry);
+    }
+    return true;
+}
+
+void MuscleSampleDumpReader::close()
+{
+    if (_in.is_open())
+        _in.close();
+    _in.clear();
+    _index.clear();
+}
+
+std::vector<std::string> MuscleSampleDumpReader::getMuscleNames() const
+{
+    std::vector<std::string> muscleNames;
+    for (auto& entry : _index)
+        muscleNames.push_back(entry.muscleName);
+    return muscleNames;
+}
+
+//_____________________________________________________________________________
+bool MuscleSampleDumpReader::readMuscle(const std::string& muscleName, MuscleSamples& samples)
+{
+    const IndexEntry* entry = NULL;
+    for (auto& curEntry : _index)
+        if (curEntry.muscleName == muscleName)
+            entry = &curEntry;
+    if (entry == NULL)
+        return false;
+
+    size_t nRows = static_cast<size_t>(entry->nRows);
+    samples.muscleName = entry->muscleName;
+    samples.coordinateNames = entry->coordinateNames;
+    _in.clear();
+    _in.seekg(entry->dataOffset);
+    samples.poseIndices.resize(nRows);
+    for (size_t i = 0; i < nRows; ++i)
+        if (!readValue(_in, samples.poseIndices[i]))
+            return false;
+    samples.poseValues.resize(entry->coordinateNames.size());
+    for (auto& column : samples.poseValues)
+        if (!readColumn(_in, nRows, column))
+            return false;
+    std::vector<double> normalizedFiberLengths, normalizedTendonLengths, pennationAngles, mtuLengths;
+    if (!readColumn(_in, nRows, normalizedFiberLengths) || !readColumn(_in, nRows, normalizedTendonLengths)
+        || !readColumn(_in, nRows, pennationAngles) || !readColumn(_in, nRows, mtuLengths)
+        || !readColumn(_in, nRows, samples.targetMTULengths))
+        return false;
+    samples.templateQuantities.resize(nRows);
+    for (size_t i = 0; i < nRows; ++i)
+    {
+        samples.templateQuantities[i].normalizedFiberLength = normalizedFiberLengths[i];
+        samples.templateQuantities[i].normalizedTendonLength = normalizedTendonLengths[i];
+        samples.templateQuantities[i].pennationAngle = pennationAngles[i];
+        samples.templateQuantities[i].mtuLength = mtuLengths[i];
+    }
+    return true;
+}
@@ -0,0 +1,251 @@
+/* --------------------------------------------------------------------------*
+*                  Muscle Optimizer: MuscleTemplateCache.cpp                 *
+* -------------------------------------------------------------------------- *
+*                                                                            *
+* Copyright 2015  Elena Ceseracciu, Luca Modenese                            *
+*                                                                            *
+* Licensed under the Apache License, Version 2.0 (the "License");            *
+* you may not use this file except in compliance with the License.           *
+* You may obtain a copy of the License at                                    *
+*                                                                            *
+*     http://www.apache.org/licenses/LICENSE-2.0                             *
+*                                                                            *
+* Unless required by applicable law or agreed to in writing, software        *
+* distributed under the License is distributed on an "AS IS" BASIS,          *
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+* See the License for the specific language governing permissions and        *
+* limitations under the License.                                             *
+* ---------------------------------------------------------------------------*/
+
+//=============================================================================
+// INCLUDES
+//=============================================================================
+#include "OpenSim/Tools/MuscleTemplateCache.h"
+
+#include <fstream>
+#include <cstring>
+#include <memory>
+
+//=============================================================================
+// STATICS
+//=============================================================================
+using namespace std;
+using namespace OpenSim;
+
+static const char cacheMagic[8] = { 'M', 'O', 'T', 'P', 'L', 'C', '0', '1' };
+
+template <typename T>
+static void writeValue(std::ofstream& out, const T& value)
+{
+    out.write(reinterpret_cast<const char*>(&value), sizeof(T));
+}
+
+template <typename T>
+static bool readValue(std::ifstream& in, T& value)
+{
+    in.read(reinterpret_cast<char*>(&value), sizeof(T));
+    return in.good();
+}
+
+// Runs sharing a cache file within the process (e.g. subjects of a batch) read and write it one at a time
+static std::mutex& getFileMutex(const std::string& fileName)
+{
+    static std::mutex registryMutex;
+    static std::map<std::string, std::unique_ptr<std::mutex> > fileMutexes;
+    std::lock_guard<std::mutex> lock(registryMutex);
+    std::unique_ptr<std::mutex>& fileMutex = fileMutexes[fileName];
+    if (!fileMutex)
+        fileMutex.reset(new std::mutex());
+    return *fileMutex;
+}
+
+//=============================================================================
+// CONSTRUCTOR(S)
+//=============================================================================
+//_____________________________________________________________________________
+MuscleTemplateCache::MuscleTemplateCache(std::uint64_t key) :
+_key(key),
+_modified(false)
+{
+}
+
+//=============================================================================
+// I/O
+//=============================================================================
+//_____________________________________________________________________________
+bool MuscleTemplateCache::read(const std::string& fileName)
+{
+    EntryMap entries;
+    {
+        std::lock_guard<std::mutex> fileLock(getFileMutex(fileName));
+        if (!readEntries(fileName, _key, entries))
+            return false;
+    }
+
+    std::lock_guard<std::mutex> lock(_mutex);
+    _entries.swap(entries);
+    _modified = false;
+    return true;
+}
+
+bool MuscleTemplateCache::readEntries(const std::string& fileName, std::uint64_t expectedKey, EntryMap& entries)
+{
+    std::ifstream in(fileName.c_str(), std::ios::binary);
+    if (!in)
+        return false;
+
+    char magic[sizeof(cacheMagic)];
+    std::uint64_t key;
+    std::uint32_t nEntries;
+    in.read(magic, sizeof(magic));
+    if (!in.good() || memcmp(magic, cacheMagic, sizeof(cacheMagic)) != 0)
+        return false;
+    if (!readValue(in, key) || key != expectedKey || !readValue(in, nEntries))
+        return false;
+
+    for (std::uint32_t iEntry = 0; iEntry < nEntries; ++iEntry)
+    {
+        std::uint64_t gridHash;
+        std::uint32_t nameLength, nValid;
+        if (!readValue(in, gridHash) || !readValue(in, nameLength))
+            return false;
+        std::string muscleName(nameLength, ' ');
+        in.read(&muscleName[0], nameLength);
+        if (!readValue(in, nValid))
+            return false;
+
+        Entry& entry = entries[std::make_pair(gridHash, muscleName)];
+        entry.validCombinations.resize(nValid);
+        entry.templateQuantities.resize(nValid);
+        for (std::uint32_t i = 0; i < nValid; ++i)
+        {
+            std::uint64_t combinationInd;
+            TemplateMuscleInfo& info = entry.templateQuantities[i];
+            if (!readValue(in, combinationInd) || !readValue(in, info.normalizedFiberLength) || !readValue(in, info.normalizedTendonLength)
+                || !readValue(in, info.pennationAngle) || !readValue(in, info.mtuLength))
+                return false;
+            entry.validCombinations[i] = static_cast<size_t>(combinationInd);
+        }
+    }
+    return true;
+}
+
+//_____________________________________________________________________________
+bool MuscleTemplateCache::write(const std::string& fileName) const
+{
+    // Entries already in the file with the same key (e.g. other muscles, sampled by another run) are kept;
+    // those sampled again here replace them. The file stays locked from the read to the end of the write
+    std::lock_guard<std::mutex> fileLock(getFileMutex(fileName));
+    EntryMap entries;
+    if (!readEntries(fileName, _key, entries))
+        entries.clear();
+    {
+        std::lock_guard<std::mutex> lock(_mutex);
+        for (EntryMap::const_iterator entryIt = _entries.begin(); entryIt != _entries.end(); ++entryIt)
+            entries[entryIt->first] = entryIt->second;
+    }
+
+    std::ofstream out(fileName.c_str(), std::ios::binary | std::ios::trunc);
+    if (!out)
+        return false;
+
+    out.write(cacheMagic, sizeof(cacheMagic));
+    writeValue(out, _key);
+    writeValue(out, static_cast<std::uint32_t>(entries.size()));
+    for (EntryMap::const_iterator entryIt = entries.begin(); entryIt != entries.end(); ++entryIt)
+    {
+        const std::string& muscleName = entryIt->first.second;
+        const Entry& entry = entryIt->second;
+        writeValue(out, entryIt->first.first);
+        writeValue(out, static_cast<std::uint32_t>(muscleName.size()));
+        out.write(muscleName.data(), muscleName.size());
+        writeValue(out, static_cast<std::uint32_t>(entry.validCombinations.size()));
+        for (size_t i = 0; i < entry.validCombinations.size(); ++i)
+        {
+            const TemplateMuscleInfo& info = entry.templateQuantities[i];
+            writeValue(out, static_cast<std::uint64_t>(entry.validCombinations[i]));
+            writeValue(out, info.normalizedFiberLength);
+            writeValue(out, info.normalizedTendonLength);
+            writeValue(out, info.pennationAngle);
+            writeValue(out, info.mtuLength);
+        }
+    }
+    return out.good();
+}
+
+//=============================================================================
+// ACCESS
+//=============================================================================
+//_____________________________________________________________________________
+bool MuscleTemplateCache::find(std::uint64_t gridHash, const std::string& muscleName, std::vector<TemplateMuscleInfo>& templateQuantities, std::vector<size_t>& validCombinations) const
+{
+    std::lock_guard<std::mutex> lock(_mutex);
+    EntryMap::const_iterator entryIt = _entries.find(std::make_pair(gridHash, muscleName));
+    if (entryIt == _entries.end())
+        return false;
+    templateQuantities = entryIt->second.templateQuantities;
+    validCombinations = entryIt->second.validCombinations;
+    return true;
+}
+
+//_____________________________________________________________________________
+void MuscleTemplateCache::insert(std::uint64_t gridHash, const std::string& muscleName, const std::vector<TemplateMuscleInfo>& templateQuantities, const std::vector<size_t>& validCombinations)
+{
+    std::lock_guard<std::mutex> lock(_mutex);
+    Entry& entry = _entries[std::make_pair(gridHash, muscleName)];
+    entry.templateQuantities = templateQuantities;
+    entry.validCombinations = validCombinations;
+    _modified = true;
+}
+
+size_t MuscleTemplateCache::getSize() const
+{
+    std::lock_guard<std::mutex> lock(_mutex);
+    return _entries.size();
+}
+
+bool MuscleTemplateCache::isModified() const
+{
+    std::lock_guard<std::mutex> lock(_mutex);
+    return _modified;
+}
+
+//=============================================================================
+// HASHING
+//=============================================================================
+//_____________________________________________________________________________
+std::uint64_t MuscleTemplateCache::hash(const void* data, size_t size, std::uint64_t seed)
+{
+    const unsigned char* bytes = static_cast<const unsigned char*>(data);
+    std::uint64_t result = seed;
+    for (size_t i = 0; i < size; ++i)
+    {
+        result ^= bytes[i];
+        result *= 1099511628211ULL;
+    }
+    return result;
+}
+
+std::uint64_t MuscleTemplateCache::hash(const std::string& value, std::uint64_t seed)
+{
+    // hash the length too, so that consecutive strings cannot be confused
+    std::uint64_t length = value.size();
+    return hash(value.data(), value.size(), hash(&length, sizeof(length), seed));
+}
+
+std::uint64_t MuscleTemplateCache::hash(double value, std::uint64_t seed)
+{
+    return hash(&value, sizeof(value), seed);
+}
+
+bool MuscleTemplateCache::hashFile(const std::string& fileName, std::uint64_t& fileHash)
+{
+    std::ifstream in(fileName.c_str(), std::ios::binary);
+    if (!in)
+        return false;
+    fileHash = hash(static_cast<const void*>(NULL), 0);
+    char buffer[65536];
+    while (in.read(buffer, sizeof(buffer)) || in.gcount() > 0)
+        fileHash = hash(buffer, static_cast<size_t>(in.gcount()), fileHash);
+    return true;
+}
@@ -0,0 +1,157 @@
+/* --------------------------------------------------------------------------*
+*                  Muscle Optimizer: PolynomialSurrogate.cpp                 *
+* -------------------------------------------------------------------------- *
+*                                                                            *
+* Copyright 2015  Elena Ceseracciu, Luca Modenese                            *
+*                                                                            *
+* Licensed under the Apache License, Version 2.0 (the "License");            *
+* you may not use this file except in compliance with the License.           *
+* You may obtain a copy of the License at                                    *
+*                                                                            *
+*     http://www.apache.org/licenses/LICENSE-2.0                             *
+*                                                                            *
+* Unless required by applicable law or agreed to in writing, software        *
+* distributed under the License is distributed on an "AS IS" BASIS,          *
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+* See the License for the specific language governing permissions and        *
+* limitations under the License.                                             *
+* ---------------------------------------------------------------------------*/
+
+//=============================================================================
+// INCLUDES
+//=============================================================================
+#include "OpenSim/Tools/PolynomialSurrogate.h"
+
+#include <cmath>
+
+//=============================================================================
+// STATICS
+//=============================================================================
+using namespace std;
+using namespace OpenSim;
+
+// Append the exponents of all monomials of total degree <= maxDegree in the coordinates from coordinateIndex on
+static void enumerateExponents(std::vector<int>& exponent, size_t coordinateIndex, int maxDegree, std::vector<std::vector<int> >& exponents)
+{
+    if (coordinateIndex == exponent.size())
+    {
+        exponents.push_back(exponent);
+        return;
+    }
+    for (int power = 0; power <= maxDegree; ++power)
+    {
+        exponent[coordinateIndex] = power;
+        enumerateExponents(exponent, coordinateIndex + 1, maxDegree - power, exponents);
+    }
+    exponent[coordinateIndex] = 0;
+}
+
+//=============================================================================
+// CONSTRUCTOR(S)
+//=============================================================================
+//_____________________________________________________________________________
+PolynomialSurrogate::PolynomialSurrogate(int degree, const std::vector<double>& lowerBounds, const std::vector<double>& upperBounds) :
+_degree(degree)
+{
+    for (size_t coordinateIndex = 0; coordinateIndex < lowerBounds.size(); ++coordinateIndex)
+    {
+        _center.push_back(0.5*(lowerBounds[coordinateIndex] + upperBounds[coordinateIndex]));
+        double halfRange = 0.5*(upperBounds[coordinateIndex] - lowerBounds[coordinateIndex]);
+        _halfRange.push_back(halfRange > 0 ? halfRange : 1.0);
+    }
+    std::vector<int> exponent(lowerBounds.size(), 0);
+    enumerateExponents(exponent, 0, degree, _exponents);
+}
+
+//=============================================================================
+// FIT AND EVALUATION
+//=============================================================================
+//_____________________________________________________________________________
+void PolynomialSurrogate::computeTerms(const std::vector<double>& coordinates, std::vector<double>& terms) const
+{
+    // powers of each normalized coordinate, then products for each monomial
+    std::vector<std::vector<double> > powers(coordinates.size(), std::vector<double>(_degree + 1, 1.0));
+    for (size_t coordinateIndex = 0; coordinateIndex < coordinates.size(); ++coordinateIndex)
+    {
+        double x = (coordinates[coordinateIndex] - _center[coordinateIndex]) / _halfRange[coordinateIndex];
+        for (int power = 1; power <= _degree; ++power)
+            powers[coordinateIndex][power] = powers[coordinateIndex][power - 1] * x;
+    }
+    terms.assign(_exponents.size(), 1.0);
+    for (size_t termIndex = 0; termIndex < _exponents.size(); ++termIndex)
+        for (size_t coordinateIndex = 0; coordinateIndex < coordinates.size(); ++coordinateIndex)
+            terms[termIndex] *= powers[coordinateIndex][_exponents[termIndex][coordinateIndex]];
+}
+
+//_____________________________________________________________________________
+bool PolynomialSurrogate::fit(const std::vector<std::vector<double> >& coordinates, const std::vector<double>& values)
+{
+    size_t nSamples = values.size(), nTerms = _exponents.size();
+    _coefficients.clear();
+    if (nSamples < nTerms)
+        return false;
+
+    // Householder QR of the (nSamples x nTerms) Vandermonde-like matrix, applied to the values as well
+    std::vector<std::vector<double> > columns(nTerms, std::vector<double>(nSamples));
+    std::vector<double> terms;
+    for (size_t sampleIndex = 0; sampleIndex < nSamples; ++sampleIndex)
+    {
+        computeTerms(coordinates[sampleIndex], terms);
+        for (size_t termIndex = 0; termIndex < nTerms; ++termIndex)
+            columns[termIndex][sampleIndex] = terms[termIndex];
+    }
+    std::vector<double> rhs(values);
+    std::vector<double> diagonal(nTerms);
+    double largestDiagonal = 0.0;
+    for (size_t k = 0; k < nTerms; ++k)
+    {
+        std::vector<double>& v = columns[k];
+        double norm = 0.0;
+        for (size_t i = k; i < nSamples; ++i)
+            norm += v[i] * v[i];
+        norm = std::sqrt(norm);
+        if (norm > largestDiagonal)
+            largestDiagonal = norm;
+        if (norm <= 1e-12*largestDiagonal || norm == 0.0)
+            return false; // the samples do not determine the polynomial
+        double alpha = v[k] > 0 ? -norm : norm;
+        v[k] -= alpha;
+        double vNorm2 = 0.0;
+        for (size_t i = k; i < nSamples; ++i)
+            vNorm2 += v[i] * v[i];
+        // reflect the following columns and the values
+        for (size_t j = k + 1; j <= nTerms; ++j)
+        {
+            std::vector<double>& target = j < nTerms ? columns[j] : rhs;
+            double dot = 0.0;
+            for (size_t i = k; i < nSamples; ++i)
+                dot += v[i] * target[i];
+            double scale = 2.0*dot / vNorm2;
+            for (size_t i = k; i < nSamples; ++i)
+                target[i] -= scale*v[i];
+        }
+        diagonal[k] = alpha;
+    }
+
+    // back substitution with R (upper triangle stored above the diagonal of the reflected columns)
+    _coefficients.assign(nTerms, 0.0);
+    for (size_t k = nTerms; k-- > 0;)
+    {
+        double sum = rhs[k];
+        for (size_t j = k + 1; j < nTerms; ++j)
+            sum -= columns[j][k] * _coefficients[j];
+        _coefficients[k] = sum / diagonal[k];
+    }
+    return true;
+}
+
+//_____________________________________________________________________________
+double PolynomialSurrogate::evaluate(const std::vector<double>& coordinates) const
+{
+    std::vector<double> terms;
+    computeTerms(coordinates, terms);
+    double value = 0.0;
+    for (size_t termIndex = 0; termIndex < _coefficients.size(); ++termIndex)
+        value += _coefficients[termIndex] * terms[termIndex];
+    return value;
+}
@@ -0,0 +1,295 @@
+/* --------------------------------------------------------------------------*
+*                  Muscle Optimizer: muscleOptimizerBenchmark.cpp            *
+* -------------------------------------------------------------------------- *
+*                                                                            *
+* Copyright 2015  Elena Ceseracciu, Luca Modenese                            *
+*                                                                            *
+* Licensed under the Apache License, Version 2.0 (the "License");            *
+* you may not use this file except in compliance with the License.           *
+* You may obtain a copy of the License at                                    *
+*                                                                            *
+*     http://www.apache.org/licenses/LICENSE-2.0                             *
+*                                                                            *
+* Unless required by applicable law or agreed to in writing, software        *
+* distributed under the License is distributed on an "AS IS" BASIS,          *
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+* See the License for the specific language governing permissions and        *
+* limitations under the License.                                             *
+* ---------------------------------------------------------------------------*/
+// Times the sampling and fitting kernels of MuscleOptimizer one by one, for each
+// muscle of the models of one or more setup files and for several numbers of
+// evaluation points. Results are written as CSV, one row per kernel and muscle.
+
+#include <string>
+#include <vector>
+#include <iostream>
+#include <fstream>
+#include <sstream>
+#include <chrono>
+#include <algorithm>
+#include <memory>
+#include <cstdlib>
+#include <cmath>
+#include <OpenSim/OpenSim.h>
+#include "OpenSim/Tools/MuscleOptimizeTool.h"
+#include "OpenSim/Tools/MuscleOptimizer.h"
+#include "OpenSim/Tools/ModelTopology.h"
+#include "OpenSim/Tools/MuscleParameterFit.h"
+
+using namespace std;
+using namespace OpenSim;
+
+static void PrintUsage(const char *aProgName, ostream &aOStream);
+
+namespace OpenSim {
+
+    class MuscleOptimizerBenchmark {
+    public:
+        struct Timing
+        {
+            std::string kernel;
+            size_t nPoses;
+            std::vector<double> milliseconds;
+        };
+
+        MuscleOptimizerBenchmark(const MuscleOptimizer& optimizer, int nEval, int nRepetitions) :
+            _optimizer(optimizer),
+            _nRepetitions(nRepetitions)
+        {
+            _optimizer.set_n_evaluation_points(nEval);
+            _optimizer.resolveSelections();
+        }
+
+        bool isEnabledMuscle(const std::string& muscleName) { return _optimizer.isEnabledMuscle(muscleName); }
+
+        /* Time the four kernels for one muscle; models must be initialized, states are copied at each repetition.
+           As in processModel, the topology of the input model is built once and shared by all its muscles */
+        std::vector<Timing> run(Model& inputModel, const ModelTopology& inputTopology, const SimTK::State& inputDefaultState, Model& referenceModel, const SimTK::State& referenceDefaultState, const std::string& muscleName)
+        {
+            std::vector<Timing> timings;
+            std::vector<std::string> muscleNames(1, muscleName);
+            MuscleOptimizer::ModelHandles inputHandles = _optimizer.resolveModelHandles(inputModel, muscleNames);
+            MuscleOptimizer::ModelHandles referenceHandles = _optimizer.resolveModelHandles(referenceModel, muscleNames);
+            if (referenceHandles.muscleIndices[0] < 0)
+                return timings;
+
+            MuscleOptimizer::MuscleGroup muscleGroup;
+            muscleGroup.muscleOrdinals.push_back(0);
+            Timing romTiming = time("sampleROMsForMuscle", [&]() {
+                SimTK::State si(inputDefaultState);
+                muscleGroup.coordinateGrid = _optimizer.sampleROMsForMuscle(inputModel, inputTopology, si, muscleName, _optimizer.get_n_evaluation_points());
+            });
+            const CoordinateGrid& coordinateGrid = muscleGroup.coordinateGrid;
+            romTiming.nPoses = coordinateGrid.getNumPoses();
+            timings.push_back(romTiming);
+            if (coordinateGrid.empty())
+                return timings;
+
+            std::vector<int> inputMuscleIndices, inputCoordinateIndices, referenceMuscleIndices, referenceCoordinateIndices;
+            _optimizer.getGroupHandles(inputHandles, muscleGroup, inputMuscleIndices, inputCoordinateIndices);
+            _optimizer.getGroupHandles(referenceHandles, muscleGroup, referenceMuscleIndices, referenceCoordinateIndices);
+
+            std::vector<std::vector<TemplateMuscleInfo> > templateQuantities;
+            std::vector<std::vector<size_t> > validCombinations;
+            MuscleOptimizer::SamplingStats samplingStats;
+            bool templateSampled = false;
+            Timing templateTiming = time("sampleTemplateQuantities", [&]() {
+                SimTK::State si(referenceDefaultState);
+                templateSampled = _optimizer.sampleTemplateQuantities(referenceModel, si, referenceMuscleIndices, referenceCoordinateIndices, coordinateGrid, templateQuantities, validCombinations, samplingStats);
+            });
+            templateTiming.nPoses = coordinateGrid.getNumPoses();
+            timings.push_back(templateTiming);
+
+            // target lengths are kept on the poses of the template, as the fits would receive them
+            std::vector<double> targetMTULengths;
+            std::vector<MuscleOptimizer::SurrogateReport> surrogateReports;
+            std::ostringstream log;
+            bool mtuSampled = false;
+            Timing mtuTiming = time("sampleMTULength", [&]() {
+                SimTK::State si(inputDefaultState);
+                targetMTULengths.clear();
+                size_t cursor = 0;
+                mtuSampled = _optimizer.sampleMTULength(inputModel, si, inputMuscleIndices, inputCoordinateIndices, coordinateGrid, surrogateReports, samplingStats, log,
+                    [&](size_t poseIndex, const std::vector<double>& poseValues, const std::vector<double>& mtuLengths) {
+                        if (templateSampled && cursor < validCombinations[0].size() && validCombinations[0][cursor] == poseIndex)
+                        {
+                            targetMTULengths.push_back(mtuLengths[0]);
+                            ++cursor;
+                        }
+                    });
+            });
+            mtuTiming.nPoses = coordinateGrid.getNumPoses();
+            timings.push_back(mtuTiming);
+            if (!templateSampled || !mtuSampled)
+                return timings;
+
+            // a single fit is too short to be timed on its own: each repetition averages a batch of fits,
+            // each one fed with all the poses
+            const int nFitsPerRepetition = 100;
+            double referenceTendonSlackLength = referenceModel.getMuscles().get(referenceMuscleIndices[0]).getTendonSlackLength();
+            MuscleOptimizer::MuscleOptimizationResult result;
+            Timing fitTiming = time("fitMuscleParameters", [&]() {
+                for (int i = 0; i < nFitsPerRepetition; ++i)
+                {
+                    log.str("");
+                    MuscleParameterFit fit;
+                    for (size_t iPose = 0; iPose < targetMTULengths.size(); ++iPose)
+                    {
+                        const TemplateMuscleInfo& templateInfo = templateQuantities[0][iPose];
+                        fit.addPose(templateInfo.normalizedFiberLength*cos(templateInfo.pennationAngle), templateInfo.normalizedTendonLength,
+                            templateInfo.mtuLength, targetMTULengths[iPose]);
+                    }
+                    _optimizer.fitMuscleParameters(muscleName, fit, referenceTendonSlackLength, result, log);
+                }
+            });
+            for (auto& milliseconds : fitTiming.milliseconds)
+                milliseconds /= nFitsPerRepetition;
+            fitTiming.nPoses = validCombinations[0].size();
+            timings.push_back(fitTiming);
+            return timings;
+        }
+
+    private:
+        template <typename Kernel>
+        Timing time(const std::string& kernelName, Kernel kernel)
+        {
+            Timing timing;
+            timing.kernel = kernelName;
+            timing.nPoses = 0;
+            for (int iRepetition = 0; iRepetition < _nRepetitions; ++iRepetition)
+            {
+                std::chrono::steady_clock::time_point start = std::chrono::steady_clock::now();
+                kernel();
+                timing.milliseconds.push_back(std::chrono::duration<double, std::milli>(std::chrono::steady_clock::now() - start).count());
+            }
+            return timing;
+        }
+
+        MuscleOptimizer _optimizer;
+        int _nRepetitions;
+    };
+
+}
+
+static std::vector<int> parseIntegerList(const string& list)
+{
+    std::vector<int> values;
+    std::istringstream in(list);
+    string value;
+    while (std::getline(in, value, ','))
+        values.push_back(atoi(value.c_str()));
+    return values;
+}
+
+int main(int argc, char **argv)
+{
+    std::vector<int> nEvaluationPoints = parseIntegerList("5,10,15");
+    int nRepetitions = 3;
+    string muscleFilter, outputFileName;
+    std::vector<string> setupFiles;
+    for (int i = 1; i < argc; ++i)
+    {
+        string option = argv[i];
+        if ((option == "-Help") || (option == "-H") || (option == "-h") || (option == "-help"))
+        {
+            PrintUsage(argv[0], cout);
+            return 0;
+        }
+        else if ((option == "-N") || (option == "-R") || (option == "-M") || (option == "-O"))
+        {
+            if (i + 1 >= argc)
+            {
+                PrintUsage(argv[0], cerr);
+                return -1;
+            }
+            string value = argv[++i];
+            if (option == "-N")
+                nEvaluationPoints = parseIntegerList(value);
+            else if (option == "-R")
+                nRepetitions = std::max(1, atoi(value.c_str()));
+            else if (option == "-M")
+                muscleFilter = value;
+            else
+                outputFileName = value;
+        }
+        else
+            setupFiles.push_back(option);
+    }
+    if (setupFiles.empty())
+    {
+        cerr << "Not enough input arguments!" << endl;
+        PrintUsage(argv[0], cerr);
+        return -1;
+    }
+
+    std::ofstream outputFile;
+    if (outputFileName != "")
+    {
+        outputFile.open(outputFileName.c_str());
+        if (!outputFile)
+        {
+            cerr << "Could not open " << outputFileName << endl;
+            return -1;
+        }
+    }
+    ostream& out = outputFileName != "" ? static_cast<ostream&>(outputFile) : cout;
+    out << "setup,muscle,n_evaluation_points,kernel,n_poses,repetitions,min_ms,median_ms" << endl;
+
+    try
+    {
+        MuscleOptimizeTool::registerTypes();
+        for (auto& setupFile : setupFiles)
+        {
+            MuscleOptimizeTool tool(setupFile);
+            std::unique_ptr<Model> inputModel(tool.loadInputModel());
+            std::unique_ptr<Model> referenceModel(tool.loadReferenceModel());
+            if (!inputModel || !referenceModel)
+            {
+                cerr << "Could not load the models of " << setupFile << endl;
+                return -1;
+            }
+            const SimTK::State inputDefaultState(inputModel->initSystem());
+            const SimTK::State referenceDefaultState(referenceModel->initSystem());
+            ModelTopology inputTopology(*inputModel);
+
+            for (auto nEval : nEvaluationPoints)
+            {
+                MuscleOptimizerBenchmark benchmark(tool.getMuscleOptimizer(), nEval, nRepetitions);
+                for (int im = 0; im < inputModel->getMuscles().getSize(); ++im)
+                {
+                    const string& muscleName = inputModel->getMuscles().get(im).getName();
+                    if (!benchmark.isEnabledMuscle(muscleName) || (muscleFilter != "" && muscleName != muscleFilter))
+                        continue;
+                    cerr << tool.getName() << ": " << muscleName << ", n_evaluation_points " << nEval << endl;
+                    std::vector<MuscleOptimizerBenchmark::Timing> timings = benchmark.run(*inputModel, inputTopology, inputDefaultState, *referenceModel, referenceDefaultState, muscleName);
+                    for (auto& timing : timings)
+                    {
+                        std::vector<double> sorted(timing.milliseconds);
+                        std::sort(sorted.begin(), sorted.end());
+                        out << tool.getName() << "," << muscleName << "," << nEval << "," << timing.kernel << "," << timing.nPoses << ","
+                            << sorted.size() << "," << sorted.front() << "," << sorted[sorted.size() / 2] << endl;
+                    }
+                }
+            }
+        }
+    }
+    catch (const Exception& x)
+    {
+        x.print(cerr);
+        return -1;
+    }
+
+    return 0;
+}
+
+void PrintUsage(const char *aProgName, ostream &aOStream)
+{
+    aOStream << "Usage: " << aProgName << " [options] SetupFileName [SetupFileName ...]\n\n";
+    aOStream << "Times sampleROMsForMuscle, sampleTemplateQuantities, sampleMTULength and fitMuscleParameters\n";
+    aOStream << "for each enabled muscle of the models of the setup files, and writes the results as CSV.\n\n";
+    aOStream << "Option      Argument          Description\n";
+    aOStream << "-N          n1,n2,...         Values of n_evaluation_points to benchmark (default: 5,10,15).\n";
+    aOStream << "-R          Repetitions       Number of timed repetitions of each kernel (default: 3).\n";
+    aOStream << "-M          MuscleName        Only benchmark this muscle.\n";
+    aOStream << "-O          OutputFileName    Write the CSV results to a file instead of the standard output.\n";
+}
@@ -1,20 +1,20 @@
-/* --------------------------------------------------------------------------*
-*                  Muscle Optimizer: muscleParameterComparer.cpp             *
-* -------------------------------------------------------------------------- *
-*                                                                            *
-* Copyright 2015  Elena Ceseracciu, Luca Modenese                            *
-*                                                                            *
-* Licensed under the Apache License, Version 2.0 (the "License");            *
-* you may not use this file except in compliance with the License.           *
-* You may obtain a copy of the License at                                    *
-*                                                                            *
-*     http://www.apache.org/licenses/LICENSE-2.0                             *
-*                                                                            *
-* Unless required by applicable law or agreed to in writing, software        *
-* distributed under the License is distributed on an "AS IS" BASIS,          *
-* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
-* See the License for the specific language governing permissions and        *
-* limitations under the License.                                             *
+/* --------------------------------------------------------------------------*
+*                  Muscle Optimizer: muscleParameterComparer.cpp             *
+* -------------------------------------------------------------------------- *
+*                                                                            *
+* Copyright 2015  Elena Ceseracciu, Luca Modenese                            *
+*                                                                            *
+* Licensed under the Apache License, Version 2.0 (the "License");            *
+* you may not use this file except in compliance with the License.           *
+* You may obtain a copy of the License at                                    *
+*                                                                            *
+*     http://www.apache.org/licenses/LICENSE-2.0                             *
+*                                                                            *
+* Unless required by applicable law or agreed to in writing, software        *
+* distributed under the License is distributed on an "AS IS" BASIS,          *
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+* See the License for the specific language governing permissions and        *
+* limitations under the License.                                             *
 * ---------------------------------------------------------------------------*/
 // Author: Elena Ceseracciu elena.ceseracciu@gmail.com
 
@@ -41,6 +41,11 @@ int main(int argc, char **argv)
         tolerance = atof(argv[3]);
     else
         cout << "Using default tolerance of " << tolerance << endl;
+    // optional tolerance on tendon slack lengths (default: same as optimal fiber lengths);
+    // a negative tolerance only reports the differences
+    double tendonSlackTolerance = tolerance;
+    if (argc>4)
+        tendonSlackTolerance = atof(argv[4]);
 
     cout << "Loading subject " << firstModelName << endl;
     OpenSim::Model* firstModel = NULL;
@@ -69,6 +74,8 @@ int main(int argc, char **argv)
     firstModel->getMuscles().getNames(musclesFirst);
 
     bool all_passed = true;
+    double maxOptFibLenDiff = 0, maxTendSlackLenDiff = 0;
+    string maxOptFibLenMuscle, maxTendSlackLenMuscle;
 
     for (int iMusc = 0; iMusc < musclesFirst.getSize(); ++iMusc)
     {
@@ -76,20 +83,32 @@ int main(int argc, char **argv)
         const OpenSim::Muscle& currentMuscleSecond = secondModel->getMuscles().get(musclesFirst[iMusc]);
 
         double optFibLenDiff = std::abs(currentMuscleFirst.getOptimalFiberLength() - currentMuscleSecond.getOptimalFiberLength());
-        if (optFibLenDiff>tolerance)
+        if (optFibLenDiff >= maxOptFibLenDiff)
+        {
+            maxOptFibLenDiff = optFibLenDiff;
+            maxOptFibLenMuscle = musclesFirst[iMusc];
+        }
+        if (tolerance >= 0 && optFibLenDiff>tolerance)
         {
             all_passed = false;
             std::cout << "Optimal fiber length difference for muscle " << musclesFirst[iMusc] << " is " <<
                 currentMuscleFirst.getOptimalFiberLength() << " - " << currentMuscleSecond.getOptimalFiberLength()<< " = " << optFibLenDiff << " >" << tolerance << std::endl;
         }
         double tendSlackLenDiff = std::abs(currentMuscleFirst.getTendonSlackLength() - currentMuscleSecond.getTendonSlackLength());
-        if (tendSlackLenDiff>tolerance)
+        if (tendSlackLenDiff >= maxTendSlackLenDiff)
+        {
+            maxTendSlackLenDiff = tendSlackLenDiff;
+            maxTendSlackLenMuscle = musclesFirst[iMusc];
+        }
+        if (tendonSlackTolerance >= 0 && tendSlackLenDiff>tendonSlackTolerance)
         {
             all_passed = false;
             std::cout << "Tendon slack length difference for muscle " << musclesFirst[iMusc] << " is " <<
-                currentMuscleFirst.getTendonSlackLength() << " - " << currentMuscleSecond.getTendonSlackLength() << " = " << tendSlackLenDiff << " >" << tolerance << std::endl;
+                currentMuscleFirst.getTendonSlackLength() << " - " << currentMuscleSecond.getTendonSlackLength() << " = " << tendSlackLenDiff << " >" << tendonSlackTolerance << std::endl;
         }
     }
 
+    std::cout << "Maximum optimal fiber length difference: " << maxOptFibLenDiff << " (" << maxOptFibLenMuscle << ")" << std::endl;
+    std::cout << "Maximum tendon slack length difference: " << maxTendSlackLenDiff << " (" << maxTendSlackLenMuscle << ")" << std::endl;
     return all_passed? 0:-1;
 }
@@ -0,0 +1,138 @@
+/* --------------------------------------------------------------------------*
+*                  Muscle Optimizer: muscleSampleDumpChecker.cpp             *
+* -------------------------------------------------------------------------- *
+*                                                                            *
+* Copyright 2015  Elena Ceseracciu, Luca Modenese                            *
+*                                                                            *
+* Licensed under the Apache License, Version 2.0 (the "License");            *
+* you may not use this file except in compliance with the License.           *
+* You may obtain a copy of the License at                                    *
+*                                                                            *
+*     http://www.apache.org/licenses/LICENSE-2.0                             *
+*                                                                            *
+* Unless required by applicable law or agreed to in writing, software        *
+* distributed under the License is distributed on an "AS IS" BASIS,          *
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+* See the License for the specific language governing permissions and        *
+* limitations under the License.                                             *
+* ---------------------------------------------------------------------------*/
+// Reads back a sample dump file and checks it against the models it was computed
+// from: every muscle of the target model must have a non-empty block, and the
+// MTU lengths stored for each row must be those of the reference and target
+// models at the stored pose. Usage:
+//   muscleSampleDumpChecker <dump file> <reference model> <target model> [tolerance]
+
+#include <string>
+#include <vector>
+#include <iostream>
+#include <cstdlib>
+#include <cmath>
+#include <OpenSim/OpenSim.h>
+#include "OpenSim/Tools/MuscleSampleDump.h"
+
+using namespace std;
+using namespace OpenSim;
+
+// Largest difference between the stored MTU lengths and those of the model at the stored poses
+static double checkMTULengths(Model& model, SimTK::State& si, const MuscleSampleDumpReader::MuscleSamples& samples, bool referenceLengths)
+{
+    const Muscle& muscle = model.getMuscles().get(samples.muscleName);
+    double maxDifference = 0;
+    for (size_t iRow = 0; iRow < samples.poseIndices.size(); ++iRow)
+    {
+        for (size_t iCoordinate = 0; iCoordinate < samples.coordinateNames.size(); ++iCoordinate)
+            model.getCoordinateSet().get(samples.coordinateNames[iCoordinate]).setValue(si, samples.poseValues[iCoordinate][iRow]);
+        model.getMultibodySystem().realize(si, SimTK::Stage::Position);
+        double storedLength = referenceLengths ? samples.templateQuantities[iRow].mtuLength : samples.targetMTULengths[iRow];
+        maxDifference = std::max(maxDifference, std::abs(muscle.getLength(si) - storedLength));
+    }
+    return maxDifference;
+}
+
+int main(int argc, char **argv)
+{
+    if (argc < 4)
+    {
+        cerr << "Usage: " << argv[0] << " <dump file> <reference model> <target model> [tolerance]" << endl;
+        return -1;
+    }
+    double tolerance = argc > 4 ? atof(argv[4]) : 1e-9;
+
+    MuscleSampleDumpReader reader;
+    if (!reader.open(argv[1]))
+    {
+        cout << "Could not read sample dump file " << argv[1] << endl;
+        return -1;
+    }
+
+    Model* referenceModel = NULL;
+    Model* targetModel = NULL;
+    try {
+        referenceModel = new Model(argv[2]);
+        targetModel = new Model(argv[3]);
+    }
+    catch (const OpenSim::Exception& x)
+    {
+        x.print(cout);
+        return -1;
+    }
+    SimTK::State referenceState = referenceModel->initSystem();
+    SimTK::State targetState = targetModel->initSystem();
+
+    bool allPassed = true;
+    std::vector<std::string> dumpMuscleNames = reader.getMuscleNames();
+    if (dumpMuscleNames.size() != static_cast<size_t>(targetModel->getMuscles().getSize()))
+    {
+        allPassed = false;
+        cout << "Sample dump holds " << dumpMuscleNames.size() << " muscles, model has " << targetModel->getMuscles().getSize() << endl;
+    }
+
+    for (auto& muscleName : dumpMuscleNames)
+    {
+        MuscleSampleDumpReader::MuscleSamples samples;
+        if (!reader.readMuscle(muscleName, samples))
+        {
+            allPassed = false;
+            cout << "Could not read the samples of muscle " << muscleName << endl;
+            continue;
+        }
+        if (targetModel->getMuscles().getIndex(muscleName) < 0 || referenceModel->getMuscles().getIndex(muscleName) < 0)
+        {
+            allPassed = false;
+            cout << "Muscle " << muscleName << " is not in both models" << endl;
+            continue;
+        }
+
+        size_t nRows = samples.poseIndices.size();
+        cout << muscleName << ": " << nRows << " rows, " << samples.coordinateNames.size() << " coordinates" << endl;
+        if (nRows == 0)
+        {
+            allPassed = false;
+            cout << "   no samples" << endl;
+            continue;
+        }
+        // rows are kept in grid order, and pruned poses are those below half the optimal fiber length
+        for (size_t iRow = 0; iRow < nRows; ++iRow)
+        {
+            if ((iRow > 0 && samples.poseIndices[iRow] <= samples.poseIndices[iRow - 1])
+                || !(samples.templateQuantities[iRow].normalizedFiberLength >= 0.5))
+            {
+                allPassed = false;
+                cout << "   invalid row " << iRow << " (pose " << samples.poseIndices[iRow] << ")" << endl;
+                break;
+            }
+        }
+
+        double referenceDifference = checkMTULengths(*referenceModel, referenceState, samples, true);
+        double targetDifference = checkMTULengths(*targetModel, targetState, samples, false);
+        if (!(referenceDifference <= tolerance && targetDifference <= tolerance))
+        {
+            allPassed = false;
+            cout << "   MTU length differences: reference " << referenceDifference << ", target " << targetDifference << " > " << tolerance << endl;
+        }
+    }
+
+    delete referenceModel;
+    delete targetModel;
+    return allPassed ? 0 : -1;
+}
@@ -10,6 +10,7 @@
 %include "typemaps.i"
 %include "std_string.i"
 %{
+#include <OpenSim/Tools/MuscleOptimizerReport.h>
 #include <OpenSim/Tools/MuscleOptimizer.h>
 #include <OpenSim/Tools/MuscleOptimizeTool.h>
 #include <OpenSim/Wrapping/Java/OpenSimJNI/OpenSimContext.h>
@@ -18,5 +19,40 @@ using namespace OpenSim;
 using namespace SimTK;
 %}
 
+%feature("director") OpenSim::MuscleOptimizerCallback;
+
+// Name lists cross JNI as a whole: std::vector<std::string> <-> String[]
+%typemap(jni) std::vector<std::string>, const std::vector<std::string>& "jobjectArray"
+%typemap(jtype) std::vector<std::string>, const std::vector<std::string>& "String[]"
+%typemap(jstype) std::vector<std::string>, const std::vector<std::string>& "String[]"
+%typemap(javain) const std::vector<std::string>& "$javainput"
+%typemap(javaout) std::vector<std::string> {
+    return $jnicall;
+  }
+%typemap(out) std::vector<std::string> {
+    const std::vector<std::string>& names = $1;
+    $result = jenv->NewObjectArray(static_cast<jsize>(names.size()), jenv->FindClass("java/lang/String"), NULL);
+    for (size_t i = 0; $result && i < names.size(); ++i) {
+        jstring name = jenv->NewStringUTF(names[i].c_str());
+        jenv->SetObjectArrayElement($result, static_cast<jsize>(i), name);
+        jenv->DeleteLocalRef(name);
+    }
+}
+%typemap(in) const std::vector<std::string>& (std::vector<std::string> names) {
+    jsize nNames = $input ? jenv->GetArrayLength($input) : 0;
+    names.reserve(nNames);
+    for (jsize i = 0; i < nNames; ++i) {
+        jstring name = static_cast<jstring>(jenv->GetObjectArrayElement($input, i));
+        if (!name)
+            continue;
+        const char* characters = jenv->GetStringUTFChars(name, 0);
+        names.push_back(characters);
+        jenv->ReleaseStringUTFChars(name, characters);
+        jenv->DeleteLocalRef(name);
+    }
+    $1 = &names;
+}
+
+%include <OpenSim/Tools/MuscleOptimizerReport.h>
 %include <OpenSim/Tools/MuscleOptimizer.h>
 %include <OpenSim/Tools/MuscleOptimizeTool.h>
\ No newline at end of file